@@ -4,10 +4,14 @@ import dev.dylanburati.pocketmap.IntPocketMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class App {
   private static int genWordId(double uniform) {
@@ -64,9 +68,53 @@ public class App {
     return m.size();
   }
 
-  public static void main(String[] args) {
+  public static int wordcountSink(int producers) throws Exception {
+    int owners = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int perProducer = 100_000_000 / producers;
+    try (IngestionSink sink = new IngestionSink(owners, 4096, 16)) {
+      ExecutorService executor = IngestionSink.newProducerExecutor();
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+          long seed = p;
+          futures.add(executor.submit(() -> {
+            byte[] alph = "pfscxkde".getBytes(StandardCharsets.US_ASCII);
+            byte[] wbuf = new byte[32];
+            Random r = new Random(seed);
+            try (IngestionSink.Producer producer = sink.newProducer()) {
+              for (int i = 0; i < perProducer; i++) {
+                double uniform = r.nextDouble();
+                int wlen = genWordLen(uniform);
+                for (int wid = genWordId(uniform), j = 0; j < wlen; j++) {
+                  wbuf[j] = alph[(wid >> (3 * (j%9))) & 7];
+                }
+                producer.accept(Arrays.copyOf(wbuf, wlen));
+              }
+            }
+            return null;
+          }));
+        }
+        for (Future<?> f : futures) {
+          f.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+      int size = 0;
+      for (IntPocketMap m : sink.finish()) {
+        size += m.size();
+      }
+      System.out.println("Size: " + size);
+      return size;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
     Map<String, Integer> m;
     switch (args.length > 0 ? args[0] : "") {
+      case "sink":
+        wordcountSink(args.length > 1 ? Integer.parseInt(args[1]) : 64);
+        return;
       case "java.util":
         m = new HashMap<String, Integer>();
         break;
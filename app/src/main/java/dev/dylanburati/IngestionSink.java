@@ -0,0 +1,171 @@
+package dev.dylanburati;
+
+import dev.dylanburati.pocketmap.IntPocketMap;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Counts tokens from many producer tasks into a few single-threaded maps.
+ *
+ * Each producer batches its tokens by destination, and hands full batches to the owner of that
+ * partition over a bounded queue. An owner is a platform thread which applies batches to its own
+ * {@link IntPocketMap}, so the maps are never shared. Producers are cheap and only block on a full
+ * queue, which makes them a good fit for virtual threads (one per input file, for example).
+ */
+public class IngestionSink implements AutoCloseable {
+  private static final Batch POISON = new Batch(0);
+
+  private final int batchSize;
+  private final List<BlockingQueue<Batch>> queues;
+  private final List<IntPocketMap> maps;
+  private final List<Thread> owners;
+  private volatile Throwable failure;
+  private boolean finished;
+
+  public IngestionSink(int ownerCount, int batchSize, int queueCapacity) {
+    if (ownerCount < 1 || batchSize < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("expected positive ownerCount, batchSize and queueCapacity");
+    }
+    this.batchSize = batchSize;
+    this.queues = new ArrayList<>(ownerCount);
+    this.maps = new ArrayList<>(ownerCount);
+    this.owners = new ArrayList<>(ownerCount);
+    for (int i = 0; i < ownerCount; i++) {
+      BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueCapacity);
+      IntPocketMap map = new IntPocketMap();
+      Thread owner = new Thread(() -> this.runOwner(queue, map), "ingestion-owner-" + i);
+      owner.setDaemon(true);
+      this.queues.add(queue);
+      this.maps.add(map);
+      this.owners.add(owner);
+      owner.start();
+    }
+  }
+
+  /**
+   * Returns an executor for producer tasks: one virtual thread per task when the JDK supports
+   * it, otherwise a cached pool of platform threads.
+   */
+  public static ExecutorService newProducerExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /** Creates a producer handle. Each producer must only be used by one task at a time. */
+  public Producer newProducer() {
+    return new Producer(this);
+  }
+
+  /**
+   * Waits for the owners to apply every batch sent so far, and returns their maps. Each key is
+   * in exactly one of the maps. All producers must be closed first.
+   */
+  public List<IntPocketMap> finish() throws InterruptedException {
+    if (this.finished) {
+      throw new IllegalStateException("already finished");
+    }
+    this.finished = true;
+    for (BlockingQueue<Batch> queue : this.queues) {
+      queue.put(POISON);
+    }
+    for (Thread owner : this.owners) {
+      owner.join();
+    }
+    if (this.failure != null) {
+      throw new IllegalStateException("owner thread failed", this.failure);
+    }
+    return this.maps;
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    if (!this.finished) {
+      this.finish();
+    }
+  }
+
+  private void runOwner(BlockingQueue<Batch> queue, IntPocketMap map) {
+    while (true) {
+      Batch batch;
+      try {
+        batch = queue.take();
+      } catch (InterruptedException e) {
+        this.failure = e;
+        return;
+      }
+      if (batch == POISON) {
+        return;
+      }
+      if (this.failure != null) {
+        // keep draining so that producers don't block forever
+        continue;
+      }
+      try {
+        for (int i = 0; i < batch.count; i++) {
+          map.merge(batch.tokens[i], 1, Integer::sum);
+        }
+      } catch (RuntimeException | Error e) {
+        this.failure = e;
+      }
+    }
+  }
+
+  private static class Batch {
+    final byte[][] tokens;
+    int count;
+
+    Batch(int capacity) {
+      this.tokens = new byte[capacity][];
+      this.count = 0;
+    }
+  }
+
+  public static class Producer implements AutoCloseable {
+    private final IngestionSink sink;
+    private final Batch[] pending;
+
+    private Producer(IngestionSink sink) {
+      this.sink = sink;
+      this.pending = new Batch[sink.queues.size()];
+    }
+
+    /** Queues a token to be counted. The array must not be modified afterwards. */
+    public void accept(byte[] token) throws InterruptedException {
+      int h = Arrays.hashCode(token);
+      h ^= h >>> 16;
+      int which = Math.floorMod(h, this.pending.length);
+      Batch batch = this.pending[which];
+      if (batch == null) {
+        batch = new Batch(this.sink.batchSize);
+        this.pending[which] = batch;
+      }
+      batch.tokens[batch.count++] = token;
+      if (batch.count == batch.tokens.length) {
+        this.sink.queues.get(which).put(batch);
+        this.pending[which] = null;
+      }
+    }
+
+    /** Sends any partially filled batches. */
+    @Override
+    public void close() throws InterruptedException {
+      for (int i = 0; i < this.pending.length; i++) {
+        if (this.pending[i] != null && this.pending[i].count > 0) {
+          this.sink.queues.get(i).put(this.pending[i]);
+        }
+        this.pending[i] = null;
+      }
+    }
+  }
+}
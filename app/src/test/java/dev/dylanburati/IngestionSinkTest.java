@@ -0,0 +1,86 @@
+package dev.dylanburati;
+
+import dev.dylanburati.pocketmap.IntPocketMap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+class IngestionSinkTest {
+  @Test void testCountsFromSeveralProducers() throws Exception {
+    int producers = 8;
+    int perProducer = 20_000;
+    List<IntPocketMap> maps;
+    // small batches and queues, so that producers block on full queues and send partial batches
+    try (IngestionSink sink = new IngestionSink(3, 7, 2)) {
+      ExecutorService executor = IngestionSink.newProducerExecutor();
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+          int seed = p;
+          futures.add(executor.submit(() -> {
+            try (IngestionSink.Producer producer = sink.newProducer()) {
+              for (int i = 0; i < perProducer; i++) {
+                producer.accept(Integer.toString((i * 31 + seed) % 1000).getBytes(StandardCharsets.UTF_8));
+              }
+            }
+            return null;
+          }));
+        }
+        for (Future<?> f : futures) {
+          f.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+      maps = sink.finish();
+      assertThrows(IllegalStateException.class, sink::finish);
+    }
+
+    Map<String, Integer> expected = new HashMap<>();
+    for (int p = 0; p < producers; p++) {
+      for (int i = 0; i < perProducer; i++) {
+        expected.merge(Integer.toString((i * 31 + p) % 1000), 1, Integer::sum);
+      }
+    }
+    Map<String, Integer> actual = new HashMap<>();
+    assertEquals(3, maps.size());
+    for (IntPocketMap m : maps) {
+      for (Map.Entry<byte[], Integer> e : m.entrySet()) {
+        String key = new String(e.getKey(), StandardCharsets.UTF_8);
+        // each key is owned by exactly one map
+        assertNull(actual.put(key, e.getValue()), key);
+      }
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test void testFinishStopsOwners() throws Exception {
+    List<IntPocketMap> maps;
+    try (IngestionSink sink = new IngestionSink(2, 4, 1)) {
+      try (IngestionSink.Producer producer = sink.newProducer()) {
+        producer.accept("a".getBytes(StandardCharsets.UTF_8));
+      }
+      // the poison batch is queued behind the partial batch, so it's still counted
+      maps = sink.finish();
+    }
+    assertEquals(1, maps.stream().mapToInt(IntPocketMap::size).sum());
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      assertFalse(t.getName().startsWith("ingestion-owner-") && t.isAlive(), t.getName());
+    }
+
+    // closing without finishing also sends the poison batches
+    IngestionSink unfinished = new IngestionSink(2, 4, 1);
+    unfinished.close();
+    assertThrows(IllegalStateException.class, unfinished::finish);
+    assertThrows(IllegalArgumentException.class, () -> new IngestionSink(0, 4, 1));
+  }
+}
@@ -29,6 +29,7 @@ configs = [
         "val": {"t": "long", "view": "Long", "disp": "Long", "boxed": "Long"},
         "example_values": ["505L", "606L", "707L", "808L"],
         "intLambda": "(v) -> (long) v",
+        "atomic": True,
     },
     {
         "val": {"t": "float", "view": "Float", "disp": "Float", "boxed": "Float"},
@@ -39,6 +40,7 @@ configs = [
         "val": {"t": "double", "view": "Double", "disp": "Double", "boxed": "Double"},
         "example_values": ["5.5", "6.25", "7.125", "8.0625"],
         "intLambda": "(v) -> (double) v",
+        "atomic": True,
     },
 ]
 src_only_configs = [
@@ -85,6 +87,32 @@ with open(
 
 template_rgx = re.compile(r"^([ ]*)/\* template(\([0-9]+\))?! (.*) \*/")
 template_all_rgx = re.compile(r"^[ ]*/\* template_all! (.*) \*/")
+# lines between template_if and template_endif are only kept for configs where the jq
+# condition is true; the condition must hold for the config with "keep" set
+template_if_rgx = re.compile(r"^[ ]*/\* template_if! (.*) \*/")
+template_endif_rgx = re.compile(r"^[ ]*/\* template_endif! \*/")
+
+jq_defs = (
+    r'def equals: if .[0] then "\(.[1]).equals(\(.[2]))"'
+    r' elif length > 3 then "\(.[1]) == (\(.[3])) \(.[2])" else "\(.[1]) == \(.[2])" end; '
+    r'def cast: if .[0] == "Object" then .[1] else "(\(.[0])) \(.[1])" end; '
+    r'def castUnsafe: if .[0] then "castUnsafe(\(.[1]))" else .[1] end; '
+)
+
+
+def run_jq(config_b, jq_script, lineno):
+    proc = subprocess.Popen(
+        ["jq", "-c", jq_script],
+        stdin=subprocess.PIPE,
+        stdout=subprocess.PIPE,
+        stderr=subprocess.PIPE,
+    )
+    out_bytes, err_bytes = proc.communicate(config_b + b"\n")
+    if err_bytes:
+        print(f"template error on line {lineno}", file=sys.stderr)
+        sys.stderr.buffer.write(err_bytes)
+        return None
+    return list(map(json.loads, map(bytes.rstrip, out_bytes.splitlines())))
 
 
 def fill_templates(configs, lines):
@@ -92,7 +120,31 @@ def fill_templates(configs, lines):
     i = 0
     config_b = b"".join((json.dumps(c).encode("utf-8") + b"\n") for c in configs)
     unconditional_replaces = [{} for _ in configs]
+    active_stack = []
+    # set for a config right after a block it dropped, so that the blank line which separated
+    # the block from what follows isn't doubled up with the one before it
+    after_dropped = [False for _ in configs]
     while i < len(lines):
+        template_if_match = template_if_rgx.match(lines[i])
+        if template_if_match:
+            conds = run_jq(config_b, jq_defs + f"({template_if_match.group(1)}) == true", i + 1)
+            if conds is None:
+                break
+            active_stack.append(conds)
+            for j in range(len(result)):
+                if configs[j].get("keep"):
+                    result[j].append(lines[i])
+            i += 1
+            continue
+        if template_endif_rgx.match(lines[i]):
+            conds = active_stack.pop()
+            for j in range(len(result)):
+                if not conds[j] and all(outer[j] for outer in active_stack):
+                    after_dropped[j] = True
+                if configs[j].get("keep"):
+                    result[j].append(lines[i])
+            i += 1
+            continue
         template_all_match = template_all_rgx.match(lines[i])
         if template_all_match:
             srcs = json.loads(template_all_match.group(1))
@@ -115,25 +167,10 @@ def fill_templates(configs, lines):
             indent = template_match.group(1)
             if count_arg := template_match.group(2):
                 replace_count = int(count_arg[1:-1])
-            jq_script = (
-                r'def equals: if .[0] then "\(.[1]).equals(\(.[2]))"'
-                r' elif length > 3 then "\(.[1]) == (\(.[3])) \(.[2])" else "\(.[1]) == \(.[2])" end; '
-                r'def cast: if .[0] == "Object" then .[1] else "(\(.[0])) \(.[1])" end; '
-                r'def castUnsafe: if .[0] then "castUnsafe(\(.[1]))" else .[1] end; '
-                f'"{template_match.group(3)}"'
-            )
-            proc = subprocess.Popen(
-                ["jq", "-c", jq_script],
-                stdin=subprocess.PIPE,
-                stdout=subprocess.PIPE,
-                stderr=subprocess.PIPE,
-            )
-            out_bytes, err_bytes = proc.communicate(config_b + b"\n")
-            if err_bytes:
-                print(f"template error on line {i+1}", file=sys.stderr)
-                sys.stderr.buffer.write(err_bytes)
+            renders = run_jq(config_b, jq_defs + f'"{template_match.group(3)}"', i + 1)
+            if renders is None:
                 break
-            for j, render in enumerate(map(json.loads, map(bytes.rstrip, out_bytes.splitlines()))):
+            for j, render in enumerate(renders):
                 to_add[j].extend(
                     (indent + e) for e in render.split("\n") if e != ""
                 )
@@ -143,7 +180,13 @@ def fill_templates(configs, lines):
             i += 1 + replace_count
 
         for j in range(len(to_add)):
+            if not all(conds[j] for conds in active_stack):
+                continue
             for line in to_add[j]:
+                if after_dropped[j]:
+                    after_dropped[j] = False
+                    if line == "" and (not result[j] or result[j][-1] == ""):
+                        continue
                 replace_indices = []
                 for src, dst in unconditional_replaces[j].items():
                     line_idx = 0
@@ -163,6 +206,7 @@ def fill_templates(configs, lines):
 int_config = {
     "val": {"t": "int", "view": "Integer", "disp": "Int", "boxed": "Integer"},
     "intLambda": "(v) -> v",
+    "atomic": True,
     "keep": True,
 }
 src_sanity, *src_outs = fill_templates([int_config, *configs, *src_only_configs], src_lines)
@@ -178,6 +222,32 @@ if test_sanity != test_lines:
     pdb.set_trace()
     sys.exit(1)
 
+# the interleaved maps have a long word per value, so only the types which fit in 32 bits are
+# generated; float values are stored by their bits
+interleaved_configs = [c for c in configs if c["val"]["t"] in ("byte", "short", "float")]
+with open(f"{base_src_path}/InterleavedIntPocketMap.java", "r", encoding="utf-8") as fp:
+    interleaved_src_lines = [line.rstrip() for line in fp.readlines()]
+with open(
+    f"{base_test_path}/InterleavedIntPocketMapTest.java", "r", encoding="utf-8"
+) as fp:
+    interleaved_test_lines = [line.rstrip() for line in fp.readlines()]
+interleaved_src_sanity, *interleaved_src_outs = fill_templates(
+    [int_config, *interleaved_configs], interleaved_src_lines
+)
+if interleaved_src_sanity != interleaved_src_lines:
+    import pdb
+
+    pdb.set_trace()
+    sys.exit(1)
+interleaved_test_sanity, *interleaved_test_outs = fill_templates(
+    [int_config, *interleaved_configs], interleaved_test_lines
+)
+if interleaved_test_sanity != interleaved_test_lines:
+    import pdb
+
+    pdb.set_trace()
+    sys.exit(1)
+
 for lst, c in zip(src_outs, configs + src_only_configs):
     src_file = f"{c['val']['disp']}PocketMap.java"
     with open(f"{base_src_path}/{src_file}", "w", encoding="utf-8") as fp:
@@ -188,3 +258,13 @@ for lst, c in zip(test_outs, configs + test_only_configs):
     with open(f"{base_test_path}/{test_file}", "w", encoding="utf-8") as fp:
         fp.write("\n".join(lst))
         fp.write("\n")
+for lst, c in zip(interleaved_src_outs, interleaved_configs):
+    src_file = f"Interleaved{c['val']['disp']}PocketMap.java"
+    with open(f"{base_src_path}/{src_file}", "w", encoding="utf-8") as fp:
+        fp.write("\n".join(lst))
+        fp.write("\n")
+for lst, c in zip(interleaved_test_outs, interleaved_configs):
+    test_file = f"Interleaved{c['val']['disp']}PocketMapTest.java"
+    with open(f"{base_test_path}/{test_file}", "w", encoding="utf-8") as fp:
+        fp.write("\n".join(lst))
+        fp.write("\n")
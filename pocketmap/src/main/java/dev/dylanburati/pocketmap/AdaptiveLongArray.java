@@ -0,0 +1,173 @@
+package dev.dylanburati.pocketmap;
+
+/**
+ * Array of longs stored at the narrowest width that fits most of them, used by
+ * {@link CompactLongPocketMap}. It starts as a {@code byte[]}. A value which doesn't fit is
+ * replaced by the type's minimum value as a marker, and kept in a small side table keyed by
+ * index. When the side table holds more than about 1 in 32 of the indices, so that it costs more
+ * than a wider array would, the values are copied to an array of twice the width.
+ *
+ * The side table is never shrunk: an index whose value fits again keeps its stale entry, which is
+ * only read when the marker is present. Widening drops the stale entries.
+ */
+/* package-private */ final class AdaptiveLongArray {
+  private final int length;
+  // bytes per element, one of 1, 2, 4, 8; only the array of that width is non-null
+  private int width;
+  private byte[] bytes;
+  private short[] shorts;
+  private int[] ints;
+  private long[] longs;
+
+  // open addressing with linear probing, holding index + 1 (0 is empty)
+  private int[] sideIndices;
+  private long[] sideValues;
+  private int sideCount;
+
+  AdaptiveLongArray(int length) {
+    this(length, 1);
+  }
+
+  AdaptiveLongArray(int length, int width) {
+    this.length = length;
+    this.allocate(width);
+  }
+
+  private void allocate(int width) {
+    this.width = width;
+    this.bytes = width == 1 ? new byte[this.length] : null;
+    this.shorts = width == 2 ? new short[this.length] : null;
+    this.ints = width == 4 ? new int[this.length] : null;
+    this.longs = width == 8 ? new long[this.length] : null;
+    this.sideIndices = new int[8];
+    this.sideValues = new long[8];
+    this.sideCount = 0;
+  }
+
+  int length() {
+    return this.length;
+  }
+
+  /** Returns the current bytes per element, not counting the side table. */
+  int width() {
+    return this.width;
+  }
+
+  long get(int i) {
+    switch (this.width) {
+      case 1: {
+        byte v = this.bytes[i];
+        return v != Byte.MIN_VALUE ? v : this.sideGet(i);
+      }
+      case 2: {
+        short v = this.shorts[i];
+        return v != Short.MIN_VALUE ? v : this.sideGet(i);
+      }
+      case 4: {
+        int v = this.ints[i];
+        return v != Integer.MIN_VALUE ? v : this.sideGet(i);
+      }
+      default:
+        return this.longs[i];
+    }
+  }
+
+  void set(int i, long value) {
+    switch (this.width) {
+      case 1:
+        if (value > Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+          this.bytes[i] = (byte) value;
+          return;
+        }
+        this.bytes[i] = Byte.MIN_VALUE;
+        break;
+      case 2:
+        if (value > Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+          this.shorts[i] = (short) value;
+          return;
+        }
+        this.shorts[i] = Short.MIN_VALUE;
+        break;
+      case 4:
+        if (value > Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+          this.ints[i] = (int) value;
+          return;
+        }
+        this.ints[i] = Integer.MIN_VALUE;
+        break;
+      default:
+        this.longs[i] = value;
+        return;
+    }
+    this.sidePut(i, value);
+  }
+
+  private long sideGet(int i) {
+    int mask = this.sideIndices.length - 1;
+    int h = mix(i) & mask;
+    while (this.sideIndices[h] != i + 1) {
+      // the marker is only written along with an entry, so the probe always finds it
+      h = (h + 1) & mask;
+    }
+    return this.sideValues[h];
+  }
+
+  private void sidePut(int i, long value) {
+    int mask = this.sideIndices.length - 1;
+    int h = mix(i) & mask;
+    while (this.sideIndices[h] != 0) {
+      if (this.sideIndices[h] == i + 1) {
+        this.sideValues[h] = value;
+        return;
+      }
+      h = (h + 1) & mask;
+    }
+    this.sideIndices[h] = i + 1;
+    this.sideValues[h] = value;
+    this.sideCount++;
+    if (this.sideCount > Math.max(8, this.length >>> 5)) {
+      this.widen();
+    } else if (this.sideCount > this.sideIndices.length / 2) {
+      this.growSide();
+    }
+  }
+
+  private static int mix(int i) {
+    int x = i * 0x9e3779b9;
+    return x ^ (x >>> 16);
+  }
+
+  private void growSide() {
+    int[] oldIndices = this.sideIndices;
+    long[] oldValues = this.sideValues;
+    this.sideIndices = new int[oldIndices.length << 1];
+    this.sideValues = new long[oldIndices.length << 1];
+    int mask = this.sideIndices.length - 1;
+    for (int j = 0; j < oldIndices.length; j++) {
+      if (oldIndices[j] != 0) {
+        int h = mix(oldIndices[j] - 1) & mask;
+        while (this.sideIndices[h] != 0) {
+          h = (h + 1) & mask;
+        }
+        this.sideIndices[h] = oldIndices[j];
+        this.sideValues[h] = oldValues[j];
+      }
+    }
+  }
+
+  private void widen() {
+    // decode into a wider copy, which may itself widen again, then take over its arrays
+    AdaptiveLongArray wider = new AdaptiveLongArray(this.length, this.width << 1);
+    for (int i = 0; i < this.length; i++) {
+      wider.set(i, this.get(i));
+    }
+    this.width = wider.width;
+    this.bytes = wider.bytes;
+    this.shorts = wider.shorts;
+    this.ints = wider.ints;
+    this.longs = wider.longs;
+    this.sideIndices = wider.sideIndices;
+    this.sideValues = wider.sideValues;
+    this.sideCount = wider.sideCount;
+  }
+}
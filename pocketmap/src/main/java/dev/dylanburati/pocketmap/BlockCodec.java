@@ -0,0 +1,89 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses independent blocks of a snapshot stream, for {@link CompressedChannels}. The
+ * methods are called from several threads at once, so implementations must be stateless or
+ * thread-safe.
+ *
+ * Other compressors are easy to plug in; for example, with zstd-jni:
+ *
+ * <pre>{@code
+ * BlockCodec zstd = new BlockCodec() {
+ *   public byte[] compress(byte[] src, int offset, int length) {
+ *     return Zstd.compress(Arrays.copyOfRange(src, offset, offset + length), 3);
+ *   }
+ *   public void decompress(byte[] src, byte[] dest, int destLength) {
+ *     Zstd.decompressByteArray(dest, 0, destLength, src, 0, src.length);
+ *   }
+ * };
+ * }</pre>
+ */
+public interface BlockCodec {
+  byte[] compress(byte[] src, int offset, int length);
+
+  /**
+   * Decompresses all of {@code src} into the first {@code destLength} bytes of {@code dest}.
+   *
+   * @throws IOException if {@code src} is malformed or doesn't decompress to exactly
+   *    {@code destLength} bytes
+   */
+  void decompress(byte[] src, byte[] dest, int destLength) throws IOException;
+
+  static BlockCodec deflate() {
+    return deflate(Deflater.BEST_SPEED);
+  }
+
+  static BlockCodec deflate(int level) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("invalid deflate level");
+    }
+    return new BlockCodec() {
+      @Override
+      public byte[] compress(byte[] src, int offset, int length) {
+        Deflater deflater = new Deflater(level);
+        try {
+          deflater.setInput(src, offset, length);
+          deflater.finish();
+          ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+          byte[] chunk = new byte[65536];
+          while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+          }
+          return out.toByteArray();
+        } finally {
+          deflater.end();
+        }
+      }
+
+      @Override
+      public void decompress(byte[] src, byte[] dest, int destLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+          inflater.setInput(src);
+          int n = 0;
+          while (n < destLength && !inflater.finished()) {
+            int read = inflater.inflate(dest, n, destLength - n);
+            if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+              break;
+            }
+            n += read;
+          }
+          if (n != destLength) {
+            throw new IOException("compressed block has the wrong length");
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("malformed compressed block", e);
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+}
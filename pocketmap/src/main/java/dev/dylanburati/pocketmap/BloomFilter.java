@@ -0,0 +1,62 @@
+package dev.dylanburati.pocketmap;
+
+import java.util.Arrays;
+
+/**
+ * Blocked Bloom filter over 32-bit key hashes, used by {@code setMembershipFilter}. Each hash
+ * selects one 512-bit block, the size of a cache line, and sets or tests 6 bits in it, so a
+ * lookup reads one cache line no matter how large the filter is. With 8 bits per table slot and
+ * the table at most 7/8 full, the false positive rate is at most about 2%.
+ */
+/* package-private */ final class BloomFilter {
+  private static final int BLOCK_BITS = 9;
+  private static final int BITS_PER_HASH = 6;
+
+  private final long[] words;
+  private final int blockMask;
+
+  /** Creates an empty filter sized for a table with {@code capacity} slots. */
+  BloomFilter(int capacity) {
+    int blocks = Math.max(1, capacity >>> 6);
+    this.words = new long[blocks << (BLOCK_BITS - 6)];
+    this.blockMask = blocks - 1;
+  }
+
+  private static long mix(int hash) {
+    // murmur3 fmix64, since the hasher's output may not be well mixed
+    long x = hash & 0xffffffffL;
+    x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+    x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return x ^ (x >>> 33);
+  }
+
+  void add(int hash) {
+    long x = mix(hash);
+    int base = ((int) (x >>> 40) & this.blockMask) << (BLOCK_BITS - 6);
+    // the positions in the block come from the high bits of another product, which depend on
+    // all bits of x, rather than from the bits which chose the block
+    long y = x * 0x9e3779b97f4a7c15L;
+    for (int i = 1; i <= BITS_PER_HASH; i++) {
+      int bit = (int) (y >>> (64 - i * BLOCK_BITS)) & ((1 << BLOCK_BITS) - 1);
+      this.words[base + (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /** Returns false if no hash equal to {@code hash} was added. */
+  boolean mightContain(int hash) {
+    long x = mix(hash);
+    int base = ((int) (x >>> 40) & this.blockMask) << (BLOCK_BITS - 6);
+    long y = x * 0x9e3779b97f4a7c15L;
+    for (int i = 1; i <= BITS_PER_HASH; i++) {
+      int bit = (int) (y >>> (64 - i * BLOCK_BITS)) & ((1 << BLOCK_BITS) - 1);
+      if ((this.words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void clear() {
+    Arrays.fill(this.words, 0L);
+  }
+}
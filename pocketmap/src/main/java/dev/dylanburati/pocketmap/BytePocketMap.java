@@ -1,5 +1,15 @@
 package dev.dylanburati.pocketmap;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.AbstractCollection;
@@ -13,6 +23,9 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -28,9 +41,17 @@ import static dev.dylanburati.pocketmap.KeyStorage.*;
  *
  * The map doesn't attempt to reclaim the buffer space occupied by deleted keys.
  * To do this manually, clone the map.
+ *
+ * Java serialization writes the key and value arrays and the used part of the key storage in
+ * bulk, along with the {@link Hasher}, which must be serializable if it isn't the default.
  */
-public class BytePocketMap extends AbstractMap<byte[], Byte> {
+public class BytePocketMap extends AbstractMap<byte[], Byte> implements Serializable {
+  private static final long serialVersionUID = 1L;
   private static final int DEFAULT_CAPACITY = 65536;
+  private static final int PARALLEL_REHASH_THRESHOLD = 1 << 16;
+  private static final int PARALLEL_REHASH_CHUNK = 1 << 13;
+  private static final int DELTA_PAGE_BITS = 12;
+  private static final VarHandle KEYS_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
   private final Hasher hasher;
   private final KeyStorage keyStorage;
   // INVARIANT 0: keys.length is a power of 2
@@ -45,6 +66,13 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
   private int size;
   private int tombstoneCount;
   private int rehashCount;
+  private ForkJoinPool rehashPool;
+  // one bit per page of 4096 slots whose keys or values changed since the last checkpoint, or
+  // null if there hasn't been a checkpoint
+  private long[] dirtyPages;
+  private long checkpointStorageEnd;
+  // hashes of the keys added since the last rehash, or null if not enabled
+  private BloomFilter membershipFilter;
 
   public BytePocketMap() {
     this(DEFAULT_CAPACITY);
@@ -73,14 +101,14 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     this.tombstoneCount = 0;
   }
 
-  private BytePocketMap(final KeyStorage keyStorage, long[] keys, byte[] values, int size) {
-    // clone constructor, invariants are the responsibility of clone()
+  private BytePocketMap(final KeyStorage keyStorage, long[] keys, byte[] values, int size, int tombstoneCount) {
+    // clone and snapshot constructor, invariants are the responsibility of the caller
     this.hasher = keyStorage.hasher;
     this.keyStorage = keyStorage;
     this.keys = keys;
     this.values = values;
     this.size = size;
-    this.tombstoneCount = 0;
+    this.tombstoneCount = tombstoneCount;
   }
 
   public static StringWrapper newUtf8() {
@@ -93,6 +121,140 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     return new StringWrapper(new BytePocketMap(initialCapacity, hasher), StandardCharsets.UTF_8);
   }
 
+  /** Builds a map from parallel arrays of keys and values, as in {@link #build}. */
+  public static StringWrapper buildUtf8(String[] keys, byte[] values) {
+    byte[][] encoded = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      encoded[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+    }
+    return build(encoded, values).asUtf8();
+  }
+
+  /** Returns a view of this map which converts string keys to UTF-8. */
+  public StringWrapper asUtf8() {
+    return new StringWrapper(this, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builds a map from parallel arrays of keys and values, which is faster than inserting them one
+   * at a time when all of them are known up front. The table is sized for every key at the start,
+   * and the keys are radix sorted by their home slot in two passes, then inserted in that order.
+   * So the table is filled from front to back, and the key storage is laid out in table order. If
+   * some keys are equal, the value of the last one is kept.
+   */
+  public static BytePocketMap build(byte[][] keys, byte[] values) {
+    return build(keys, values, DefaultHasher.instance());
+  }
+
+  public static BytePocketMap build(byte[][] keys, byte[] values, final Hasher hasher) {
+    if (keys.length != values.length) {
+      throw new IllegalArgumentException("expected keys and values of the same length");
+    }
+    int count = keys.length;
+    BytePocketMap map = new BytePocketMap(count + count / 7 + 1, hasher);
+    int[] hashes = new int[count];
+    for (int i = 0; i < count; i++) {
+      hashes[i] = hasher.hashBytes(keys[i]);
+    }
+    int mask = map.keys.length - 1;
+    int lowBits = Integer.bitCount(mask) / 2;
+    // two stable passes, so equal keys stay in their original order
+    int[] byLow = new int[count];
+    partitionBySlot(hashes, null, byLow, 0, (1 << lowBits) - 1);
+    int[] order = new int[count];
+    partitionBySlot(hashes, byLow, order, lowBits, mask >>> lowBits);
+    for (int i : order) {
+      int idx = map.readIndex(hashes[i], keys[i]);
+      if (idx < 0) {
+        // the table is presized, so this never needs to resize or reuse a tombstone
+        idx = -idx - 1;
+        map.keys[idx] = map.keyStorage.store(keys[i]);
+        map.size++;
+      }
+      map.values[idx] = values[i];
+    }
+    return map;
+  }
+
+  // Counting sort of the indices in src (or 0..hashes.length-1 if null) into dest, by the bits of
+  // the hash selected by shift and bucketMask
+  private static void partitionBySlot(int[] hashes, int[] src, int[] dest, int shift, int bucketMask) {
+    int[] starts = new int[bucketMask + 2];
+    for (int j = 0; j < dest.length; j++) {
+      int i = src == null ? j : src[j];
+      starts[((hashes[i] >>> shift) & bucketMask) + 1]++;
+    }
+    for (int b = 0; b <= bucketMask; b++) {
+      starts[b + 1] += starts[b];
+    }
+    for (int j = 0; j < dest.length; j++) {
+      int i = src == null ? j : src[j];
+      dest[starts[(hashes[i] >>> shift) & bucketMask]++] = i;
+    }
+  }
+
+  // Returns the indices of the live slots, sorted by where their keys are in the key storage
+  private int[] storageOrder() {
+    int[] order = new int[this.size];
+    int n = 0;
+    long maxPosition = 0;
+    for (int i = 0; i < this.keys.length; i++) {
+      if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
+        order[n++] = i;
+        maxPosition = Math.max(maxPosition, KeyStorage.position(this.keys[i]));
+      }
+    }
+    int bits = 64 - Long.numberOfLeadingZeros(maxPosition);
+    int digitBits = Math.min(16, Math.max(1, bits));
+    int digitMask = (1 << digitBits) - 1;
+    int[] starts = new int[digitMask + 2];
+    int[] tmp = new int[n];
+    // LSD radix sort, where each pass is stable
+    for (int shift = 0; shift < bits; shift += digitBits) {
+      Arrays.fill(starts, 0);
+      for (int i : order) {
+        starts[((int) (KeyStorage.position(this.keys[i]) >>> shift) & digitMask) + 1]++;
+      }
+      for (int b = 0; b <= digitMask; b++) {
+        starts[b + 1] += starts[b];
+      }
+      for (int i : order) {
+        tmp[starts[(int) (KeyStorage.position(this.keys[i]) >>> shift) & digitMask]++] = i;
+      }
+      int[] swap = order;
+      order = tmp;
+      tmp = swap;
+    }
+    return order;
+  }
+
+  /**
+   * Sets the pool used to rehash large tables when the map resizes. Tables with at least 65536
+   * slots are split into ranges, and each worker moves the keys in its range to the new table,
+   * claiming slots with compare-and-set. The {@link Hasher} must be safe to call from the pool's
+   * threads.
+   *
+   * Pass {@code null} to rehash on the calling thread, which is the default.
+   */
+  public void setRehashPool(ForkJoinPool pool) {
+    this.rehashPool = pool;
+  }
+
+  /**
+   * Enables or disables a blocked Bloom filter over the hashes of the keys, which lets
+   * {@code get} and {@code containsKey} return for most absent keys after reading one cache line,
+   * without probing the table or comparing keys. It takes 1 byte per slot, and is rebuilt when
+   * the map resizes. Removed keys stay in the filter until then, which only makes it less
+   * effective. Worth enabling when most lookups are for keys which aren't in the map.
+   */
+  public void setMembershipFilter(boolean enabled) {
+    if (!enabled) {
+      this.membershipFilter = null;
+    } else if (this.membershipFilter == null) {
+      this.rebuildMembershipFilter();
+    }
+  }
+
   @Override
   public int size() {
     return this.size;
@@ -108,11 +270,11 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     if (!(key instanceof byte[])) {
       return false;
     }
-    return this.readIndex((byte[]) key) >= 0;
+    return this.lookupIndex((byte[]) key) >= 0;
   }
 
   private boolean containsEntry(byte[] key, Byte value) {
-    int idx = this.readIndex(key);
+    int idx = this.lookupIndex(key);
     return idx >= 0 && this.values[idx] == value;
   }
 
@@ -143,7 +305,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
   }
 
   private Byte getImpl(byte[] key, Byte defaultValue) {
-    int idx = this.readIndex((byte[]) key);
+    int idx = this.lookupIndex(key);
     if (idx < 0) {
       return defaultValue;
     }
@@ -167,6 +329,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
       Byte prev = this.values[idx];
       if (shouldReplace) {
         this.values[idx] = value;
+        this.markDirty(idx);
       }
       return prev;
     }
@@ -180,6 +343,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     if (idx >= 0) {
       Byte prev = this.values[idx];
       this.values[idx] = value;
+      this.markDirty(idx);
       return prev;
     }
     return null;
@@ -190,6 +354,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     int idx = this.readIndex(key);
     if (idx >= 0 && this.values[idx] == (Byte) oldValue) {
       this.values[idx] = newValue;
+      this.markDirty(idx);
       return true;
     }
     return false;
@@ -260,6 +425,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
         result = remappingFunction.apply(key, this.values[idx]);
         if (result != null) {
           this.values[idx] = result;
+          this.markDirty(idx);
         } else {
           this.removeByIndex(idx);
         }
@@ -287,6 +453,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
       Byte result = remappingFunction.apply(this.values[idx], value);
       if (result != null) {
         this.values[idx] = result;
+        this.markDirty(idx);
       } else {
         this.removeByIndex(idx);
       }
@@ -303,6 +470,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
       if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
         byte[] k = this.keyStorage.load(this.keys[i]);
         this.values[i] = function.apply(k, this.values[i]);
+        this.markDirty(i);
       }
     }
   }
@@ -310,6 +478,10 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
   @Override
   public void clear() {
     Arrays.fill(this.keys, 0L);
+    this.markAllDirty();
+    if (this.membershipFilter != null) {
+      this.membershipFilter.clear();
+    }
     // INVARIANT 2 upheld
     this.size = 0;
     this.tombstoneCount = 0;
@@ -330,6 +502,82 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     return new EntrySet(this);
   }
 
+  /**
+   * Returns an iterator over the entries which tolerates modification of the map, including
+   * resizes. It keeps walking the key and value arrays which were current when it was created, so
+   * it never throws {@link ConcurrentModificationException}, but it may or may not reflect
+   * changes made after that. Each entry holds the value at the time it was returned.
+   *
+   * A scan can interleave with writes without copying the map, at the cost of keeping the old
+   * arrays reachable until the iterator is discarded.
+   */
+  public Iterator<Map.Entry<byte[], Byte>> weakEntryIterator() {
+    return new WeakEntryIterator(this);
+  }
+
+  /**
+   * Returns an iterator over the entries in the order their keys were stored, which is insertion
+   * order for maps filled by {@code put} (a key which is removed and put again moves to the end).
+   * The keys are read from the key storage front to back, so full scans of large maps touch memory
+   * sequentially instead of jumping around as {@link #entrySet()} does. Creating the iterator radix
+   * sorts the live slots, which needs 8 bytes per entry plus 256 KiB of buckets while sorting; the
+   * iterator keeps 4 bytes per entry.
+   */
+  public Iterator<Map.Entry<byte[], Byte>> storageOrderIterator() {
+    return new StorageOrderEntryIterator(this);
+  }
+
+  /**
+   * Returns a read-only copy of this map, indexed by a minimal perfect hash function. It has no
+   * empty slots and no probing: a lookup hashes the key, finds its index in a few bit arrays, and
+   * compares the key stored at that index. The index takes about 5 bits per key, so the copy is
+   * smaller than this map, which keeps at least 1/8 of its slots empty.
+   */
+  public Frozen freezePerfect() {
+    // copied in storage order, so the frozen keys are read from the storage sequentially
+    int[] slots = this.storageOrder();
+    long[] keyRefs = new long[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      keyRefs[i] = this.keys[slots[i]];
+    }
+    int[] indices = new int[slots.length];
+    PerfectHashIndex index = PerfectHashIndex.build(this.keyStorage, keyRefs, indices);
+    byte[] frozenValues = new byte[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      frozenValues[indices[i]] = this.values[slots[i]];
+    }
+    return new Frozen(index, frozenValues);
+  }
+
+  /**
+   * Returns a read-only copy of this map with its keys sorted by their bytes as unsigned values,
+   * which supports {@link Sorted#range} and {@link Sorted#prefixScan}. The keys are front coded
+   * in blocks of 16, so a prefix shared by neighboring keys is stored once instead of once per
+   * key, and the copy doesn't need a slot table. Lookups are a binary search.
+   */
+  public Sorted freezeSorted() {
+    int[] slots = this.storageOrder();
+    long[] keyRefs = new long[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      keyRefs[i] = this.keys[slots[i]];
+    }
+    int[] order = new int[slots.length];
+    FrontCodedKeys sortedKeys = FrontCodedKeys.build(this.keyStorage, keyRefs, order);
+    byte[] sortedValues = new byte[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      sortedValues[i] = this.values[slots[order[i]]];
+    }
+    return new Sorted(sortedKeys, sortedValues);
+  }
+
+  private Object writeReplace() {
+    return new SerializedForm(this);
+  }
+
+  private void readObject(ObjectInputStream in) throws InvalidObjectException {
+    throw new InvalidObjectException("expected SerializedForm");
+  }
+
   /**
    * Creates a shallow clone of this map, with separate key storage.
    */
@@ -338,15 +586,166 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     long[] keysClone = new long[this.keys.length];
     byte[] valuesClone = Arrays.copyOf(this.values, this.values.length);
     KeyStorage newKeyStorage = new KeyStorage(this.hasher);
+    // copied in storage order, so the clone iterates in the same storage order
+    for (int i : this.storageOrder()) {
+      // INVARIANT 2a upheld: equal size, keysClone[i] has low bits == 3 IFF keys[i] does
+      keysClone[i] = newKeyStorage.copyFrom(this.keyStorage, this.keys[i]);
+    }
+    // tombstones are kept, since keys which were inserted past them are only reachable through
+    // them
+    for (int i = 0; i < this.keys.length; i++) {
+      if ((this.keys[i] & ALIVE_H2_MASK) == 1) {
+        keysClone[i] = 1L;
+      }
+    }
+    // INVARIANT 2b upheld: equal tombstoneCount, keysClone[i] has low bits == 0 otherwise
+
+    BytePocketMap result = new BytePocketMap(newKeyStorage, keysClone, valuesClone, this.size, this.tombstoneCount);
+    result.setMembershipFilter(this.membershipFilter != null);
+    return result;
+  }
+
+  /**
+   * Writes a binary snapshot of the map to {@code ch}. The key array, the value array, and the
+   * used part of each key storage buffer are written as checksummed blocks, so the snapshot is
+   * roughly the size of the map in memory.
+   */
+  public void writeTo(WritableByteChannel ch) throws IOException {
+    int valueType = SnapshotIO.TYPE_BYTE;
+    SnapshotIO.Header header = new SnapshotIO.Header(
+        valueType, this.keys.length, this.size, this.tombstoneCount, this.keyStorage.bufferCount());
+    SnapshotIO.writeHeader(ch, header);
+    SnapshotIO.writeArray(ch, this.keys);
+    SnapshotIO.writeArray(ch, this.values);
+    this.keyStorage.writeTo(ch);
+    this.startDeltaTracking();
+  }
+
+  /**
+   * Reads a map written by {@link #writeTo}. The arrays are loaded as they were written, without
+   * rehashing, so the map must have been written with the default hasher.
+   *
+   * @throws IOException if the snapshot is truncated, corrupted, or has a different value type
+   */
+  public static BytePocketMap readFrom(ReadableByteChannel ch) throws IOException {
+    return readFrom(ch, DefaultHasher.instance());
+  }
+
+  /**
+   * Reads a map written by {@link #writeTo}, which must have been written with an equivalent
+   * {@code hasher}.
+   */
+  public static BytePocketMap readFrom(ReadableByteChannel ch, final Hasher hasher) throws IOException {
+    Objects.requireNonNull(hasher);
+    SnapshotIO.Header header = SnapshotIO.readHeader(ch, SnapshotIO.TYPE_BYTE);
+    long[] keys = new long[header.capacity];
+    SnapshotIO.readArray(ch, keys);
+    byte[] values = new byte[header.capacity];
+    SnapshotIO.readArray(ch, values);
+    KeyStorage keyStorage = KeyStorage.readFrom(ch, hasher, header.bufferCount);
+    // INVARIANT 0 and 1 checked by readHeader and readArray, 2 holds for the map that was written
+    BytePocketMap result = new BytePocketMap(keyStorage, keys, values, header.size, header.tombstoneCount);
+    result.startDeltaTracking();
+    return result;
+  }
+
+  /**
+   * Writes the changes since the last checkpoint to {@code ch}, and makes this the new
+   * checkpoint. A checkpoint is the state of the map when it was last written or read with
+   * {@link #writeTo}, {@link #readFrom}, or a delta method. The delta holds the pages of the
+   * table which changed, in units of 4096 slots, and the keys stored since, so its size is
+   * proportional to the churn rather than the size of the map. When the table resizes, the next
+   * delta holds the whole table, though still only the new keys.
+   *
+   * @throws IllegalStateException if there hasn't been a checkpoint
+   */
+  public void writeDeltaTo(WritableByteChannel ch) throws IOException {
+    if (this.dirtyPages == null) {
+      throw new IllegalStateException("no checkpoint to write a delta against");
+    }
+    int valueType = SnapshotIO.TYPE_BYTE;
+    SnapshotIO.Header header = new SnapshotIO.Header(
+        valueType, this.keys.length, this.size, this.tombstoneCount, this.keyStorage.bufferCount());
+    SnapshotIO.writeDeltaHeader(ch, header);
+    long[] dirty = new long[this.dirtyPages.length + 1];
+    dirty[0] = this.checkpointStorageEnd;
+    System.arraycopy(this.dirtyPages, 0, dirty, 1, this.dirtyPages.length);
+    SnapshotIO.writeArray(ch, dirty);
+    for (int page = 0; page << DELTA_PAGE_BITS < this.keys.length; page++) {
+      if ((this.dirtyPages[page >>> 6] & (1L << page)) != 0) {
+        int from = page << DELTA_PAGE_BITS;
+        int to = Math.min(this.keys.length, from + (1 << DELTA_PAGE_BITS));
+        SnapshotIO.writeArray(ch, this.keys, from, to);
+        SnapshotIO.writeArray(ch, this.values, from, to);
+      }
+    }
+    this.keyStorage.writeRangeTo(ch, this.checkpointStorageEnd);
+    this.startDeltaTracking();
+  }
+
+  /**
+   * Applies a delta written by {@link #writeDeltaTo}, which must have been written by a map
+   * whose checkpoint was equal to this map's. Snapshots are restored by calling {@link #readFrom}
+   * and then applying each delta in order. If this throws, the map may have been partially
+   * updated.
+   *
+   * @throws IOException if the delta is truncated, corrupted, or doesn't follow this map's state
+   */
+  public void readDeltaFrom(ReadableByteChannel ch) throws IOException {
+    SnapshotIO.Header header = SnapshotIO.readDeltaHeader(ch, SnapshotIO.TYPE_BYTE);
+    long[] dirty = new long[newDirtyPages(header.capacity).length + 1];
+    SnapshotIO.readArray(ch, dirty);
+    if (dirty[0] != this.keyStorage.end()) {
+      throw new IOException("delta doesn't follow this map's state");
+    }
+    if (header.capacity != this.keys.length) {
+      // the table was resized, so every page should be present
+      for (int page = 0; page << DELTA_PAGE_BITS < header.capacity; page++) {
+        if ((dirty[1 + (page >>> 6)] & (1L << page)) == 0) {
+          throw new IOException("delta is missing part of the table");
+        }
+      }
+      this.keys = new long[header.capacity];
+      this.values = new byte[header.capacity];
+    }
+    for (int page = 0; page << DELTA_PAGE_BITS < header.capacity; page++) {
+      if ((dirty[1 + (page >>> 6)] & (1L << page)) != 0) {
+        int from = page << DELTA_PAGE_BITS;
+        int to = Math.min(header.capacity, from + (1 << DELTA_PAGE_BITS));
+        SnapshotIO.readArray(ch, this.keys, from, to);
+        SnapshotIO.readArray(ch, this.values, from, to);
+      }
+    }
+    this.keyStorage.readRangeFrom(ch, header.bufferCount);
+    this.size = header.size;
+    this.tombstoneCount = header.tombstoneCount;
+    this.rehashCount++;
+    this.startDeltaTracking();
+    if (this.membershipFilter != null) {
+      this.rebuildMembershipFilter();
+    }
+  }
+
+  /**
+   * Writes each entry to {@code ch} as a line of text in the given format. Keys are copied
+   * directly from the key storage, so no strings or boxed values are allocated.
+   */
+  public void exportTo(WritableByteChannel ch, ExportFormat format) throws IOException {
+    ExportWriter w = new ExportWriter(ch, Objects.requireNonNull(format));
     for (int i = 0; i < this.keys.length; i++) {
       if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
-        // INVARIANT 2a upheld: equal size, keysClone[i] has low bits == 3 IFF keys[i] does
-        keysClone[i] = newKeyStorage.copyFrom(this.keyStorage, this.keys[i]);
+        this.keyStorage.exportKey(this.keys[i], w);
+        w.value(this.values[i]);
       }
-      // INVARIANT 2b upheld: zero tombstones, keysClone[i] has low bits == 0 otherwise
     }
+    w.flush();
+  }
 
-    return new BytePocketMap(newKeyStorage, keysClone, valuesClone, this.size);
+  public static StringWrapper readUtf8(ReadableByteChannel ch) throws IOException {
+    return new StringWrapper(readFrom(ch), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper readUtf8(ReadableByteChannel ch, final Hasher hasher) throws IOException {
+    return new StringWrapper(readFrom(ch, hasher), StandardCharsets.UTF_8);
   }
 
   // start of section adapted from
@@ -509,6 +908,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
       int index = this.getIndex();
       Byte prev = owner.values[index];
       owner.values[index] = value;
+      owner.markDirty(index);
       return prev;
     }
 
@@ -677,10 +1077,159 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     }
   }
 
+  protected static abstract class StorageOrderIterator {
+    protected final BytePocketMap owner;
+    private final int rehashCount;
+    private final int[] order;
+    private int index;
+    private int nextPos;
+
+    protected StorageOrderIterator(final BytePocketMap owner) {
+      this.owner = owner;
+      this.rehashCount = owner.rehashCount;
+      this.order = owner.storageOrder();
+      this.index = -1;
+      this.nextPos = this.findPos(0);
+    }
+
+    // skips slots whose keys were removed since the iterator was created
+    private final int findPos(int start) {
+      if (this.rehashCount != owner.rehashCount) {
+        throw new ConcurrentModificationException();
+      }
+      for (int pos = start; pos < this.order.length; pos++) {
+        if ((owner.keys[this.order[pos]] & ALIVE_FLAG) == ALIVE_FLAG) {
+          return pos;
+        }
+      }
+      return -1;
+    }
+
+    public final boolean hasNext() {
+      return this.nextPos != -1;
+    }
+
+    public final void remove() {
+      if (this.index < 0) {
+        throw new IllegalStateException();
+      }
+      owner.removeByIndex(this.index);
+      this.index = -1;
+    }
+
+    protected int advance() {
+      if (this.nextPos < 0) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.order[this.nextPos];
+      this.nextPos = this.findPos(this.nextPos + 1);
+      return this.index;
+    }
+  }
+
+  protected static class StorageOrderEntryIterator extends StorageOrderIterator implements Iterator<Map.Entry<byte[], Byte>> {
+    protected StorageOrderEntryIterator(final BytePocketMap owner) {
+      super(owner);
+    }
+    public final Map.Entry<byte[], Byte> next() {
+      int idx = this.advance();
+      return new Node(owner, idx);
+    }
+  }
+
+  protected static class StringWrapperStorageOrderEntryIterator extends StorageOrderIterator implements Iterator<Map.Entry<String, Byte>> {
+    private final Charset charset;
+
+    protected StringWrapperStorageOrderEntryIterator(final BytePocketMap owner, final Charset charset) {
+      super(owner);
+      this.charset = charset;
+    }
+    public final Map.Entry<String, Byte> next() {
+      int idx = this.advance();
+      return new StringWrapperNode(owner, this.charset, idx);
+    }
+  }
+
   // end section adapted from
   // https://github.com/apache/commons-collections/blob/master/src/main/java/org/apache/commons/collections4/map/AbstractHashedMap.java
 
-  public static class StringWrapper extends AbstractMap<String, Byte> {
+  protected static abstract class WeakIterator {
+    protected final BytePocketMap owner;
+    // arrays from when the iterator was created; after a resize the map no longer writes to them
+    protected final long[] keys;
+    protected final byte[] values;
+    private long lastKeyRef;
+    private int nextIndex;
+
+    protected WeakIterator(final BytePocketMap owner) {
+      this.owner = owner;
+      this.keys = owner.keys;
+      this.values = owner.values;
+      this.lastKeyRef = 0L;
+      this.nextIndex = this.findIndex(0);
+    }
+
+    private final int findIndex(int start) {
+      for (int src = start; src < this.keys.length; src++) {
+        if ((this.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
+          return src;
+        }
+      }
+      return -1;
+    }
+
+    public final boolean hasNext() {
+      return this.nextIndex != -1;
+    }
+
+    public final void remove() {
+      if (this.lastKeyRef == 0L) {
+        throw new IllegalStateException();
+      }
+      // the entry may have moved or been removed since it was returned
+      int idx = owner.findKeyRef(this.lastKeyRef);
+      if (idx >= 0) {
+        owner.removeByIndex(idx);
+      }
+      this.lastKeyRef = 0L;
+    }
+
+    protected int advance() {
+      if (this.nextIndex < 0) {
+        throw new NoSuchElementException();
+      }
+      int index = this.nextIndex;
+      this.lastKeyRef = this.keys[index];
+      this.nextIndex = this.findIndex(index + 1);
+      return index;
+    }
+  }
+
+  protected static class WeakEntryIterator extends WeakIterator implements Iterator<Map.Entry<byte[], Byte>> {
+    protected WeakEntryIterator(final BytePocketMap owner) {
+      super(owner);
+    }
+    public final Map.Entry<byte[], Byte> next() {
+      int idx = this.advance();
+      return new AbstractMap.SimpleImmutableEntry<>(owner.keyStorage.load(this.keys[idx]), this.values[idx]);
+    }
+  }
+
+  protected static class StringWrapperWeakEntryIterator extends WeakIterator implements Iterator<Map.Entry<String, Byte>> {
+    private final Charset charset;
+
+    protected StringWrapperWeakEntryIterator(final BytePocketMap owner, final Charset charset) {
+      super(owner);
+      this.charset = charset;
+    }
+    public final Map.Entry<String, Byte> next() {
+      int idx = this.advance();
+      return new AbstractMap.SimpleImmutableEntry<>(owner.keyStorage.loadAsString(this.keys[idx], this.charset), this.values[idx]);
+    }
+  }
+
+  public static class StringWrapper extends AbstractMap<String, Byte> implements Serializable {
+    private static final long serialVersionUID = 1L;
     protected final BytePocketMap inner;
     protected final Charset charset;
 
@@ -689,6 +1238,26 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
       this.charset = charset;
     }
 
+    private Object writeReplace() {
+      return new StringWrapperSerializedForm(inner, this.charset.name());
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+      throw new InvalidObjectException("expected StringWrapperSerializedForm");
+    }
+
+    /**
+     * Sets the pool used to rehash large tables when the map resizes. Pass {@code null} to
+     * rehash on the calling thread, which is the default.
+     */
+    public void setRehashPool(ForkJoinPool pool) {
+      inner.setRehashPool(pool);
+    }
+
+    public void setMembershipFilter(boolean enabled) {
+      inner.setMembershipFilter(enabled);
+    }
+
     @Override
     public int size() {
       return inner.size;
@@ -705,7 +1274,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
         return false;
       }
       byte[] keyContent = ((String) key).getBytes(this.charset);
-      return inner.readIndex(keyContent) >= 0;
+      return inner.lookupIndex(keyContent) >= 0;
     }
 
     @Override
@@ -799,6 +1368,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
         if ((inner.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
           String k = inner.keyStorage.loadAsString(inner.keys[i], this.charset);
           inner.values[i] = function.apply(k, inner.values[i]);
+          inner.markDirty(i);
         }
       }
     }
@@ -823,6 +1393,48 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
       return new EntrySet(this);
     }
 
+    /**
+     * Returns an iterator over the entries which tolerates modification of the map, including
+     * resizes. It may or may not reflect changes made after it was created.
+     */
+    public Iterator<Map.Entry<String, Byte>> weakEntryIterator() {
+      return new StringWrapperWeakEntryIterator(inner, this.charset);
+    }
+
+    /** Returns an iterator over the entries in the order their keys were stored. */
+    public Iterator<Map.Entry<String, Byte>> storageOrderIterator() {
+      return new StringWrapperStorageOrderEntryIterator(inner, this.charset);
+    }
+
+    /** Returns a read-only copy of this map, as in {@link #freezePerfect()} on the inner map. */
+    public FrozenStringWrapper freezePerfect() {
+      return new FrozenStringWrapper(inner.freezePerfect(), this.charset);
+    }
+
+    /** Returns a read-only copy of this map, as in {@link #freezeSorted()} on the inner map. */
+    public SortedStringWrapper freezeSorted() {
+      return new SortedStringWrapper(inner.freezeSorted(), this.charset);
+    }
+
+    /** Writes a binary snapshot of the map, which can be read with {@code readUtf8}. */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+      inner.writeTo(ch);
+    }
+
+    /** Writes each entry as a line of text, with keys in their stored encoding. */
+    public void exportTo(WritableByteChannel ch, ExportFormat format) throws IOException {
+      inner.exportTo(ch, format);
+    }
+
+    /** Writes the changes since the last checkpoint, which can be applied with {@code readDeltaFrom}. */
+    public void writeDeltaTo(WritableByteChannel ch) throws IOException {
+      inner.writeDeltaTo(ch);
+    }
+
+    public void readDeltaFrom(ReadableByteChannel ch) throws IOException {
+      inner.readDeltaFrom(ch);
+    }
+
     /**
      * Creates a shallow clone of this map, with separate key storage.
      */
@@ -970,11 +1582,67 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     return -h - 1;
   }
 
-  private int readIndex(byte[] keyContent) {
+  // same as above, for a key in a buffer such as a memory-mapped file
+  private int readIndex(int hash, ByteBuffer src, int offset, int length) {
+    int h = hash & (this.keys.length - 1);
+    int distance = 1;
+    int firstTombstone = -1;
+    while ((this.keys[h] & ALIVE_H2_MASK) > 0) {
+      if ((this.keys[h] & ALIVE_FLAG) == 0) {
+        // Tombstone
+        firstTombstone = firstTombstone < 0 ? h : firstTombstone;
+        h = (h + distance) & (this.keys.length - 1);
+        distance++;
+        continue;
+      }
+      if (this.keyStorage.equalsAt(this.keys[h], src, offset, length)) {
+        return h;
+      }
+      h = (h + distance) & (this.keys.length - 1);
+      distance++;
+    }
+    if (firstTombstone >= 0) {
+      return -firstTombstone - 1;
+    }
+    return -h - 1;
+  }
+
+  int readIndex(byte[] keyContent) {
     int hash = this.hasher.hashBytes(keyContent);
     return this.readIndex(hash, keyContent);
   }
 
+  // like readIndex, but returns -1 instead of the insertion index if the key isn't found, which
+  // lets most absent keys skip the probe when there's a membership filter
+  int lookupIndex(byte[] keyContent) {
+    int hash = this.hasher.hashBytes(keyContent);
+    if (this.membershipFilter != null && !this.membershipFilter.mightContain(hash)) {
+      return -1;
+    }
+    int idx = this.readIndex(hash, keyContent);
+    return idx >= 0 ? idx : -1;
+  }
+
+  /**
+   * Inserts or replaces the key {@code src[offset:offset+length]}, for loaders in this package
+   * which hash keys in bulk ahead of time. The key is copied straight from {@code src} to the key
+   * storage, and {@code src}'s position is moved.
+   */
+  void putHashed(int hash, ByteBuffer src, int offset, int length, byte value) {
+    int idx = this.readIndex(hash, src, offset, length);
+    if (idx >= 0) {
+      this.values[idx] = value;
+      this.markDirty(idx);
+    } else {
+      this.insertByIndex(-idx - 1, hash, this.keyStorage.store(src, offset, length), value);
+    }
+  }
+
+  // unboxed read for callers in this package which already have an index from readIndex
+  byte valueAt(int idx) {
+    return this.values[idx];
+  }
+
   // used by Node to refresh its known index on the first access after a rehash
   private int rereadIndex(long keyRef) {
     int hash = this.keyStorage.hashAt(keyRef);
@@ -990,6 +1658,57 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     return -1;
   }
 
+  // like rereadIndex, but probes past tombstones, since entries may have been removed since the
+  // last rehash
+  private int findKeyRef(long keyRef) {
+    int hash = this.keyStorage.hashAt(keyRef);
+    int h = hash & (keys.length - 1);
+    int distance = 1;
+    while ((keys[h] & ALIVE_H2_MASK) > 0) {
+      if (keys[h] == keyRef) {
+        return h;
+      }
+      h = (h + distance) & (keys.length - 1);
+      distance++;
+    }
+    return -1;
+  }
+
+  private void markDirty(int idx) {
+    if (this.dirtyPages != null) {
+      int page = idx >>> DELTA_PAGE_BITS;
+      this.dirtyPages[page >>> 6] |= 1L << page;
+    }
+  }
+
+  private void markAllDirty() {
+    if (this.dirtyPages != null) {
+      this.dirtyPages = newDirtyPages(this.keys.length);
+      Arrays.fill(this.dirtyPages, -1L);
+    }
+  }
+
+  // called after this map's state is saved or loaded, so the next delta is relative to it
+  private void startDeltaTracking() {
+    this.dirtyPages = newDirtyPages(this.keys.length);
+    this.checkpointStorageEnd = this.keyStorage.end();
+  }
+
+  private void rebuildMembershipFilter() {
+    BloomFilter filter = new BloomFilter(this.keys.length);
+    for (int i = 0; i < this.keys.length; i++) {
+      if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
+        filter.add(this.keyStorage.hashAt(this.keys[i]));
+      }
+    }
+    this.membershipFilter = filter;
+  }
+
+  private static long[] newDirtyPages(int cap) {
+    int pageCount = ((cap - 1) >>> DELTA_PAGE_BITS) + 1;
+    return new long[((pageCount - 1) >>> 6) + 1];
+  }
+
   /**
    * INVARIANT 2 upheld WHEN this.keys[idx] has low bits != 3 prior to calling
    *
@@ -997,14 +1716,22 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
    * we resize or purge tombstones.
    */
   private void insertByIndex(int idx, int hash, byte[] keyContent, byte value) {
+    this.insertByIndex(idx, hash, this.keyStorage.store(keyContent), value);
+  }
+
+  // same as above, with the key already in the key storage
+  private void insertByIndex(int idx, int hash, long keyRef, byte value) {
     boolean isTombstone = (this.keys[idx] & 1) == 1;
     if (!isTombstone && this.maybeSetCapacity()) {
       idx = this.insertionIndex(this.keys, hash);
       isTombstone = false;  // no tombstones following resize
     }
-    long keyRef = this.keyStorage.store(keyContent);
+    if (this.membershipFilter != null) {
+      this.membershipFilter.add(hash);
+    }
     this.keys[idx] = keyRef;
     this.values[idx] = value;
+    this.markDirty(idx);
     this.size++;
     if (isTombstone) {
       this.tombstoneCount--;
@@ -1016,6 +1743,7 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     // set alive bit 0, hash to 1 so not treated as empty
     this.keys[idx] ^= (this.keys[idx] ^ 0x01) & ALIVE_H2_MASK;
     // this.values[idx] = null;
+    this.markDirty(idx);
     this.size--;
     this.tombstoneCount++;
   }
@@ -1039,22 +1767,340 @@ public class BytePocketMap extends AbstractMap<byte[], Byte> {
     // System.err.format("%s setCapacity(%d) from (cap=%d,size=%d,dead=%d)\n", this, cap, this.keys.length, this.size, this.tombstoneCount);
     long[] nextKeys = new long[cap];
     byte[] nextValues = new byte[cap];
-    for (int src = 0; src < this.keys.length; src++) {
-      if ((this.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
-        // INVARIANT 2a upheld: this condition is true for `size` iterations, and each time
-        // the keyRef with ALIVE_FLAG is copied to a **different index** in nextKeys
-        //   - insertionIndex only returns idx with (keys[idx] & ALIVE_FLAG) == 0
-        int hash = this.keyStorage.hashAt(this.keys[src]);
-        int idx = this.insertionIndex(nextKeys, hash);
-        nextKeys[idx] = this.keys[src];
-        nextValues[idx] = this.values[src];
+    if (this.rehashPool != null && this.keys.length >= PARALLEL_REHASH_THRESHOLD) {
+      this.rehashPool.invoke(new RehashTask(this.keyStorage, this.keys, this.values, nextKeys, nextValues, 0, this.keys.length));
+    } else {
+      for (int src = 0; src < this.keys.length; src++) {
+        if ((this.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
+          // INVARIANT 2a upheld: this condition is true for `size` iterations, and each time
+          // the keyRef with ALIVE_FLAG is copied to a **different index** in nextKeys
+          //   - insertionIndex only returns idx with (keys[idx] & ALIVE_FLAG) == 0
+          int hash = this.keyStorage.hashAt(this.keys[src]);
+          int idx = this.insertionIndex(nextKeys, hash);
+          nextKeys[idx] = this.keys[src];
+          nextValues[idx] = this.values[src];
+        }
+        // INVARIANT 2b upheld: other indices in nextKeys are all zero
       }
-      // INVARIANT 2b upheld: other indices in nextKeys are all zero
     }
 
     this.keys = nextKeys;
     this.values = nextValues;
     this.tombstoneCount = 0;
     this.rehashCount++;
+    this.markAllDirty();
+    if (this.membershipFilter != null) {
+      this.rebuildMembershipFilter();
+    }
+  }
+
+  /**
+   * Moves the live keys in {@code [start, end)} of the old table to the new one. Since slots in
+   * the new table only ever go from empty to occupied, a key placed by CAS is reachable by the
+   * usual probe sequence no matter how the workers interleave.
+   */
+  private static class RehashTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final KeyStorage keyStorage;
+    private final long[] keys;
+    private final byte[] values;
+    private final long[] nextKeys;
+    private final byte[] nextValues;
+    private final int start;
+    private final int end;
+
+    RehashTask(KeyStorage keyStorage, long[] keys, byte[] values, long[] nextKeys, byte[] nextValues, int start, int end) {
+      this.keyStorage = keyStorage;
+      this.keys = keys;
+      this.values = values;
+      this.nextKeys = nextKeys;
+      this.nextValues = nextValues;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.end - this.start > PARALLEL_REHASH_CHUNK) {
+        int mid = (this.start + this.end) >>> 1;
+        invokeAll(
+          new RehashTask(this.keyStorage, this.keys, this.values, this.nextKeys, this.nextValues, this.start, mid),
+          new RehashTask(this.keyStorage, this.keys, this.values, this.nextKeys, this.nextValues, mid, this.end)
+        );
+        return;
+      }
+      int mask = this.nextKeys.length - 1;
+      for (int src = this.start; src < this.end; src++) {
+        long keyRef = this.keys[src];
+        if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG) {
+          int h = this.keyStorage.hashAt(keyRef) & mask;
+          int distance = 1;
+          while (!KEYS_HANDLE.compareAndSet(this.nextKeys, h, 0L, keyRef)) {
+            h = (h + distance) & mask;
+            distance++;
+          }
+          this.nextValues[h] = this.values[src];
+        }
+      }
+    }
+  }
+
+  /** Read-only map returned by {@link #freezePerfect()}. */
+  public static final class Frozen {
+    private final PerfectHashIndex index;
+    private final byte[] values;
+
+    private Frozen(PerfectHashIndex index, byte[] values) {
+      this.index = index;
+      this.values = values;
+    }
+
+    public int size() {
+      return this.values.length;
+    }
+
+    public boolean isEmpty() {
+      return this.values.length == 0;
+    }
+
+    public boolean containsKey(byte[] key) {
+      return this.index.indexOf(key) >= 0;
+    }
+
+    public byte get(byte[] key, byte defaultValue) {
+      int idx = this.index.indexOf(key);
+      return idx >= 0 ? this.values[idx] : defaultValue;
+    }
+
+    /** Calls {@code action} on each entry, in no particular order. */
+    public void forEach(BiConsumer<? super byte[], ? super Byte> action) {
+      for (int idx = 0; idx < this.values.length; idx++) {
+        action.accept(this.index.keyAt(idx), this.values[idx]);
+      }
+    }
+  }
+
+  public static final class FrozenStringWrapper {
+    private final Frozen inner;
+    private final Charset charset;
+
+    private FrozenStringWrapper(Frozen inner, Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public byte get(String key, byte defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    /** Calls {@code action} on each entry, in no particular order. */
+    public void forEach(BiConsumer<? super String, ? super Byte> action) {
+      for (int idx = 0; idx < inner.values.length; idx++) {
+        action.accept(inner.index.keyAt(idx, this.charset), inner.values[idx]);
+      }
+    }
+  }
+
+  /** Read-only map returned by {@link #freezeSorted()}. */
+  public static final class Sorted {
+    private final FrontCodedKeys keys;
+    private final byte[] values;
+
+    private Sorted(FrontCodedKeys keys, byte[] values) {
+      this.keys = keys;
+      this.values = values;
+    }
+
+    public int size() {
+      return this.values.length;
+    }
+
+    public boolean isEmpty() {
+      return this.values.length == 0;
+    }
+
+    public boolean containsKey(byte[] key) {
+      return this.keys.search(key) >= 0;
+    }
+
+    public byte get(byte[] key, byte defaultValue) {
+      int idx = this.keys.search(key);
+      return idx >= 0 ? this.values[idx] : defaultValue;
+    }
+
+    /**
+     * Returns the entries whose keys are at least {@code fromKey} and less than {@code toKey}, in
+     * order. A null bound leaves that end of the range open.
+     */
+    public Iterator<Map.Entry<byte[], Byte>> range(byte[] fromKey, byte[] toKey) {
+      int start = fromKey == null ? 0 : this.keys.lowerBound(fromKey);
+      int end = toKey == null ? this.keys.size() : this.keys.lowerBound(toKey);
+      return new SortedEntryIterator(this, start, Math.max(start, end));
+    }
+
+    /** Returns the entries whose keys start with {@code prefix}, in order. */
+    public Iterator<Map.Entry<byte[], Byte>> prefixScan(byte[] prefix) {
+      return new SortedEntryIterator(this, this.keys.lowerBound(prefix), this.keys.prefixEnd(prefix));
+    }
+  }
+
+  public static final class SortedStringWrapper {
+    private final Sorted inner;
+    private final Charset charset;
+
+    private SortedStringWrapper(Sorted inner, Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public byte get(String key, byte defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    /** Returns the entries with keys in {@code [fromKey, toKey)}, in the byte order of their encoding. */
+    public Iterator<Map.Entry<String, Byte>> range(String fromKey, String toKey) {
+      int start = fromKey == null ? 0 : inner.keys.lowerBound(fromKey.getBytes(this.charset));
+      int end = toKey == null ? inner.keys.size() : inner.keys.lowerBound(toKey.getBytes(this.charset));
+      return new SortedStringEntryIterator(inner, this.charset, start, Math.max(start, end));
+    }
+
+    /** Returns the entries whose keys start with {@code prefix}, in order. */
+    public Iterator<Map.Entry<String, Byte>> prefixScan(String prefix) {
+      byte[] encoded = prefix.getBytes(this.charset);
+      return new SortedStringEntryIterator(inner, this.charset, inner.keys.lowerBound(encoded), inner.keys.prefixEnd(encoded));
+    }
+  }
+
+  private static class SortedEntryIterator implements Iterator<Map.Entry<byte[], Byte>> {
+    private final Sorted owner;
+    private final FrontCodedKeys.Cursor cursor;
+    private final int end;
+    private int index;
+
+    SortedEntryIterator(Sorted owner, int start, int end) {
+      this.owner = owner;
+      this.cursor = owner.keys.cursor(start);
+      this.end = end;
+      this.index = start;
+    }
+
+    public boolean hasNext() {
+      return this.index < this.end;
+    }
+
+    public Map.Entry<byte[], Byte> next() {
+      if (this.index >= this.end) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.cursor.next() + 1;
+      return new AbstractMap.SimpleImmutableEntry<>(this.cursor.key(), owner.values[this.index - 1]);
+    }
+  }
+
+  private static class SortedStringEntryIterator implements Iterator<Map.Entry<String, Byte>> {
+    private final Sorted owner;
+    private final Charset charset;
+    private final FrontCodedKeys.Cursor cursor;
+    private final int end;
+    private int index;
+
+    SortedStringEntryIterator(Sorted owner, Charset charset, int start, int end) {
+      this.owner = owner;
+      this.charset = charset;
+      this.cursor = owner.keys.cursor(start);
+      this.end = end;
+      this.index = start;
+    }
+
+    public boolean hasNext() {
+      return this.index < this.end;
+    }
+
+    public Map.Entry<String, Byte> next() {
+      if (this.index >= this.end) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.cursor.next() + 1;
+      return new AbstractMap.SimpleImmutableEntry<>(this.cursor.key(this.charset), owner.values[this.index - 1]);
+    }
+  }
+
+  private static class SerializedForm implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private transient BytePocketMap map;
+
+    SerializedForm(BytePocketMap map) {
+      this.map = map;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      out.writeObject(map.hasher);
+      out.writeInt(map.size);
+      out.writeInt(map.tombstoneCount);
+      out.writeObject(map.keys);
+      out.writeObject(map.values);
+      map.keyStorage.writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      Hasher hasher = (Hasher) in.readObject();
+      int size = in.readInt();
+      int tombstoneCount = in.readInt();
+      long[] keys = (long[]) in.readObject();
+      byte[] values = (byte[]) in.readObject();
+      KeyStorage keyStorage = KeyStorage.readFrom(in, Objects.requireNonNull(hasher));
+      // INVARIANT 0 and 1 checked, 2 holds for the map that was written
+      if (keys.length < 8 || Integer.bitCount(keys.length) != 1 || values.length != keys.length
+          || size < 0 || tombstoneCount < 0 || (long) size + tombstoneCount > keys.length) {
+        throw new InvalidObjectException("invalid map arrays");
+      }
+      this.map = new BytePocketMap(keyStorage, keys, values, size, tombstoneCount);
+    }
+
+    private Object readResolve() {
+      return map;
+    }
+  }
+
+  private static class StringWrapperSerializedForm implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final BytePocketMap inner;
+    private final String charsetName;
+
+    StringWrapperSerializedForm(BytePocketMap inner, String charsetName) {
+      this.inner = inner;
+      this.charsetName = charsetName;
+    }
+
+    private Object readResolve() {
+      return new StringWrapper(inner, Charset.forName(charsetName));
+    }
   }
 }
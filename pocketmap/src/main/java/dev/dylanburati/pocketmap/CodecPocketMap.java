@@ -0,0 +1,206 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Map from byte array keys to values which are kept encoded, for values like strings or small
+ * records where {@link PocketMap} would hold one heap object per entry. A {@link ValueCodec}
+ * turns each value into bytes, which are appended to a value arena laid out like the key
+ * storage, and the table holds a reference into the arena next to each key reference. Values are
+ * decoded on every read.
+ *
+ * Replacing a value writes over the old bytes when the new encoding fits in the space first
+ * stored for the slot, and otherwise appends it. Like the key storage, the arena space of removed or outgrown values isn't
+ * reclaimed; to do this manually, copy the entries to a new map.
+ */
+public class CodecPocketMap<V> {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final ValueCodec<V> codec;
+  private final KeyStorage keyStorage;
+  private final KeyStorage valueStorage;
+  private final KeyTable table;
+  // INVARIANT 0: table.capacity() == valueRefs.length == valueCapacities.length
+  // references into valueStorage, meaningful only for live keys
+  private long[] valueRefs;
+  // bytes reserved in valueStorage at each valueRef, which stays >= the length in the ref after
+  // a shorter value is written over it
+  private int[] valueCapacities;
+
+  public CodecPocketMap(final ValueCodec<V> codec) {
+    this(codec, DEFAULT_CAPACITY);
+  }
+
+  public CodecPocketMap(final ValueCodec<V> codec, int initialCapacity) {
+    this(codec, initialCapacity, DefaultHasher.instance());
+  }
+
+  public CodecPocketMap(final ValueCodec<V> codec, int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.codec = Objects.requireNonNull(codec);
+    this.keyStorage = new KeyStorage(hasher);
+    // values are never hashed
+    this.valueStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 0);
+    this.valueRefs = new long[this.table.capacity()];
+    this.valueCapacities = new int[this.table.capacity()];
+  }
+
+  public static <V> StringWrapper<V> newUtf8(final ValueCodec<V> codec) {
+    return new StringWrapper<>(new CodecPocketMap<>(codec), StandardCharsets.UTF_8);
+  }
+  public static <V> StringWrapper<V> newUtf8(final ValueCodec<V> codec, int initialCapacity) {
+    return new StringWrapper<>(new CodecPocketMap<>(codec, initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static <V> StringWrapper<V> newUtf8(final ValueCodec<V> codec, int initialCapacity, final Hasher hasher) {
+    return new StringWrapper<>(new CodecPocketMap<>(codec, initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.table.readIndex(this.hasher.hashBytes(key), key) >= 0;
+  }
+
+  /** Returns the decoded value for {@code key}, or null if absent. */
+  public V get(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? this.decodeAt(idx) : null;
+  }
+
+  public V getOrDefault(byte[] key, V defaultValue) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? this.decodeAt(idx) : defaultValue;
+  }
+
+  /**
+   * Inserts or replaces the value for {@code key}. Values can't be null.
+   *
+   * @throws IllegalArgumentException if the encoded value is 1 MiB or longer, like the limit for keys
+   */
+  public void put(byte[] key, V value) {
+    byte[] encoded = this.codec.encode(Objects.requireNonNull(value));
+    if (encoded.length >= KeyStorage.KEY_LEN_LIMIT) {
+      throw new IllegalArgumentException("Value too long");
+    }
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx < 0) {
+      this.insertByIndex(-idx - 1, hash, key, encoded);
+      return;
+    }
+    int capacity = this.valueCapacities[idx];
+    if (encoded.length <= capacity) {
+      this.valueRefs[idx] = this.valueStorage.overwrite(this.valueRefs[idx], capacity, encoded);
+    } else {
+      this.valueRefs[idx] = this.valueStorage.store(encoded);
+      this.valueCapacities[idx] = encoded.length;
+    }
+  }
+
+  public boolean remove(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    // like the key storage, the value storage isn't reclaimed
+    this.table.clear();
+    this.valueRefs = new long[this.table.capacity()];
+    this.valueCapacities = new int[this.table.capacity()];
+  }
+
+  public void forEach(BiConsumer<? super byte[], ? super V> action) {
+    Objects.requireNonNull(action);
+    for (int idx = 0; idx < this.table.capacity(); idx++) {
+      if (this.table.isLive(idx)) {
+        action.accept(this.keyStorage.load(this.table.keyRef(idx)), this.decodeAt(idx));
+      }
+    }
+  }
+
+  /** Returns where the next appended value will be stored; see {@link KeyStorage#end}. */
+  long valueStorageEnd() {
+    return this.valueStorage.end();
+  }
+
+  private V decodeAt(int idx) {
+    long valueRef = this.valueRefs[idx];
+    return this.codec.decode(this.valueStorage.arrayOf(valueRef), KeyStorage.offsetOf(valueRef), KeyStorage.lengthOf(valueRef));
+  }
+
+  private void insertByIndex(int idx, int hash, byte[] keyContent, byte[] encoded) {
+    if (this.table.needsRehash(idx)) {
+      int[] dests = this.table.rehash();
+      this.valueRefs = KeyTable.move(this.valueRefs, dests, this.table.capacity());
+      this.valueCapacities = KeyTable.move(this.valueCapacities, dests, this.table.capacity());
+      idx = this.table.insertionIndex(hash);
+    }
+    // the value first, so that the slot isn't published if storing the key fails
+    long valueRef = this.valueStorage.store(encoded);
+    this.table.fill(idx, this.keyStorage.store(keyContent));
+    this.valueRefs[idx] = valueRef;
+    this.valueCapacities[idx] = encoded.length;
+  }
+
+  public static class StringWrapper<V> {
+    protected final CodecPocketMap<V> inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final CodecPocketMap<V> inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public V get(String key) {
+      return inner.get(key.getBytes(this.charset));
+    }
+
+    public V getOrDefault(String key, V defaultValue) {
+      return inner.getOrDefault(key.getBytes(this.charset), defaultValue);
+    }
+
+    public void put(String key, V value) {
+      inner.put(key.getBytes(this.charset), value);
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void clear() {
+      inner.clear();
+    }
+
+    public void forEach(BiConsumer<? super String, ? super V> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, v) -> action.accept(new String(k, this.charset), v));
+    }
+  }
+}
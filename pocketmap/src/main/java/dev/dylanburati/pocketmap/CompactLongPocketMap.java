@@ -0,0 +1,185 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Map from byte array keys to longs, for values which are mostly small, like word counts. Values
+ * are kept in an {@link AdaptiveLongArray}, which uses 1 byte per slot until enough values
+ * overflow it, then 2, 4 or 8. Compared to {@link LongPocketMap}, that saves up to 7 bytes per
+ * slot when nearly all values fit in a byte.
+ */
+public class CompactLongPocketMap {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  private final KeyTable table;
+  // INVARIANT 0: table.capacity() == values.length()
+  private AdaptiveLongArray values;
+
+  public CompactLongPocketMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CompactLongPocketMap(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  public CompactLongPocketMap(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 0);
+    this.values = new AdaptiveLongArray(this.table.capacity());
+  }
+
+  public static StringWrapper newUtf8() {
+    return new StringWrapper(new CompactLongPocketMap(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    return new StringWrapper(new CompactLongPocketMap(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    return new StringWrapper(new CompactLongPocketMap(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  /** Returns the number of bytes each slot currently uses for its value. */
+  public int valueWidth() {
+    return this.values.width();
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.table.readIndex(this.hasher.hashBytes(key), key) >= 0;
+  }
+
+  public long get(byte[] key, long defaultValue) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? this.values.get(idx) : defaultValue;
+  }
+
+  public void put(byte[] key, long value) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      this.values.set(idx, value);
+    } else {
+      this.insertByIndex(-idx - 1, hash, key, value);
+    }
+  }
+
+  /** Adds {@code delta} to the value for {@code key}, inserting it with a value of 0 if absent. */
+  public long add(byte[] key, long delta) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      long sum = this.values.get(idx) + delta;
+      this.values.set(idx, sum);
+      return sum;
+    }
+    this.insertByIndex(-idx - 1, hash, key, delta);
+    return delta;
+  }
+
+  public boolean remove(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      // so that a large removed value doesn't hold on to a side table entry past the next widening
+      this.values.set(idx, 0L);
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    this.table.clear();
+    this.values = new AdaptiveLongArray(this.table.capacity());
+  }
+
+  public void forEach(ObjLongConsumer<? super byte[]> action) {
+    Objects.requireNonNull(action);
+    for (int idx = 0; idx < this.table.capacity(); idx++) {
+      if (this.table.isLive(idx)) {
+        action.accept(this.keyStorage.load(this.table.keyRef(idx)), this.values.get(idx));
+      }
+    }
+  }
+
+  private void insertByIndex(int idx, int hash, byte[] keyContent, long value) {
+    if (this.table.needsRehash(idx)) {
+      int[] dests = this.table.rehash();
+      // the width carries over, since the value distribution doesn't change with the capacity
+      AdaptiveLongArray nextValues = new AdaptiveLongArray(this.table.capacity(), this.values.width());
+      for (int src = 0; src < dests.length; src++) {
+        if (dests[src] >= 0) {
+          nextValues.set(dests[src], this.values.get(src));
+        }
+      }
+      this.values = nextValues;
+      idx = this.table.insertionIndex(hash);
+    }
+    this.table.fill(idx, this.keyStorage.store(keyContent));
+    this.values.set(idx, value);
+  }
+
+  public static class StringWrapper {
+    protected final CompactLongPocketMap inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final CompactLongPocketMap inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public int valueWidth() {
+      return inner.valueWidth();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public long get(String key, long defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    public void put(String key, long value) {
+      inner.put(key.getBytes(this.charset), value);
+    }
+
+    public long add(String key, long delta) {
+      return inner.add(key.getBytes(this.charset), delta);
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void clear() {
+      inner.clear();
+    }
+
+    public void forEach(ObjLongConsumer<? super String> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, v) -> action.accept(new String(k, this.charset), v));
+    }
+  }
+}
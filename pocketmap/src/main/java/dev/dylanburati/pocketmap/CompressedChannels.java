@@ -0,0 +1,272 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32C;
+
+/**
+ * Channels which compress a stream, such as a map snapshot, in independent blocks.
+ *
+ * <pre>
+ * stream = MAGIC frame* end-frame
+ * frame  = u32 raw length, u32 compressed length, u32 crc32c(raw), u32 0, compressed bytes
+ * </pre>
+ *
+ * The stream is cut into 4 MiB blocks, so the key storage and value columns of a snapshot span
+ * many blocks, each compressed or decompressed by its own task on a fork-join pool. A bounded
+ * number of blocks is in flight at once, and they're written or returned in order. The end frame
+ * has a raw length of 0, so a truncated stream is detected.
+ *
+ * <pre>{@code
+ * try (WritableByteChannel ch = CompressedChannels.compressing(file, BlockCodec.deflate())) {
+ *   map.writeTo(ch);
+ * }
+ * }</pre>
+ */
+public final class CompressedChannels {
+  static final long MAGIC = 0x31706d63746b70L;  // "pktcmp1\0" in little-endian order
+  static final int BLOCK_SIZE = 1 << 22;
+  private static final int FRAME_HEADER = 16;
+
+  private CompressedChannels() {}
+
+  public static WritableByteChannel compressing(WritableByteChannel out, BlockCodec codec) throws IOException {
+    return compressing(out, codec, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Returns a channel which compresses blocks of its input on {@code pool}, and writes them to
+   * {@code out}. Closing it writes the remaining blocks, then closes {@code out}.
+   */
+  public static WritableByteChannel compressing(WritableByteChannel out, BlockCodec codec, ForkJoinPool pool) throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, MAGIC);
+    SnapshotIO.writeFully(out, magic);
+    return new CompressingChannel(Objects.requireNonNull(out), Objects.requireNonNull(codec), pool);
+  }
+
+  public static ReadableByteChannel decompressing(ReadableByteChannel in, BlockCodec codec) throws IOException {
+    return decompressing(in, codec, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Returns a channel which reads compressed blocks from {@code in}, and decompresses them on
+   * {@code pool} ahead of the reader. Closing it closes {@code in}.
+   *
+   * @throws IOException if {@code in} doesn't start with a compressed stream
+   */
+  public static ReadableByteChannel decompressing(ReadableByteChannel in, BlockCodec codec, ForkJoinPool pool) throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    SnapshotIO.readFully(in, magic);
+    if (magic.getLong(0) != MAGIC) {
+      throw new IOException("not a compressed pocketmap stream");
+    }
+    return new DecompressingChannel(Objects.requireNonNull(in), Objects.requireNonNull(codec), pool);
+  }
+
+  private static int maxInFlight(ForkJoinPool pool) {
+    return 2 * pool.getParallelism() + 1;
+  }
+
+  private static class Frame {
+    final int rawLength;
+    final int crc;
+    final byte[] data;
+
+    Frame(int rawLength, int crc, byte[] data) {
+      this.rawLength = rawLength;
+      this.crc = crc;
+      this.data = data;
+    }
+  }
+
+  private static class CompressingChannel implements WritableByteChannel {
+    private final WritableByteChannel out;
+    private final BlockCodec codec;
+    private final ForkJoinPool pool;
+    private final ArrayDeque<ForkJoinTask<Frame>> pending;
+    private byte[] block;
+    private int blockLength;
+    private boolean open;
+
+    CompressingChannel(WritableByteChannel out, BlockCodec codec, ForkJoinPool pool) {
+      this.out = out;
+      this.codec = codec;
+      this.pool = pool;
+      this.pending = new ArrayDeque<>();
+      this.block = new byte[BLOCK_SIZE];
+      this.blockLength = 0;
+      this.open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return this.open;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      if (!this.open) {
+        throw new ClosedChannelException();
+      }
+      int written = src.remaining();
+      while (src.hasRemaining()) {
+        int n = Math.min(src.remaining(), BLOCK_SIZE - this.blockLength);
+        src.get(this.block, this.blockLength, n);
+        this.blockLength += n;
+        if (this.blockLength == BLOCK_SIZE) {
+          this.submitBlock();
+        }
+      }
+      return written;
+    }
+
+    private void submitBlock() throws IOException {
+      byte[] raw = this.block;
+      int length = this.blockLength;
+      BlockCodec codec = this.codec;
+      this.pending.add(this.pool.submit(() -> {
+        CRC32C crc = new CRC32C();
+        crc.update(raw, 0, length);
+        return new Frame(length, (int) crc.getValue(), codec.compress(raw, 0, length));
+      }));
+      this.block = new byte[BLOCK_SIZE];
+      this.blockLength = 0;
+      while (this.pending.size() >= maxInFlight(this.pool)) {
+        this.writeFrame(this.pending.poll().join());
+      }
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(frame.rawLength);
+      header.putInt(frame.data.length);
+      header.putInt(frame.crc);
+      header.putInt(0);
+      header.flip();
+      SnapshotIO.writeFully(this.out, header);
+      SnapshotIO.writeFully(this.out, ByteBuffer.wrap(frame.data));
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!this.open) {
+        return;
+      }
+      this.open = false;
+      try {
+        if (this.blockLength > 0) {
+          this.submitBlock();
+        }
+        while (!this.pending.isEmpty()) {
+          this.writeFrame(this.pending.poll().join());
+        }
+        this.writeFrame(new Frame(0, 0, new byte[0]));
+      } finally {
+        this.block = null;
+        this.out.close();
+      }
+    }
+  }
+
+  private static class DecompressingChannel implements ReadableByteChannel {
+    private final ReadableByteChannel in;
+    private final BlockCodec codec;
+    private final ForkJoinPool pool;
+    private final ArrayDeque<ForkJoinTask<ByteBuffer>> pending;
+    private ByteBuffer current;
+    private boolean inputDone;
+    private boolean open;
+
+    DecompressingChannel(ReadableByteChannel in, BlockCodec codec, ForkJoinPool pool) {
+      this.in = in;
+      this.codec = codec;
+      this.pool = pool;
+      this.pending = new ArrayDeque<>();
+      this.current = ByteBuffer.allocate(0);
+      this.inputDone = false;
+      this.open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return this.open;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!this.open) {
+        throw new ClosedChannelException();
+      }
+      while (!this.current.hasRemaining()) {
+        this.fillPending();
+        if (this.pending.isEmpty()) {
+          return -1;
+        }
+        try {
+          this.current = this.pending.poll().join();
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+      int n = Math.min(dst.remaining(), this.current.remaining());
+      int limit = this.current.limit();
+      this.current.limit(this.current.position() + n);
+      dst.put(this.current);
+      this.current.limit(limit);
+      return n;
+    }
+
+    private void fillPending() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      while (!this.inputDone && this.pending.size() < maxInFlight(this.pool)) {
+        header.clear();
+        SnapshotIO.readFully(this.in, header);
+        int rawLength = header.getInt(0);
+        int compressedLength = header.getInt(4);
+        int crc = header.getInt(8);
+        if (rawLength == 0) {
+          this.inputDone = true;
+          return;
+        }
+        if (rawLength < 0 || rawLength > BLOCK_SIZE || compressedLength < 0 || compressedLength > 2 * BLOCK_SIZE) {
+          throw new IOException("invalid compressed frame");
+        }
+        byte[] data = new byte[compressedLength];
+        SnapshotIO.readFully(this.in, ByteBuffer.wrap(data));
+        BlockCodec codec = this.codec;
+        this.pending.add(this.pool.submit(() -> {
+          byte[] raw = new byte[rawLength];
+          try {
+            codec.decompress(data, raw, rawLength);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          CRC32C check = new CRC32C();
+          check.update(raw, 0, rawLength);
+          if ((int) check.getValue() != crc) {
+            throw new UncheckedIOException(new IOException("compressed block checksum mismatch"));
+          }
+          return ByteBuffer.wrap(raw);
+        }));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.open) {
+        this.open = false;
+        this.pending.clear();
+        this.in.close();
+      }
+    }
+  }
+}
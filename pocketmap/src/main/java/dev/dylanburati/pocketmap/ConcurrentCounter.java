@@ -0,0 +1,267 @@
+package dev.dylanburati.pocketmap;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Thread-safe map from strings to long counts, meant for many threads incrementing a
+ * Zipf-distributed key set.
+ *
+ * Each key is assigned a stable ordinal in an {@link IntPocketMap}, which is only locked for
+ * writing when a new key arrives. Counts live in fixed-size chunks indexed by ordinal, so they
+ * never move when the key table resizes, and updates to known keys are a single CAS. When that
+ * CAS fails, the slot is considered hot and later updates go to a {@link LongAdder}, which
+ * spreads them over per-thread cells. Reads fold the base count and the adder.
+ *
+ * Keys can't be removed.
+ */
+public class ConcurrentCounter {
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final VarHandle COUNTS_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final VarHandle CELLS_HANDLE = MethodHandles.arrayElementVarHandle(LongAdder[].class);
+
+  private final Hasher hasher;
+  private final StampedLock lock;
+  // guarded by lock
+  private final IntPocketMap ordinals;
+  // INVARIANT: chunks[o >>> CHUNK_BITS] != null for every ordinal o < size
+  private volatile Chunk[] chunks;
+  private volatile int size;
+
+  public ConcurrentCounter() {
+    this(65536);
+  }
+
+  public ConcurrentCounter(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  public ConcurrentCounter(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.lock = new StampedLock();
+    this.ordinals = new IntPocketMap(initialCapacity, hasher);
+    this.chunks = new Chunk[0];
+    this.size = 0;
+  }
+
+  public static StringWrapper newUtf8() {
+    return new StringWrapper(new ConcurrentCounter(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    return new StringWrapper(new ConcurrentCounter(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    return new StringWrapper(new ConcurrentCounter(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  /** Adds {@code delta} to the count for {@code key}, inserting it with a count of 0 if absent. */
+  public void add(byte[] key, long delta) {
+    int ordinal = this.findOrdinal(key);
+    if (ordinal < 0) {
+      ordinal = this.insertOrdinal(key);
+    }
+    this.chunks[ordinal >>> CHUNK_BITS].add(ordinal & CHUNK_MASK, delta);
+  }
+
+  public void increment(byte[] key) {
+    this.add(key, 1L);
+  }
+
+  /** Returns the count for {@code key}, or 0 if absent. */
+  public long get(byte[] key) {
+    int ordinal = this.findOrdinal(key);
+    if (ordinal < 0) {
+      return 0L;
+    }
+    return this.chunks[ordinal >>> CHUNK_BITS].sum(ordinal & CHUNK_MASK);
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.findOrdinal(key) >= 0;
+  }
+
+  /**
+   * Calls {@code action} with each key and its current count. Updates that happen during the
+   * call may or may not be reflected, but new keys are blocked until it returns.
+   */
+  public void forEach(ObjLongConsumer<? super byte[]> action) {
+    Objects.requireNonNull(action);
+    long stamp = this.lock.readLock();
+    try {
+      Chunk[] chunks = this.chunks;
+      this.ordinals.forEach((k, ordinal) -> {
+        action.accept(k, chunks[ordinal >>> CHUNK_BITS].sum(ordinal & CHUNK_MASK));
+      });
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  /** Copies the current counts into a single-threaded map. */
+  public LongPocketMap snapshot() {
+    int size = this.size;
+    // room for every key without a resize at the 7/8 load factor
+    LongPocketMap result = new LongPocketMap(size + size / 7 + 1, this.hasher);
+    this.forEach(result::put);
+    return result;
+  }
+
+  private int lookup(byte[] key) {
+    int idx = this.ordinals.lookupIndex(key);
+    return idx >= 0 ? this.ordinals.valueAt(idx) : -1;
+  }
+
+  private int findOrdinal(byte[] key) {
+    long stamp = this.lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      try {
+        int ordinal = this.lookup(key);
+        if (this.lock.validate(stamp)) {
+          return ordinal;
+        }
+      } catch (RuntimeException e) {
+        // the table was read mid-insert; the locked read below is consistent
+      }
+    }
+    stamp = this.lock.readLock();
+    try {
+      return this.lookup(key);
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  private int insertOrdinal(byte[] key) {
+    long stamp = this.lock.writeLock();
+    try {
+      int ordinal = this.lookup(key);
+      if (ordinal >= 0) {
+        return ordinal;
+      }
+      ordinal = this.size;
+      if ((ordinal & CHUNK_MASK) == 0) {
+        Chunk[] nextChunks = Arrays.copyOf(this.chunks, (ordinal >>> CHUNK_BITS) + 1);
+        nextChunks[ordinal >>> CHUNK_BITS] = new Chunk();
+        this.chunks = nextChunks;
+      }
+      this.ordinals.put(key, ordinal);
+      this.size = ordinal + 1;
+      return ordinal;
+    } finally {
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  private static class Chunk {
+    private static final VarHandle CELLS_FIELD;
+    static {
+      try {
+        CELLS_FIELD = MethodHandles.lookup().findVarHandle(Chunk.class, "cells", LongAdder[].class);
+      } catch (ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    private final long[] counts;
+    // allocated when the first slot in the chunk becomes hot
+    private volatile LongAdder[] cells;
+
+    Chunk() {
+      this.counts = new long[CHUNK_SIZE];
+    }
+
+    void add(int i, long delta) {
+      LongAdder[] cells = this.cells;
+      if (cells != null) {
+        LongAdder cell = (LongAdder) CELLS_HANDLE.getAcquire(cells, i);
+        if (cell != null) {
+          cell.add(delta);
+          return;
+        }
+      }
+      long prev = (long) COUNTS_HANDLE.getVolatile(this.counts, i);
+      if (COUNTS_HANDLE.compareAndSet(this.counts, i, prev, prev + delta)) {
+        return;
+      }
+      // contended, so move this slot's updates to striped cells
+      this.hotCell(i).add(delta);
+    }
+
+    long sum(int i) {
+      long result = (long) COUNTS_HANDLE.getVolatile(this.counts, i);
+      LongAdder[] cells = this.cells;
+      if (cells != null) {
+        LongAdder cell = (LongAdder) CELLS_HANDLE.getAcquire(cells, i);
+        if (cell != null) {
+          result += cell.sum();
+        }
+      }
+      return result;
+    }
+
+    private LongAdder hotCell(int i) {
+      LongAdder[] cells = this.cells;
+      if (cells == null) {
+        LongAdder[] created = new LongAdder[CHUNK_SIZE];
+        LongAdder[] witness = (LongAdder[]) CELLS_FIELD.compareAndExchange(this, null, created);
+        cells = witness == null ? created : witness;
+      }
+      LongAdder created = new LongAdder();
+      LongAdder witness = (LongAdder) CELLS_HANDLE.compareAndExchange(cells, i, null, created);
+      return witness == null ? created : witness;
+    }
+  }
+
+  public static class StringWrapper {
+    protected final ConcurrentCounter inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final ConcurrentCounter inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public void add(String key, long delta) {
+      inner.add(key.getBytes(this.charset), delta);
+    }
+
+    public void increment(String key) {
+      inner.add(key.getBytes(this.charset), 1L);
+    }
+
+    public long get(String key) {
+      return inner.get(key.getBytes(this.charset));
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public void forEach(ObjLongConsumer<? super String> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, count) -> action.accept(new String(k, this.charset), count));
+    }
+
+    /** Copies the current counts into a single-threaded map. */
+    public LongPocketMap.StringWrapper snapshot() {
+      return new LongPocketMap.StringWrapper(inner.snapshot(), this.charset);
+    }
+  }
+}
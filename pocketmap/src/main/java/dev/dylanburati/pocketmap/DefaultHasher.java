@@ -1,8 +1,10 @@
 package dev.dylanburati.pocketmap;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 
-/* package-private */ class DefaultHasher implements Hasher {
+/* package-private */ class DefaultHasher implements Hasher, Serializable {
+  private static final long serialVersionUID = 1L;
   private static DefaultHasher instance = null;
 
   private DefaultHasher() {}
@@ -14,6 +16,10 @@ import java.nio.ByteBuffer;
     return instance;
   }
 
+  private Object readResolve() {
+    return instance();
+  }
+
   @Override
   public int hashBytes(byte[] keyContent) {
     return this.hashImpl(keyContent, 0, keyContent.length);
@@ -21,7 +27,15 @@ import java.nio.ByteBuffer;
 
   @Override
   public int hashBuffer(ByteBuffer buf, int position, int length) {
-    return this.hashImpl(buf.array(), position, length);
+    if (buf.hasArray()) {
+      return this.hashImpl(buf.array(), buf.arrayOffset() + position, length);
+    }
+    // direct and mapped buffers, same as hashImpl
+    int h = 1;
+    for (int offset = position + length - 1; offset >= position; offset--) {
+      h = 31 * h + (int)buf.get(offset);
+    }
+    return h;
   }
 
   private int hashImpl(byte[] data, int position, int length) {
@@ -0,0 +1,278 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds maps from delimited text files, such as TSV, with one {@code key<delimiter>value} entry
+ * per line.
+ *
+ * The file is memory-mapped and split into chunks at line boundaries. Each chunk is parsed on a
+ * fork-join pool, straight from the mapped bytes: each key is hashed and recorded by its position,
+ * and the value is parsed without creating a {@code String} (except for floating point values).
+ * Then the entries are inserted into a map which is presized for all of them, and each key is
+ * copied once, from the mapped file to the map's key storage. The value is
+ * everything after the last delimiter on the line, so keys may contain the delimiter. Empty
+ * lines are skipped, a trailing {@code \r} is ignored, and later lines replace earlier ones with
+ * the same key.
+ */
+public final class DelimitedLoader {
+  private static final int CHUNK_SIZE = 1 << 26;
+
+  private enum ValueKind { INT, LONG, DOUBLE }
+
+  private DelimitedLoader() {}
+
+  /** @throws IOException if the file can't be read, or a line is malformed */
+  public static IntPocketMap loadInts(Path path, byte delimiter) throws IOException {
+    List<Chunk> chunks = parse(path, delimiter, ValueKind.INT, DefaultHasher.instance(), ForkJoinPool.commonPool());
+    int count = totalCount(chunks);
+    IntPocketMap map = new IntPocketMap(count + count / 7 + 1);
+    for (Chunk c : chunks) {
+      for (int i = 0; i < c.count; i++) {
+        map.putHashed(c.hashes[i], c.buf, c.keyOffsets[i], c.keyLengths[i], (int) c.values[i]);
+      }
+    }
+    return map;
+  }
+
+  /** @throws IOException if the file can't be read, or a line is malformed */
+  public static LongPocketMap loadLongs(Path path, byte delimiter) throws IOException {
+    List<Chunk> chunks = parse(path, delimiter, ValueKind.LONG, DefaultHasher.instance(), ForkJoinPool.commonPool());
+    int count = totalCount(chunks);
+    LongPocketMap map = new LongPocketMap(count + count / 7 + 1);
+    for (Chunk c : chunks) {
+      for (int i = 0; i < c.count; i++) {
+        map.putHashed(c.hashes[i], c.buf, c.keyOffsets[i], c.keyLengths[i], c.values[i]);
+      }
+    }
+    return map;
+  }
+
+  /** @throws IOException if the file can't be read, or a line is malformed */
+  public static DoublePocketMap loadDoubles(Path path, byte delimiter) throws IOException {
+    List<Chunk> chunks = parse(path, delimiter, ValueKind.DOUBLE, DefaultHasher.instance(), ForkJoinPool.commonPool());
+    int count = totalCount(chunks);
+    DoublePocketMap map = new DoublePocketMap(count + count / 7 + 1);
+    for (Chunk c : chunks) {
+      for (int i = 0; i < c.count; i++) {
+        map.putHashed(c.hashes[i], c.buf, c.keyOffsets[i], c.keyLengths[i], Double.longBitsToDouble(c.values[i]));
+      }
+    }
+    return map;
+  }
+
+  private static int totalCount(List<Chunk> chunks) {
+    long count = 0;
+    for (Chunk c : chunks) {
+      count += c.count;
+    }
+    if (count > 1 << 29) {
+      throw new IllegalArgumentException("too many lines");
+    }
+    return (int) count;
+  }
+
+  private static List<Chunk> parse(Path path, byte delimiter, ValueKind kind, Hasher hasher, ForkJoinPool pool) throws IOException {
+    if (delimiter == '\n' || delimiter == '\r') {
+      throw new IllegalArgumentException("delimiter can't be a line terminator");
+    }
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = ch.size();
+      List<Chunk> chunks = new ArrayList<>();
+      long start = 0;
+      while (start < size) {
+        long end = nextLineStart(ch, Math.min(start + CHUNK_SIZE, size), size);
+        if (end - start > Integer.MAX_VALUE) {
+          throw new IOException("line is too long");
+        }
+        chunks.add(new Chunk(ch.map(FileChannel.MapMode.READ_ONLY, start, end - start), start, delimiter, kind, hasher));
+        start = end;
+      }
+      try {
+        if (!chunks.isEmpty()) {
+          pool.invoke(new ParseTask(chunks, 0, chunks.size()));
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return chunks;
+    }
+  }
+
+  // returns the offset after the first newline at or after pos, or size if there is none
+  private static long nextLineStart(FileChannel ch, long pos, long size) throws IOException {
+    if (pos >= size) {
+      return size;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(4096);
+    while (pos < size) {
+      buf.clear();
+      int n = ch.read(buf, pos);
+      if (n <= 0) {
+        return size;
+      }
+      for (int i = 0; i < n; i++) {
+        if (buf.get(i) == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += n;
+    }
+    return size;
+  }
+
+  private static class ParseTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Chunk> chunks;
+    private final int start;
+    private final int end;
+
+    ParseTask(List<Chunk> chunks, int start, int end) {
+      this.chunks = chunks;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.end - this.start == 1) {
+        try {
+          this.chunks.get(this.start).parse();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return;
+      }
+      int mid = (this.start + this.end) >>> 1;
+      invokeAll(new ParseTask(this.chunks, this.start, mid), new ParseTask(this.chunks, mid, this.end));
+    }
+  }
+
+  private static class Chunk {
+    final MappedByteBuffer buf;
+    final long fileOffset;
+    final byte delimiter;
+    final ValueKind kind;
+    final Hasher hasher;
+    // keys are at keyOffsets[i] in buf
+    int[] keyOffsets;
+    int[] keyLengths;
+    int[] hashes;
+    long[] values;
+    int count;
+
+    Chunk(MappedByteBuffer buf, long fileOffset, byte delimiter, ValueKind kind, Hasher hasher) {
+      this.buf = buf;
+      this.fileOffset = fileOffset;
+      this.delimiter = delimiter;
+      this.kind = kind;
+      this.hasher = hasher;
+    }
+
+    void parse() throws IOException {
+      ByteBuffer buf = this.buf;
+      int limit = buf.limit();
+      this.keyOffsets = new int[64];
+      this.keyLengths = new int[64];
+      this.hashes = new int[64];
+      this.values = new long[64];
+      int lineStart = 0;
+      while (lineStart < limit) {
+        int lineEnd = lineStart;
+        int lastDelimiter = -1;
+        while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+          if (buf.get(lineEnd) == this.delimiter) {
+            lastDelimiter = lineEnd;
+          }
+          lineEnd++;
+        }
+        int next = lineEnd + 1;
+        if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') {
+          lineEnd--;
+        }
+        if (lineEnd == lineStart) {
+          lineStart = next;
+          continue;
+        }
+        if (lastDelimiter < 0) {
+          throw this.malformed(lineStart, "missing delimiter");
+        }
+        int keyLength = lastDelimiter - lineStart;
+        if (keyLength >= KeyStorage.KEY_LEN_LIMIT) {
+          throw this.malformed(lineStart, "key is too long");
+        }
+        if (this.count == this.values.length) {
+          int cap = this.count * 2;
+          this.keyOffsets = Arrays.copyOf(this.keyOffsets, cap);
+          this.keyLengths = Arrays.copyOf(this.keyLengths, cap);
+          this.hashes = Arrays.copyOf(this.hashes, cap);
+          this.values = Arrays.copyOf(this.values, cap);
+        }
+        this.values[this.count] = this.parseValue(lastDelimiter + 1, lineEnd, lineStart);
+        this.hashes[this.count] = this.hasher.hashBuffer(buf, lineStart, keyLength);
+        this.keyOffsets[this.count] = lineStart;
+        this.keyLengths[this.count] = keyLength;
+        this.count++;
+        lineStart = next;
+      }
+    }
+
+    private long parseValue(int start, int end, int lineStart) throws IOException {
+      if (this.kind == ValueKind.DOUBLE) {
+        byte[] text = new byte[end - start];
+        this.buf.position(start);
+        this.buf.get(text);
+        try {
+          return Double.doubleToRawLongBits(Double.parseDouble(new String(text, StandardCharsets.ISO_8859_1)));
+        } catch (NumberFormatException e) {
+          throw this.malformed(lineStart, "invalid number");
+        }
+      }
+      long min = this.kind == ValueKind.INT ? Integer.MIN_VALUE : Long.MIN_VALUE;
+      int i = start;
+      boolean negative = i < end && this.buf.get(i) == '-';
+      if (negative || (i < end && this.buf.get(i) == '+')) {
+        i++;
+      }
+      if (i == end) {
+        throw this.malformed(lineStart, "invalid number");
+      }
+      // accumulate negatively, so that the minimum value doesn't overflow
+      long result = 0;
+      for (; i < end; i++) {
+        int digit = this.buf.get(i) - '0';
+        if (digit < 0 || digit > 9) {
+          throw this.malformed(lineStart, "invalid number");
+        }
+        if (result < (min + digit) / 10) {
+          throw this.malformed(lineStart, "number out of range");
+        }
+        result = result * 10 - digit;
+      }
+      if (!negative) {
+        if (result == min) {
+          throw this.malformed(lineStart, "number out of range");
+        }
+        result = -result;
+      }
+      return result;
+    }
+
+    private IOException malformed(int lineStart, String reason) {
+      return new IOException(reason + " on line at byte offset " + (this.fileOffset + lineStart));
+    }
+  }
+}
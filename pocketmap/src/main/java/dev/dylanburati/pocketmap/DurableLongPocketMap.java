@@ -0,0 +1,278 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Map from strings to longs which survives crashes, by logging each mutation to a file in its
+ * directory.
+ *
+ * Log records are buffered in memory, and a background thread forces them to the device once
+ * per commit interval (group commit), so a crash loses at most the mutations from the last
+ * interval. A commit interval of zero forces the log after every mutation instead. Calling
+ * {@link #checkpoint()} saves a snapshot of the map and empties the log; on open, the log is
+ * replayed on top of the latest snapshot.
+ *
+ * Like the other maps, this isn't safe to modify from several threads at once.
+ */
+public class DurableLongPocketMap implements AutoCloseable {
+  static final String SNAPSHOT_FILE = "snapshot";
+  static final String LOG_FILE = "log";
+
+  private final Path dir;
+  private final LongPocketMap map;
+  private final WriteAheadLog log;
+  private final boolean syncEveryWrite;
+  private final ScheduledExecutorService committer;
+  private volatile IOException commitFailure;
+
+  private DurableLongPocketMap(Path dir, LongPocketMap map, WriteAheadLog log, Duration commitInterval) {
+    this.dir = dir;
+    this.map = map;
+    this.log = log;
+    this.syncEveryWrite = commitInterval.isZero();
+    if (this.syncEveryWrite) {
+      this.committer = null;
+    } else {
+      this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pocketmap-log-commit");
+        t.setDaemon(true);
+        return t;
+      });
+      long nanos = commitInterval.toNanos();
+      this.committer.scheduleWithFixedDelay(this::commit, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public static DurableLongPocketMap open(Path dir) throws IOException {
+    return open(dir, Duration.ofMillis(100));
+  }
+
+  public static DurableLongPocketMap open(Path dir, Duration commitInterval) throws IOException {
+    return open(dir, commitInterval, DefaultHasher.instance());
+  }
+
+  /**
+   * Opens the map stored in {@code dir}, creating the directory if needed.
+   *
+   * @throws IOException if the snapshot or log can't be read
+   */
+  public static DurableLongPocketMap open(Path dir, Duration commitInterval, final Hasher hasher) throws IOException {
+    Objects.requireNonNull(hasher);
+    if (commitInterval.isNegative()) {
+      throw new IllegalArgumentException("expected non-negative commitInterval");
+    }
+    Files.createDirectories(dir);
+    Path snapshotPath = dir.resolve(SNAPSHOT_FILE);
+    LongPocketMap map;
+    if (Files.exists(snapshotPath)) {
+      try (FileChannel ch = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+        map = LongPocketMap.readFrom(ch, hasher);
+      }
+    } else {
+      map = new LongPocketMap(8, hasher);
+    }
+    WriteAheadLog log = WriteAheadLog.open(dir.resolve(LOG_FILE), new WriteAheadLog.Visitor() {
+      @Override
+      public void put(byte[] key, long value) {
+        map.put(key, value);
+      }
+
+      @Override
+      public void remove(byte[] key) {
+        map.remove(key);
+      }
+    });
+    return new DurableLongPocketMap(dir, map, log, commitInterval);
+  }
+
+  public static StringWrapper openUtf8(Path dir) throws IOException {
+    return new StringWrapper(open(dir), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper openUtf8(Path dir, Duration commitInterval) throws IOException {
+    return new StringWrapper(open(dir, commitInterval), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.map.size();
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.map.lookupIndex(key) >= 0;
+  }
+
+  public long get(byte[] key, long defaultValue) {
+    int idx = this.map.lookupIndex(key);
+    return idx >= 0 ? this.map.valueAt(idx) : defaultValue;
+  }
+
+  /** Returns a read-only view of the current contents. */
+  public Map<byte[], Long> asMap() {
+    return Collections.unmodifiableMap(this.map);
+  }
+
+  public void put(byte[] key, long value) {
+    this.beforeWrite(key);
+    this.log.appendPut(key, value);
+    this.map.put(key, value);
+    this.afterWrite();
+  }
+
+  /**
+   * If {@code key} is absent, associates it with {@code value}, otherwise replaces its value with
+   * the result of {@code remappingFunction} applied to the old value and {@code value}. Returns
+   * the new value.
+   */
+  public long merge(byte[] key, long value, LongBinaryOperator remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    this.beforeWrite(key);
+    int idx = this.map.readIndex(key);
+    long next = idx >= 0 ? remappingFunction.applyAsLong(this.map.valueAt(idx), value) : value;
+    this.log.appendPut(key, next);
+    this.map.put(key, next);
+    this.afterWrite();
+    return next;
+  }
+
+  /** Removes {@code key}, and returns true if it was present. */
+  public boolean remove(byte[] key) {
+    if (this.map.readIndex(key) < 0) {
+      return false;
+    }
+    this.beforeWrite(key);
+    this.log.appendRemove(key);
+    this.map.remove(key);
+    this.afterWrite();
+    return true;
+  }
+
+  /** Forces every mutation so far to the device, without waiting for the next group commit. */
+  public void sync() throws IOException {
+    this.log.sync();
+  }
+
+  /**
+   * Saves a snapshot of the map and empties the log, so that the next open doesn't need to replay
+   * the mutations so far.
+   */
+  public void checkpoint() throws IOException {
+    Path tmp = this.dir.resolve(SNAPSHOT_FILE + ".tmp");
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      this.map.writeTo(ch);
+      ch.force(true);
+    }
+    Files.move(tmp, this.dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    // a crash here replays the old log onto the new snapshot, which is harmless since the
+    // records are idempotent
+    this.log.reset();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.committer != null) {
+      this.committer.shutdown();
+      try {
+        // a commit in progress must finish before the channel is closed under it
+        this.committer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        // close anyway; a commit in progress fails on the closed channel, after the final sync
+        // below has written everything
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.log.close();
+  }
+
+  // the log record is appended before the map is changed, so everything which can reject the
+  // mutation is checked here first
+  private void beforeWrite(byte[] key) {
+    IOException failure = this.commitFailure;
+    if (failure != null) {
+      throw new UncheckedIOException("log commit failed", failure);
+    }
+    if (key.length >= KeyStorage.KEY_LEN_LIMIT) {
+      throw new IllegalArgumentException("Key too long");
+    }
+  }
+
+  private void afterWrite() {
+    if (this.syncEveryWrite) {
+      try {
+        this.log.sync();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void commit() {
+    try {
+      this.log.sync();
+    } catch (IOException e) {
+      this.commitFailure = e;
+      this.committer.shutdown();
+    }
+  }
+
+  public static class StringWrapper implements AutoCloseable {
+    protected final DurableLongPocketMap inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final DurableLongPocketMap inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public long get(String key, long defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    public void put(String key, long value) {
+      inner.put(key.getBytes(this.charset), value);
+    }
+
+    public long merge(String key, long value, LongBinaryOperator remappingFunction) {
+      return inner.merge(key.getBytes(this.charset), value, remappingFunction);
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void sync() throws IOException {
+      inner.sync();
+    }
+
+    public void checkpoint() throws IOException {
+      inner.checkpoint();
+    }
+
+    @Override
+    public void close() throws IOException {
+      inner.close();
+    }
+  }
+}
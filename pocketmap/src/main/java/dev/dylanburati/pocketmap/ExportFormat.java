@@ -0,0 +1,24 @@
+package dev.dylanburati.pocketmap;
+
+/**
+ * Text formats for {@code exportTo}. Each entry is written on its own line, with the key bytes
+ * copied as they're stored (UTF-8 for maps created with {@code newUtf8}), and escaped only where
+ * the format requires it.
+ */
+public enum ExportFormat {
+  /**
+   * {@code key\tvalue}, with backslash, tab, newline and carriage return in keys written as
+   * {@code \\}, {@code \t}, {@code \n} and {@code \r}.
+   */
+  TSV,
+  /**
+   * {@code key,value}, with keys containing a comma, quote, newline or carriage return enclosed
+   * in quotes, and quotes doubled.
+   */
+  CSV,
+  /**
+   * {@code {"key":"...","value":...}}, with keys escaped as JSON strings. Non-finite floating
+   * point values are written as {@code null}.
+   */
+  NDJSON,
+}
@@ -0,0 +1,174 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats entries for {@code exportTo} into a buffer, which is written to the channel whenever
+ * it fills up. Each entry is a call to {@link #key} followed by a call to one of the value
+ * methods.
+ */
+/* package-private */ class ExportWriter {
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] JSON_KEY_START = "{\"key\":\"".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] JSON_VALUE_START = "\",\"value\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+  private final WritableByteChannel ch;
+  private final ExportFormat format;
+  private final ByteBuffer buf;
+  private final byte[] digits;
+
+  ExportWriter(WritableByteChannel ch, ExportFormat format) {
+    this.ch = ch;
+    this.format = format;
+    this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+    this.digits = new byte[20];
+  }
+
+  void key(byte[] src, int offset, int length) throws IOException {
+    int end = offset + length;
+    switch (this.format) {
+      case TSV:
+        for (int i = offset; i < end; i++) {
+          byte b = src[i];
+          byte escaped = b == '\\' ? (byte) '\\' : b == '\t' ? (byte) 't' : b == '\n' ? (byte) 'n' : b == '\r' ? (byte) 'r' : 0;
+          if (escaped == 0) {
+            this.put(b);
+          } else {
+            this.put((byte) '\\');
+            this.put(escaped);
+          }
+        }
+        this.put((byte) '\t');
+        break;
+      case CSV:
+        boolean quoted = false;
+        for (int i = offset; i < end && !quoted; i++) {
+          byte b = src[i];
+          quoted = b == ',' || b == '"' || b == '\n' || b == '\r';
+        }
+        if (quoted) {
+          this.put((byte) '"');
+          for (int i = offset; i < end; i++) {
+            if (src[i] == '"') {
+              this.put((byte) '"');
+            }
+            this.put(src[i]);
+          }
+          this.put((byte) '"');
+        } else {
+          this.put(src, offset, length);
+        }
+        this.put((byte) ',');
+        break;
+      case NDJSON:
+        this.put(JSON_KEY_START, 0, JSON_KEY_START.length);
+        for (int i = offset; i < end; i++) {
+          byte b = src[i];
+          if (b == '"' || b == '\\') {
+            this.put((byte) '\\');
+            this.put(b);
+          } else if (b >= 0 && b < 0x20) {
+            this.put((byte) '\\');
+            this.put((byte) 'u');
+            this.put((byte) '0');
+            this.put((byte) '0');
+            this.put(HEX[b >>> 4]);
+            this.put(HEX[b & 15]);
+          } else {
+            this.put(b);
+          }
+        }
+        this.put(JSON_VALUE_START, 0, JSON_VALUE_START.length);
+        break;
+    }
+  }
+
+  void value(long v) throws IOException {
+    if (v == Long.MIN_VALUE) {
+      this.ascii(Long.toString(v));
+    } else {
+      if (v < 0) {
+        this.put((byte) '-');
+        v = -v;
+      }
+      int n = 0;
+      do {
+        this.digits[n++] = (byte) ('0' + v % 10);
+        v /= 10;
+      } while (v != 0);
+      while (n > 0) {
+        this.put(this.digits[--n]);
+      }
+    }
+    this.endEntry();
+  }
+
+  void value(float v) throws IOException {
+    if (this.format == ExportFormat.NDJSON && !Float.isFinite(v)) {
+      this.put(NULL, 0, NULL.length);
+    } else {
+      this.ascii(Float.toString(v));
+    }
+    this.endEntry();
+  }
+
+  void value(double v) throws IOException {
+    if (this.format == ExportFormat.NDJSON && !Double.isFinite(v)) {
+      this.put(NULL, 0, NULL.length);
+    } else {
+      this.ascii(Double.toString(v));
+    }
+    this.endEntry();
+  }
+
+  void value(boolean v) throws IOException {
+    byte[] text = v ? TRUE : FALSE;
+    this.put(text, 0, text.length);
+    this.endEntry();
+  }
+
+  void flush() throws IOException {
+    this.buf.flip();
+    SnapshotIO.writeFully(this.ch, this.buf);
+    this.buf.clear();
+  }
+
+  private void endEntry() throws IOException {
+    if (this.format == ExportFormat.NDJSON) {
+      this.put((byte) '}');
+    }
+    this.put((byte) '\n');
+  }
+
+  private void ascii(String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      this.put((byte) s.charAt(i));
+    }
+  }
+
+  private void put(byte b) throws IOException {
+    if (!this.buf.hasRemaining()) {
+      this.flush();
+    }
+    this.buf.put(b);
+  }
+
+  private void put(byte[] src, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (!this.buf.hasRemaining()) {
+        this.flush();
+      }
+      int n = Math.min(length, this.buf.remaining());
+      this.buf.put(src, offset, n);
+      offset += n;
+      length -= n;
+    }
+  }
+}
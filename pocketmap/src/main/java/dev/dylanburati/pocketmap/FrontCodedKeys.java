@@ -0,0 +1,314 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted, front-coded key list, used by {@code freezeSorted}. Keys are sorted by their bytes as
+ * unsigned values, which for UTF-8 is the same as sorting by code point.
+ *
+ * The keys are stored in blocks of {@link #BLOCK_SIZE}. The first key of each block is stored in
+ * full, as a varint length and the key bytes. Each other key is stored as the varint length of
+ * the prefix it shares with the previous key, the varint length of the rest, and the rest of the
+ * bytes. A lookup binary searches the first keys of the blocks, then decodes one block.
+ *
+ * Like {@link KeyStorage}, the bytes are split into pages, so the total isn't limited by the
+ * maximum array length. Each block is in a single page.
+ */
+/* package-private */ final class FrontCodedKeys {
+  static final int BLOCK_SIZE = 16;
+  static final int PAGE_SIZE = KeyStorage.BUF_SIZE;
+
+  private final byte[][] pages;
+  private final int[] blockPages;
+  private final int[] blockOffsets;
+  private final int size;
+  private final int maxKeyLength;
+
+  private FrontCodedKeys(byte[][] pages, int[] blockPages, int[] blockOffsets, int size, int maxKeyLength) {
+    this.pages = pages;
+    this.blockPages = blockPages;
+    this.blockOffsets = blockOffsets;
+    this.size = size;
+    this.maxKeyLength = maxKeyLength;
+  }
+
+  /**
+   * Builds the list from the distinct keys {@code keyRefs} in {@code source}, and sets
+   * {@code order[i]} to the position in {@code keyRefs} of the {@code i}th smallest key.
+   */
+  static FrontCodedKeys build(KeyStorage source, long[] keyRefs, int[] order) {
+    return build(source, keyRefs, order, PAGE_SIZE);
+  }
+
+  // pageSize is only smaller in tests
+  static FrontCodedKeys build(KeyStorage source, long[] keyRefs, int[] order, int pageSize) {
+    int n = keyRefs.length;
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    sort(source, keyRefs, order, new int[n], 0, n);
+
+    int blockCount = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] blockPages = new int[blockCount];
+    int[] blockOffsets = new int[blockCount];
+    List<byte[]> pages = new ArrayList<>();
+    byte[] page = new byte[0];
+    int pagePos = 0;
+    // each block is encoded here, then copied to the last page, or a new one if it doesn't fit
+    byte[] block = new byte[64];
+    int pos = 0;
+    int maxKeyLength = 0;
+    byte[] prev = new byte[0];
+    for (int i = 0; i < n; i++) {
+      byte[] key = source.load(keyRefs[order[i]]);
+      maxKeyLength = Math.max(maxKeyLength, key.length);
+      int shared = 0;
+      if (i % BLOCK_SIZE != 0) {
+        shared = Arrays.mismatch(prev, key);
+        shared = shared < 0 ? key.length : shared;
+      }
+      // at most 16 keys of less than 1 MiB each, so this can't overflow
+      int needed = pos + 10 + key.length - shared;
+      if (needed > block.length) {
+        block = Arrays.copyOf(block, Math.max(needed, 2 * block.length));
+      }
+      if (i % BLOCK_SIZE != 0) {
+        pos = writeVarint(block, pos, shared);
+      }
+      pos = writeVarint(block, pos, key.length - shared);
+      System.arraycopy(key, shared, block, pos, key.length - shared);
+      pos += key.length - shared;
+      prev = key;
+      if (i % BLOCK_SIZE == BLOCK_SIZE - 1 || i == n - 1) {
+        if (page.length - pagePos < pos) {
+          page = new byte[Math.max(pageSize, pos)];
+          pagePos = 0;
+          pages.add(page);
+        }
+        blockPages[i / BLOCK_SIZE] = pages.size() - 1;
+        blockOffsets[i / BLOCK_SIZE] = pagePos;
+        System.arraycopy(block, 0, page, pagePos, pos);
+        pagePos += pos;
+        pos = 0;
+      }
+    }
+    return new FrontCodedKeys(pages.toArray(new byte[0][]), blockPages, blockOffsets, n, maxKeyLength);
+  }
+
+  // stable merge sort of order[start:end] by key
+  private static void sort(KeyStorage source, long[] keyRefs, int[] order, int[] tmp, int start, int end) {
+    if (end - start <= 16) {
+      for (int i = start + 1; i < end; i++) {
+        int cur = order[i];
+        int j = i;
+        while (j > start && source.compareAt(keyRefs[order[j - 1]], keyRefs[cur]) > 0) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = cur;
+      }
+      return;
+    }
+    int mid = (start + end) >>> 1;
+    sort(source, keyRefs, order, tmp, start, mid);
+    sort(source, keyRefs, order, tmp, mid, end);
+    if (source.compareAt(keyRefs[order[mid - 1]], keyRefs[order[mid]]) <= 0) {
+      return;
+    }
+    System.arraycopy(order, start, tmp, start, end - start);
+    int a = start;
+    int b = mid;
+    for (int i = start; i < end; i++) {
+      if (b >= end || (a < mid && source.compareAt(keyRefs[tmp[a]], keyRefs[tmp[b]]) <= 0)) {
+        order[i] = tmp[a++];
+      } else {
+        order[i] = tmp[b++];
+      }
+    }
+  }
+
+  private static int writeVarint(byte[] dest, int pos, int value) {
+    while ((value & ~0x7f) != 0) {
+      dest[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    dest[pos++] = (byte) value;
+    return pos;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns the index of the key, or {@code -insertionPoint - 1} if it isn't in the list, like
+   * {@link Arrays#binarySearch}.
+   */
+  int search(byte[] key) {
+    if (this.size == 0) {
+      return -1;
+    }
+    // the last block whose first key is <= key
+    int lo = 0;
+    int hi = this.blockOffsets.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      Reader r = this.reader(mid);
+      int length = r.readVarint();
+      if (Arrays.compareUnsigned(r.data, r.pos, r.pos + length, key, 0, key.length) <= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    Reader r = this.reader(lo);
+    int length = r.readVarint();
+    int mismatch = Arrays.mismatch(r.data, r.pos, r.pos + length, key, 0, key.length);
+    int idx = lo * BLOCK_SIZE;
+    if (mismatch < 0) {
+      return idx;
+    }
+    if (greaterAt(r.data, r.pos, length, key, 0, mismatch)) {
+      // only possible in the first block
+      return -idx - 1;
+    }
+    r.pos += length;
+    // matched is the length of the common prefix of key and the previous key, which is less than
+    // key; the first key in the block that isn't less than key is the answer
+    int matched = mismatch;
+    int blockEnd = Math.min(this.size, idx + BLOCK_SIZE);
+    for (idx++; idx < blockEnd; idx++) {
+      int shared = r.readVarint();
+      int suffixLength = r.readVarint();
+      int suffixStart = r.pos;
+      r.pos += suffixLength;
+      if (shared < matched) {
+        // differs from the previous key at a position where the previous key matched, so greater
+        return -idx - 1;
+      }
+      if (shared > matched) {
+        // shares the byte where the previous key was less than key
+        continue;
+      }
+      mismatch = Arrays.mismatch(r.data, suffixStart, suffixStart + suffixLength, key, matched, key.length);
+      if (mismatch < 0) {
+        return idx;
+      }
+      if (greaterAt(r.data, suffixStart, suffixLength, key, matched, mismatch)) {
+        return -idx - 1;
+      }
+      matched += mismatch;
+    }
+    return -idx - 1;
+  }
+
+  // whether data[start:start+length] > key[keyStart:], given that they first differ at mismatch
+  private static boolean greaterAt(byte[] data, int start, int length, byte[] key, int keyStart, int mismatch) {
+    if (mismatch == length) {
+      return false;
+    }
+    if (keyStart + mismatch == key.length) {
+      return true;
+    }
+    return Byte.toUnsignedInt(data[start + mismatch]) > Byte.toUnsignedInt(key[keyStart + mismatch]);
+  }
+
+  /** Returns the index of the first key which is not less than {@code key}. */
+  int lowerBound(byte[] key) {
+    int idx = this.search(key);
+    return idx >= 0 ? idx : -idx - 1;
+  }
+
+  /** Returns the index after the last key which starts with {@code prefix}. */
+  int prefixEnd(byte[] prefix) {
+    // the smallest byte string greater than every string with the prefix
+    int last = prefix.length - 1;
+    while (last >= 0 && prefix[last] == (byte) 0xff) {
+      last--;
+    }
+    if (last < 0) {
+      return this.size;
+    }
+    byte[] bound = Arrays.copyOf(prefix, last + 1);
+    bound[last]++;
+    return this.lowerBound(bound);
+  }
+
+  /** Returns a cursor whose first {@link Cursor#next} returns the key at {@code index}. */
+  Cursor cursor(int index) {
+    Cursor c = new Cursor(this, index - index % BLOCK_SIZE);
+    while (c.index < index - 1) {
+      c.next();
+    }
+    return c;
+  }
+
+  private Reader reader(int block) {
+    return new Reader(this.pages[this.blockPages[block]], this.blockOffsets[block]);
+  }
+
+  private static class Reader {
+    int pos;
+    final byte[] data;
+
+    Reader(byte[] data, int pos) {
+      this.data = data;
+      this.pos = pos;
+    }
+
+    int readVarint() {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = this.data[this.pos++];
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      return value;
+    }
+  }
+
+  /** Decodes keys in order, starting at the beginning of a block. */
+  static final class Cursor {
+    private final FrontCodedKeys keys;
+    private Reader reader;
+    private final byte[] key;
+    private int length;
+    private int index;
+
+    private Cursor(FrontCodedKeys keys, int blockStart) {
+      this.keys = keys;
+      this.reader = null;
+      this.key = new byte[keys.maxKeyLength];
+      this.length = 0;
+      this.index = blockStart - 1;
+    }
+
+    /** Decodes the next key and returns its index. */
+    int next() {
+      this.index++;
+      if (this.index % BLOCK_SIZE == 0) {
+        // the next block may be in another page
+        this.reader = this.keys.reader(this.index / BLOCK_SIZE);
+      }
+      int shared = this.index % BLOCK_SIZE == 0 ? 0 : this.reader.readVarint();
+      int suffixLength = this.reader.readVarint();
+      System.arraycopy(this.reader.data, this.reader.pos, this.key, shared, suffixLength);
+      this.reader.pos += suffixLength;
+      this.length = shared + suffixLength;
+      return this.index;
+    }
+
+    byte[] key() {
+      return Arrays.copyOf(this.key, this.length);
+    }
+
+    String key(Charset charset) {
+      return new String(this.key, 0, this.length, charset);
+    }
+  }
+}
@@ -1,5 +1,17 @@
 package dev.dylanburati.pocketmap;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+/* template_if! .val.object | not */
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+/* template_endif! */
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.AbstractCollection;
@@ -13,9 +25,16 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+/* template_if! .atomic */
+/* template! import java.util.function.\(.val.disp)BinaryOperator; */
+import java.util.function.IntBinaryOperator;
+/* template_endif! */
 import static dev.dylanburati.pocketmap.KeyStorage.*;
 
 /* template(2)! /**\n * Hash map from strings to \(.val.t)s which minimizes memory overhead at large sizes. */ 
@@ -29,10 +48,24 @@ import static dev.dylanburati.pocketmap.KeyStorage.*;
  *
  * The map doesn't attempt to reclaim the buffer space occupied by deleted keys.
  * To do this manually, clone the map.
+ *
+ * Java serialization writes the key and value arrays and the used part of the key storage in
+ * bulk, along with the {@link Hasher}, which must be serializable if it isn't the default.
  */
-/* template! public class \(.val.disp)PocketMap\(.val.generic//"") extends AbstractMap<byte[], \(.val.view)> { */
-public class IntPocketMap extends AbstractMap<byte[], Integer> {
+/* template! public class \(.val.disp)PocketMap\(.val.generic//"") extends AbstractMap<byte[], \(.val.view)> implements Serializable { */
+public class IntPocketMap extends AbstractMap<byte[], Integer> implements Serializable {
+  private static final long serialVersionUID = 1L;
   private static final int DEFAULT_CAPACITY = 65536;
+  private static final int PARALLEL_REHASH_THRESHOLD = 1 << 16;
+  private static final int PARALLEL_REHASH_CHUNK = 1 << 13;
+  /* template_if! .val.object | not */
+  private static final int DELTA_PAGE_BITS = 12;
+  /* template_endif! */
+  private static final VarHandle KEYS_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+  /* template_if! .atomic */
+  /* template! private static final VarHandle VALUES_HANDLE = MethodHandles.arrayElementVarHandle(\(.val.t)[].class); */
+  private static final VarHandle VALUES_HANDLE = MethodHandles.arrayElementVarHandle(int[].class);
+  /* template_endif! */
   private final Hasher hasher;
   private final KeyStorage keyStorage;
   // INVARIANT 0: keys.length is a power of 2
@@ -48,6 +81,15 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
   private int size;
   private int tombstoneCount;
   private int rehashCount;
+  private ForkJoinPool rehashPool;
+  /* template_if! .val.object | not */
+  // one bit per page of 4096 slots whose keys or values changed since the last checkpoint, or
+  // null if there hasn't been a checkpoint
+  private long[] dirtyPages;
+  private long checkpointStorageEnd;
+  /* template_endif! */
+  // hashes of the keys added since the last rehash, or null if not enabled
+  private BloomFilter membershipFilter;
 
   /* template! public \(.val.disp)PocketMap() { */
   public IntPocketMap() {
@@ -80,15 +122,15 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     this.tombstoneCount = 0;
   } 
 
-  /* template! private \(.val.disp)PocketMap(final KeyStorage keyStorage, long[] keys, \(.val.t)[] values, int size) { */
-  private IntPocketMap(final KeyStorage keyStorage, long[] keys, int[] values, int size) {
-    // clone constructor, invariants are the responsibility of clone()
+  /* template! private \(.val.disp)PocketMap(final KeyStorage keyStorage, long[] keys, \(.val.t)[] values, int size, int tombstoneCount) { */
+  private IntPocketMap(final KeyStorage keyStorage, long[] keys, int[] values, int size, int tombstoneCount) {
+    // clone and snapshot constructor, invariants are the responsibility of the caller
     this.hasher = keyStorage.hasher;
     this.keyStorage = keyStorage;
     this.keys = keys;
     this.values = values;
     this.size = size;
-    this.tombstoneCount = 0;
+    this.tombstoneCount = tombstoneCount;
   }
 
   /* template! public static \(if .val.generic then .val.generic else "" end)StringWrapper\(.val.generic//"") newUtf8() { */
@@ -107,6 +149,146 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     return new StringWrapper(new IntPocketMap(initialCapacity, hasher), StandardCharsets.UTF_8);
   }
 
+  /** Builds a map from parallel arrays of keys and values, as in {@link #build}. */
+  /* template! public static \(if .val.generic then .val.generic + " " else "" end)StringWrapper\(.val.generic//"") buildUtf8(String[] keys, \(if .val.object then .val.view else .val.t end)[] values) { */
+  public static StringWrapper buildUtf8(String[] keys, int[] values) {
+    byte[][] encoded = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      encoded[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+    }
+    return build(encoded, values).asUtf8();
+  }
+
+  /** Returns a view of this map which converts string keys to UTF-8. */
+  /* template! public StringWrapper\(.val.generic//"") asUtf8() { */
+  public StringWrapper asUtf8() {
+    /* template! return new StringWrapper\(.val.generic_infer//"")(this, StandardCharsets.UTF_8); */
+    return new StringWrapper(this, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builds a map from parallel arrays of keys and values, which is faster than inserting them one
+   * at a time when all of them are known up front. The table is sized for every key at the start,
+   * and the keys are radix sorted by their home slot in two passes, then inserted in that order.
+   * So the table is filled from front to back, and the key storage is laid out in table order. If
+   * some keys are equal, the value of the last one is kept.
+   */
+  /* template! public static \(if .val.generic then .val.generic + " " else "" end)\(.val.disp)PocketMap\(.val.generic//"") build(byte[][] keys, \(if .val.object then .val.view else .val.t end)[] values) { */
+  public static IntPocketMap build(byte[][] keys, int[] values) {
+    return build(keys, values, DefaultHasher.instance());
+  }
+
+  /* template! public static \(if .val.generic then .val.generic + " " else "" end)\(.val.disp)PocketMap\(.val.generic//"") build(byte[][] keys, \(if .val.object then .val.view else .val.t end)[] values, final Hasher hasher) { */
+  public static IntPocketMap build(byte[][] keys, int[] values, final Hasher hasher) {
+    if (keys.length != values.length) {
+      throw new IllegalArgumentException("expected keys and values of the same length");
+    }
+    int count = keys.length;
+    /* template! \(.val.disp)PocketMap\(.val.generic//"") map = new \(.val.disp)PocketMap\(.val.generic_infer//"")(count + count / 7 + 1, hasher); */
+    IntPocketMap map = new IntPocketMap(count + count / 7 + 1, hasher);
+    int[] hashes = new int[count];
+    for (int i = 0; i < count; i++) {
+      hashes[i] = hasher.hashBytes(keys[i]);
+    }
+    int mask = map.keys.length - 1;
+    int lowBits = Integer.bitCount(mask) / 2;
+    // two stable passes, so equal keys stay in their original order
+    int[] byLow = new int[count];
+    partitionBySlot(hashes, null, byLow, 0, (1 << lowBits) - 1);
+    int[] order = new int[count];
+    partitionBySlot(hashes, byLow, order, lowBits, mask >>> lowBits);
+    for (int i : order) {
+      int idx = map.readIndex(hashes[i], keys[i]);
+      if (idx < 0) {
+        // the table is presized, so this never needs to resize or reuse a tombstone
+        idx = -idx - 1;
+        map.keys[idx] = map.keyStorage.store(keys[i]);
+        map.size++;
+      }
+      map.values[idx] = values[i];
+    }
+    return map;
+  }
+
+  // Counting sort of the indices in src (or 0..hashes.length-1 if null) into dest, by the bits of
+  // the hash selected by shift and bucketMask
+  private static void partitionBySlot(int[] hashes, int[] src, int[] dest, int shift, int bucketMask) {
+    int[] starts = new int[bucketMask + 2];
+    for (int j = 0; j < dest.length; j++) {
+      int i = src == null ? j : src[j];
+      starts[((hashes[i] >>> shift) & bucketMask) + 1]++;
+    }
+    for (int b = 0; b <= bucketMask; b++) {
+      starts[b + 1] += starts[b];
+    }
+    for (int j = 0; j < dest.length; j++) {
+      int i = src == null ? j : src[j];
+      dest[starts[(hashes[i] >>> shift) & bucketMask]++] = i;
+    }
+  }
+
+  // Returns the indices of the live slots, sorted by where their keys are in the key storage
+  private int[] storageOrder() {
+    int[] order = new int[this.size];
+    int n = 0;
+    long maxPosition = 0;
+    for (int i = 0; i < this.keys.length; i++) {
+      if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
+        order[n++] = i;
+        maxPosition = Math.max(maxPosition, KeyStorage.position(this.keys[i]));
+      }
+    }
+    int bits = 64 - Long.numberOfLeadingZeros(maxPosition);
+    int digitBits = Math.min(16, Math.max(1, bits));
+    int digitMask = (1 << digitBits) - 1;
+    int[] starts = new int[digitMask + 2];
+    int[] tmp = new int[n];
+    // LSD radix sort, where each pass is stable
+    for (int shift = 0; shift < bits; shift += digitBits) {
+      Arrays.fill(starts, 0);
+      for (int i : order) {
+        starts[((int) (KeyStorage.position(this.keys[i]) >>> shift) & digitMask) + 1]++;
+      }
+      for (int b = 0; b <= digitMask; b++) {
+        starts[b + 1] += starts[b];
+      }
+      for (int i : order) {
+        tmp[starts[(int) (KeyStorage.position(this.keys[i]) >>> shift) & digitMask]++] = i;
+      }
+      int[] swap = order;
+      order = tmp;
+      tmp = swap;
+    }
+    return order;
+  }
+
+  /**
+   * Sets the pool used to rehash large tables when the map resizes. Tables with at least 65536
+   * slots are split into ranges, and each worker moves the keys in its range to the new table,
+   * claiming slots with compare-and-set. The {@link Hasher} must be safe to call from the pool's
+   * threads.
+   *
+   * Pass {@code null} to rehash on the calling thread, which is the default.
+   */
+  public void setRehashPool(ForkJoinPool pool) {
+    this.rehashPool = pool;
+  }
+
+  /**
+   * Enables or disables a blocked Bloom filter over the hashes of the keys, which lets
+   * {@code get} and {@code containsKey} return for most absent keys after reading one cache line,
+   * without probing the table or comparing keys. It takes 1 byte per slot, and is rebuilt when
+   * the map resizes. Removed keys stay in the filter until then, which only makes it less
+   * effective. Worth enabling when most lookups are for keys which aren't in the map.
+   */
+  public void setMembershipFilter(boolean enabled) {
+    if (!enabled) {
+      this.membershipFilter = null;
+    } else if (this.membershipFilter == null) {
+      this.rebuildMembershipFilter();
+    }
+  }
+
   @Override
   public int size() {
     return this.size;
@@ -122,12 +304,12 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     if (!(key instanceof byte[])) {
       return false;
     }
-    return this.readIndex((byte[]) key) >= 0;
+    return this.lookupIndex((byte[]) key) >= 0;
   }
 
   /* template! private boolean containsEntry(byte[] key, \(.val.boxed) value) { */
   private boolean containsEntry(byte[] key, Integer value) {
-    int idx = this.readIndex(key);
+    int idx = this.lookupIndex(key);
     /* template! return idx >= 0 && \([.val.object, "this.values[idx]", "value"] | equals); */
     return idx >= 0 && this.values[idx] == value;
   }
@@ -165,7 +347,7 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
 
   /* template! private \(.val.view) getImpl(byte[] key, \(.val.view) defaultValue) { */
   private Integer getImpl(byte[] key, Integer defaultValue) {
-    int idx = this.readIndex((byte[]) key);
+    int idx = this.lookupIndex(key);
     if (idx < 0) {
       return defaultValue;
     }
@@ -194,6 +376,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
       Integer prev = this.values[idx];
       if (shouldReplace) {
         this.values[idx] = value;
+        /* template_if! .val.object | not */
+        this.markDirty(idx);
+        /* template_endif! */
       }
       return prev;
     }
@@ -209,6 +394,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
       /* template! \(.val.view) prev = \([.val.object, "this.values[idx]"] | castUnsafe); */
       Integer prev = this.values[idx];
       this.values[idx] = value;
+      /* template_if! .val.object | not */
+      this.markDirty(idx);
+      /* template_endif! */
       return prev;
     }
     return null;
@@ -221,6 +409,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     /* template! if (idx >= 0 && \([.val.object, "this.values[idx]", "oldValue", .val.view] | equals)) { */
     if (idx >= 0 && this.values[idx] == (Integer) oldValue) {
       this.values[idx] = newValue;
+      /* template_if! .val.object | not */
+      this.markDirty(idx);
+      /* template_endif! */
       return true;
     }
     return false;
@@ -305,6 +496,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
         result = remappingFunction.apply(key, this.values[idx]);
         if (result != null) {
           this.values[idx] = result;
+          /* template_if! .val.object | not */
+          this.markDirty(idx);
+          /* template_endif! */
         } else {
           this.removeByIndex(idx);
         }
@@ -335,6 +529,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
       Integer result = remappingFunction.apply(this.values[idx], value);
       if (result != null) {
         this.values[idx] = result;
+        /* template_if! .val.object | not */
+        this.markDirty(idx);
+        /* template_endif! */
       } else {
         this.removeByIndex(idx);
       }
@@ -353,13 +550,94 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
         byte[] k = this.keyStorage.load(this.keys[i]);
         /* template! this.values[i] = function.apply(k, \([.val.object, "this.values[i]"] | castUnsafe)); */
         this.values[i] = function.apply(k, this.values[i]);
+        /* template_if! .val.object | not */
+        this.markDirty(i);
+        /* template_endif! */
       }
     }
   }
 
+  /* template_if! .atomic */
+  /* template(3)! /**\n * Atomically sets the value for {@code key} to {@code newValue} if the current value equals\n * {@code expectedValue}. Returns false if the value differs or the key is absent.\(if .val.t == "double" then "\n *\n * Values are compared by their raw bits, as with {@link Double#doubleToRawLongBits}, so {@code NaN}\n * matches {@code NaN}, and {@code 0.0} doesn't match {@code -0.0}." else "" end) */
+  /**
+   * Atomically sets the value for {@code key} to {@code newValue} if the current value equals
+   * {@code expectedValue}. Returns false if the value differs or the key is absent.
+   *
+   * The atomic value operations never insert, remove, or resize, so they're safe to call from
+   * several threads at once, as long as nothing else modifies the map's keys in the meantime.
+   * For example, new keys can be inserted while holding a write lock, and existing keys can be
+   * updated with these methods while holding only a read lock.
+   */
+  /* template! public boolean compareAndSetValue(byte[] key, \(.val.t) expectedValue, \(.val.t) newValue) { */
+  public boolean compareAndSetValue(byte[] key, int expectedValue, int newValue) {
+    int idx = this.readIndex(key);
+    if (idx < 0) {
+      return false;
+    }
+    this.markDirtyAtomic(idx);
+    return VALUES_HANDLE.compareAndSet(this.values, idx, expectedValue, newValue);
+  }
+
+  /**
+   * Atomically adds {@code delta} to the value for {@code key}, and returns the previous value.
+   *
+   * @throws NoSuchElementException if the key is absent
+   * @see #compareAndSetValue
+   */
+  /* template! public \(.val.t) getAndAddValue(byte[] key, \(.val.t) delta) { */
+  public int getAndAddValue(byte[] key, int delta) {
+    int idx = this.readIndex(key);
+    if (idx < 0) {
+      throw new NoSuchElementException("key is absent");
+    }
+    this.markDirtyAtomic(idx);
+    /* template! return (\(.val.t)) VALUES_HANDLE.getAndAdd(this.values, idx, delta); */
+    return (int) VALUES_HANDLE.getAndAdd(this.values, idx, delta);
+  }
+
+  /**
+   * Atomically replaces the value for {@code key} with the result of {@code accumulatorFunction}
+   * applied to the current value and {@code x}, and returns the new value. The function may be
+   * called several times when other threads update the same key, so it should be pure.
+   *
+   * @throws NoSuchElementException if the key is absent
+   * @see #compareAndSetValue
+   */
+  /* template! public \(.val.t) accumulate(byte[] key, \(.val.t) x, \(.val.disp)BinaryOperator accumulatorFunction) { */
+  public int accumulate(byte[] key, int x, IntBinaryOperator accumulatorFunction) {
+    Objects.requireNonNull(accumulatorFunction);
+    int idx = this.readIndex(key);
+    if (idx < 0) {
+      throw new NoSuchElementException("key is absent");
+    }
+    this.markDirtyAtomic(idx);
+    /* template! \(.val.t)[] values = this.values; */
+    int[] values = this.values;
+    /* template! \(.val.t) prev = (\(.val.t)) VALUES_HANDLE.getVolatile(values, idx); */
+    int prev = (int) VALUES_HANDLE.getVolatile(values, idx);
+    while (true) {
+      /* template! \(.val.t) next = accumulatorFunction.applyAs\(.val.disp)(prev, x); */
+      int next = accumulatorFunction.applyAsInt(prev, x);
+      /* template! \(.val.t) witness = (\(.val.t)) VALUES_HANDLE.compareAndExchange(values, idx, prev, next); */
+      int witness = (int) VALUES_HANDLE.compareAndExchange(values, idx, prev, next);
+      /* template! if (\(.val.t | if . == "double" then "Double.doubleToRawLongBits(witness) == Double.doubleToRawLongBits(prev)" else "witness == prev" end)) { */
+      if (witness == prev) {
+        return next;
+      }
+      prev = witness;
+    }
+  }
+  /* template_endif! */
+
   @Override
   public void clear() {
     Arrays.fill(this.keys, 0L);
+    /* template_if! .val.object | not */
+    this.markAllDirty();
+    /* template_endif! */
+    if (this.membershipFilter != null) {
+      this.membershipFilter.clear();
+    }
     // INVARIANT 2 upheld
     this.size = 0;
     this.tombstoneCount = 0;
@@ -384,6 +662,93 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     return new EntrySet(this);
   }
 
+  /**
+   * Returns an iterator over the entries which tolerates modification of the map, including
+   * resizes. It keeps walking the key and value arrays which were current when it was created, so
+   * it never throws {@link ConcurrentModificationException}, but it may or may not reflect
+   * changes made after that. Each entry holds the value at the time it was returned.
+   *
+   * A scan can interleave with writes without copying the map, at the cost of keeping the old
+   * arrays reachable until the iterator is discarded.
+   */
+  /* template! public Iterator<Map.Entry<byte[], \(.val.view)>> weakEntryIterator() { */
+  public Iterator<Map.Entry<byte[], Integer>> weakEntryIterator() {
+    /* template! return new WeakEntryIterator\(.val.generic_infer//"")(this); */
+    return new WeakEntryIterator(this);
+  }
+
+  /**
+   * Returns an iterator over the entries in the order their keys were stored, which is insertion
+   * order for maps filled by {@code put} (a key which is removed and put again moves to the end).
+   * The keys are read from the key storage front to back, so full scans of large maps touch memory
+   * sequentially instead of jumping around as {@link #entrySet()} does. Creating the iterator radix
+   * sorts the live slots, which needs 8 bytes per entry plus 256 KiB of buckets while sorting; the
+   * iterator keeps 4 bytes per entry.
+   */
+  /* template! public Iterator<Map.Entry<byte[], \(.val.view)>> storageOrderIterator() { */
+  public Iterator<Map.Entry<byte[], Integer>> storageOrderIterator() {
+    /* template! return new StorageOrderEntryIterator\(.val.generic_infer//"")(this); */
+    return new StorageOrderEntryIterator(this);
+  }
+
+  /**
+   * Returns a read-only copy of this map, indexed by a minimal perfect hash function. It has no
+   * empty slots and no probing: a lookup hashes the key, finds its index in a few bit arrays, and
+   * compares the key stored at that index. The index takes about 5 bits per key, so the copy is
+   * smaller than this map, which keeps at least 1/8 of its slots empty.
+   */
+  /* template! public Frozen\(.val.generic//"") freezePerfect() { */
+  public Frozen freezePerfect() {
+    // copied in storage order, so the frozen keys are read from the storage sequentially
+    int[] slots = this.storageOrder();
+    long[] keyRefs = new long[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      keyRefs[i] = this.keys[slots[i]];
+    }
+    int[] indices = new int[slots.length];
+    PerfectHashIndex index = PerfectHashIndex.build(this.keyStorage, keyRefs, indices);
+    /* template! \(.val.t)[] frozenValues = new \(.val.t)[slots.length]; */
+    int[] frozenValues = new int[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      frozenValues[indices[i]] = this.values[slots[i]];
+    }
+    /* template! return new Frozen\(.val.generic_infer//"")(index, frozenValues); */
+    return new Frozen(index, frozenValues);
+  }
+
+  /**
+   * Returns a read-only copy of this map with its keys sorted by their bytes as unsigned values,
+   * which supports {@link Sorted#range} and {@link Sorted#prefixScan}. The keys are front coded
+   * in blocks of 16, so a prefix shared by neighboring keys is stored once instead of once per
+   * key, and the copy doesn't need a slot table. Lookups are a binary search.
+   */
+  /* template! public Sorted\(.val.generic//"") freezeSorted() { */
+  public Sorted freezeSorted() {
+    int[] slots = this.storageOrder();
+    long[] keyRefs = new long[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      keyRefs[i] = this.keys[slots[i]];
+    }
+    int[] order = new int[slots.length];
+    FrontCodedKeys sortedKeys = FrontCodedKeys.build(this.keyStorage, keyRefs, order);
+    /* template! \(.val.t)[] sortedValues = new \(.val.t)[slots.length]; */
+    int[] sortedValues = new int[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      sortedValues[i] = this.values[slots[order[i]]];
+    }
+    /* template! return new Sorted\(.val.generic_infer//"")(sortedKeys, sortedValues); */
+    return new Sorted(sortedKeys, sortedValues);
+  }
+
+  private Object writeReplace() {
+    /* template! return new SerializedForm\(.val.generic_infer//"")(this); */
+    return new SerializedForm(this);
+  }
+
+  private void readObject(ObjectInputStream in) throws InvalidObjectException {
+    throw new InvalidObjectException("expected SerializedForm");
+  }
+
   /**
    * Creates a shallow clone of this map, with separate key storage.
    */
@@ -394,17 +759,181 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     /* template! \(.val.t)[] valuesClone = Arrays.copyOf(this.values, this.values.length); */
     int[] valuesClone = Arrays.copyOf(this.values, this.values.length);
     KeyStorage newKeyStorage = new KeyStorage(this.hasher);
+    // copied in storage order, so the clone iterates in the same storage order
+    for (int i : this.storageOrder()) {
+      // INVARIANT 2a upheld: equal size, keysClone[i] has low bits == 3 IFF keys[i] does
+      keysClone[i] = newKeyStorage.copyFrom(this.keyStorage, this.keys[i]);
+    }
+    // tombstones are kept, since keys which were inserted past them are only reachable through
+    // them
+    for (int i = 0; i < this.keys.length; i++) {
+      if ((this.keys[i] & ALIVE_H2_MASK) == 1) {
+        keysClone[i] = 1L;
+      }
+    }
+    // INVARIANT 2b upheld: equal tombstoneCount, keysClone[i] has low bits == 0 otherwise
+
+    /* template! \(.val.disp)PocketMap\(.val.generic//"") result = new \(.val.disp)PocketMap\(.val.generic_infer//"")(newKeyStorage, keysClone, valuesClone, this.size, this.tombstoneCount); */
+    IntPocketMap result = new IntPocketMap(newKeyStorage, keysClone, valuesClone, this.size, this.tombstoneCount);
+    result.setMembershipFilter(this.membershipFilter != null);
+    return result;
+  }
+
+  /* template_if! .val.object | not */
+  /**
+   * Writes a binary snapshot of the map to {@code ch}. The key array, the value array, and the
+   * used part of each key storage buffer are written as checksummed blocks, so the snapshot is
+   * roughly the size of the map in memory.
+   */
+  public void writeTo(WritableByteChannel ch) throws IOException {
+    /* template! int valueType = SnapshotIO.TYPE_\(.val.t | ascii_upcase); */
+    int valueType = SnapshotIO.TYPE_INT;
+    SnapshotIO.Header header = new SnapshotIO.Header(
+        valueType, this.keys.length, this.size, this.tombstoneCount, this.keyStorage.bufferCount());
+    SnapshotIO.writeHeader(ch, header);
+    SnapshotIO.writeArray(ch, this.keys);
+    SnapshotIO.writeArray(ch, this.values);
+    this.keyStorage.writeTo(ch);
+    this.startDeltaTracking();
+  }
+
+  /**
+   * Reads a map written by {@link #writeTo}. The arrays are loaded as they were written, without
+   * rehashing, so the map must have been written with the default hasher.
+   *
+   * @throws IOException if the snapshot is truncated, corrupted, or has a different value type
+   */
+  /* template! public static \(.val.disp)PocketMap readFrom(ReadableByteChannel ch) throws IOException { */
+  public static IntPocketMap readFrom(ReadableByteChannel ch) throws IOException {
+    return readFrom(ch, DefaultHasher.instance());
+  }
+
+  /**
+   * Reads a map written by {@link #writeTo}, which must have been written with an equivalent
+   * {@code hasher}.
+   */
+  /* template! public static \(.val.disp)PocketMap readFrom(ReadableByteChannel ch, final Hasher hasher) throws IOException { */
+  public static IntPocketMap readFrom(ReadableByteChannel ch, final Hasher hasher) throws IOException {
+    Objects.requireNonNull(hasher);
+    /* template! SnapshotIO.Header header = SnapshotIO.readHeader(ch, SnapshotIO.TYPE_\(.val.t | ascii_upcase)); */
+    SnapshotIO.Header header = SnapshotIO.readHeader(ch, SnapshotIO.TYPE_INT);
+    long[] keys = new long[header.capacity];
+    SnapshotIO.readArray(ch, keys);
+    /* template! \(.val.t)[] values = new \(.val.t)[header.capacity]; */
+    int[] values = new int[header.capacity];
+    SnapshotIO.readArray(ch, values);
+    KeyStorage keyStorage = KeyStorage.readFrom(ch, hasher, header.bufferCount);
+    // INVARIANT 0 and 1 checked by readHeader and readArray, 2 holds for the map that was written
+    /* template! \(.val.disp)PocketMap result = new \(.val.disp)PocketMap(keyStorage, keys, values, header.size, header.tombstoneCount); */
+    IntPocketMap result = new IntPocketMap(keyStorage, keys, values, header.size, header.tombstoneCount);
+    result.startDeltaTracking();
+    return result;
+  }
+
+  /**
+   * Writes the changes since the last checkpoint to {@code ch}, and makes this the new
+   * checkpoint. A checkpoint is the state of the map when it was last written or read with
+   * {@link #writeTo}, {@link #readFrom}, or a delta method. The delta holds the pages of the
+   * table which changed, in units of 4096 slots, and the keys stored since, so its size is
+   * proportional to the churn rather than the size of the map. When the table resizes, the next
+   * delta holds the whole table, though still only the new keys.
+   *
+   * @throws IllegalStateException if there hasn't been a checkpoint
+   */
+  public void writeDeltaTo(WritableByteChannel ch) throws IOException {
+    if (this.dirtyPages == null) {
+      throw new IllegalStateException("no checkpoint to write a delta against");
+    }
+    /* template! int valueType = SnapshotIO.TYPE_\(.val.t | ascii_upcase); */
+    int valueType = SnapshotIO.TYPE_INT;
+    SnapshotIO.Header header = new SnapshotIO.Header(
+        valueType, this.keys.length, this.size, this.tombstoneCount, this.keyStorage.bufferCount());
+    SnapshotIO.writeDeltaHeader(ch, header);
+    long[] dirty = new long[this.dirtyPages.length + 1];
+    dirty[0] = this.checkpointStorageEnd;
+    System.arraycopy(this.dirtyPages, 0, dirty, 1, this.dirtyPages.length);
+    SnapshotIO.writeArray(ch, dirty);
+    for (int page = 0; page << DELTA_PAGE_BITS < this.keys.length; page++) {
+      if ((this.dirtyPages[page >>> 6] & (1L << page)) != 0) {
+        int from = page << DELTA_PAGE_BITS;
+        int to = Math.min(this.keys.length, from + (1 << DELTA_PAGE_BITS));
+        SnapshotIO.writeArray(ch, this.keys, from, to);
+        SnapshotIO.writeArray(ch, this.values, from, to);
+      }
+    }
+    this.keyStorage.writeRangeTo(ch, this.checkpointStorageEnd);
+    this.startDeltaTracking();
+  }
+
+  /**
+   * Applies a delta written by {@link #writeDeltaTo}, which must have been written by a map
+   * whose checkpoint was equal to this map's. Snapshots are restored by calling {@link #readFrom}
+   * and then applying each delta in order. If this throws, the map may have been partially
+   * updated.
+   *
+   * @throws IOException if the delta is truncated, corrupted, or doesn't follow this map's state
+   */
+  public void readDeltaFrom(ReadableByteChannel ch) throws IOException {
+    /* template! SnapshotIO.Header header = SnapshotIO.readDeltaHeader(ch, SnapshotIO.TYPE_\(.val.t | ascii_upcase)); */
+    SnapshotIO.Header header = SnapshotIO.readDeltaHeader(ch, SnapshotIO.TYPE_INT);
+    long[] dirty = new long[newDirtyPages(header.capacity).length + 1];
+    SnapshotIO.readArray(ch, dirty);
+    if (dirty[0] != this.keyStorage.end()) {
+      throw new IOException("delta doesn't follow this map's state");
+    }
+    if (header.capacity != this.keys.length) {
+      // the table was resized, so every page should be present
+      for (int page = 0; page << DELTA_PAGE_BITS < header.capacity; page++) {
+        if ((dirty[1 + (page >>> 6)] & (1L << page)) == 0) {
+          throw new IOException("delta is missing part of the table");
+        }
+      }
+      this.keys = new long[header.capacity];
+      /* template! this.values = new \(.val.t)[header.capacity]; */
+      this.values = new int[header.capacity];
+    }
+    for (int page = 0; page << DELTA_PAGE_BITS < header.capacity; page++) {
+      if ((dirty[1 + (page >>> 6)] & (1L << page)) != 0) {
+        int from = page << DELTA_PAGE_BITS;
+        int to = Math.min(header.capacity, from + (1 << DELTA_PAGE_BITS));
+        SnapshotIO.readArray(ch, this.keys, from, to);
+        SnapshotIO.readArray(ch, this.values, from, to);
+      }
+    }
+    this.keyStorage.readRangeFrom(ch, header.bufferCount);
+    this.size = header.size;
+    this.tombstoneCount = header.tombstoneCount;
+    this.rehashCount++;
+    this.startDeltaTracking();
+    if (this.membershipFilter != null) {
+      this.rebuildMembershipFilter();
+    }
+  }
+
+  /**
+   * Writes each entry to {@code ch} as a line of text in the given format. Keys are copied
+   * directly from the key storage, so no strings or boxed values are allocated.
+   */
+  public void exportTo(WritableByteChannel ch, ExportFormat format) throws IOException {
+    ExportWriter w = new ExportWriter(ch, Objects.requireNonNull(format));
     for (int i = 0; i < this.keys.length; i++) {
       if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
-        // INVARIANT 2a upheld: equal size, keysClone[i] has low bits == 3 IFF keys[i] does
-        keysClone[i] = newKeyStorage.copyFrom(this.keyStorage, this.keys[i]);
+        this.keyStorage.exportKey(this.keys[i], w);
+        w.value(this.values[i]);
       }
-      // INVARIANT 2b upheld: zero tombstones, keysClone[i] has low bits == 0 otherwise
     }
+    w.flush();
+  }
 
-    /* template! return new \(.val.disp)PocketMap\(.val.generic_infer//"")(newKeyStorage, keysClone, valuesClone, this.size); */
-    return new IntPocketMap(newKeyStorage, keysClone, valuesClone, this.size);
+  /* template! public static StringWrapper readUtf8(ReadableByteChannel ch) throws IOException { */
+  public static StringWrapper readUtf8(ReadableByteChannel ch) throws IOException {
+    return new StringWrapper(readFrom(ch), StandardCharsets.UTF_8);
   }
+  /* template! public static StringWrapper readUtf8(ReadableByteChannel ch, final Hasher hasher) throws IOException { */
+  public static StringWrapper readUtf8(ReadableByteChannel ch, final Hasher hasher) throws IOException {
+    return new StringWrapper(readFrom(ch, hasher), StandardCharsets.UTF_8);
+  }
+  /* template_endif! */
 
   // start of section adapted from
   // https://github.com/apache/commons-collections/blob/master/src/main/java/org/apache/commons/collections4/map/AbstractHashedMap.java
@@ -585,6 +1114,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
       /* template! \(.val.view) prev = \([.val.object, "owner.values[index]"] | castUnsafe); */
       Integer prev = owner.values[index];
       owner.values[index] = value;
+      /* template_if! .val.object | not */
+      owner.markDirty(index);
+      /* template_endif! */
       return prev;
     }
 
@@ -780,11 +1312,183 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     }
   }
 
+  /* template! protected static abstract class StorageOrderIterator\(.val.generic//"") { */
+  protected static abstract class StorageOrderIterator {
+    /* template! protected final \(.val.disp)PocketMap\(.val.generic//"") owner; */
+    protected final IntPocketMap owner;
+    private final int rehashCount;
+    private final int[] order;
+    private int index;
+    private int nextPos;
+
+    /* template! protected StorageOrderIterator(final \(.val.disp)PocketMap\(.val.generic//"") owner) { */
+    protected StorageOrderIterator(final IntPocketMap owner) {
+      this.owner = owner;
+      this.rehashCount = owner.rehashCount;
+      this.order = owner.storageOrder();
+      this.index = -1;
+      this.nextPos = this.findPos(0);
+    }
+
+    // skips slots whose keys were removed since the iterator was created
+    private final int findPos(int start) {
+      if (this.rehashCount != owner.rehashCount) {
+        throw new ConcurrentModificationException();
+      }
+      for (int pos = start; pos < this.order.length; pos++) {
+        if ((owner.keys[this.order[pos]] & ALIVE_FLAG) == ALIVE_FLAG) {
+          return pos;
+        }
+      }
+      return -1;
+    }
+
+    public final boolean hasNext() {
+      return this.nextPos != -1;
+    }
+
+    public final void remove() {
+      if (this.index < 0) {
+        throw new IllegalStateException();
+      }
+      owner.removeByIndex(this.index);
+      this.index = -1;
+    }
+
+    protected int advance() {
+      if (this.nextPos < 0) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.order[this.nextPos];
+      this.nextPos = this.findPos(this.nextPos + 1);
+      return this.index;
+    }
+  }
+
+  /* template! protected static class StorageOrderEntryIterator\(.val.generic//"") extends StorageOrderIterator\(.val.generic//"") implements Iterator<Map.Entry<byte[], \(.val.view)>> { */
+  protected static class StorageOrderEntryIterator extends StorageOrderIterator implements Iterator<Map.Entry<byte[], Integer>> {
+    /* template! protected StorageOrderEntryIterator(final \(.val.disp)PocketMap\(.val.generic//"") owner) { */
+    protected StorageOrderEntryIterator(final IntPocketMap owner) {
+      super(owner);
+    }
+    /* template! public final Map.Entry<byte[], \(.val.view)> next() { */
+    public final Map.Entry<byte[], Integer> next() {
+      int idx = this.advance();
+      /* template! return new Node\(.val.generic_infer//"")(owner, idx); */
+      return new Node(owner, idx);
+    }
+  }
+
+  /* template! protected static class StringWrapperStorageOrderEntryIterator\(.val.generic//"") extends StorageOrderIterator\(.val.generic//"") implements Iterator<Map.Entry<String, \(.val.view)>> { */
+  protected static class StringWrapperStorageOrderEntryIterator extends StorageOrderIterator implements Iterator<Map.Entry<String, Integer>> {
+    private final Charset charset;
+
+    /* template! protected StringWrapperStorageOrderEntryIterator(final \(.val.disp)PocketMap\(.val.generic//"") owner, final Charset charset) { */
+    protected StringWrapperStorageOrderEntryIterator(final IntPocketMap owner, final Charset charset) {
+      super(owner);
+      this.charset = charset;
+    }
+    /* template! public final Map.Entry<String, \(.val.view)> next() { */
+    public final Map.Entry<String, Integer> next() {
+      int idx = this.advance();
+      /* template! return new StringWrapperNode\(.val.generic_infer//"")(owner, this.charset, idx); */
+      return new StringWrapperNode(owner, this.charset, idx);
+    }
+  }
+
   // end section adapted from
   // https://github.com/apache/commons-collections/blob/master/src/main/java/org/apache/commons/collections4/map/AbstractHashedMap.java
 
-  /* template! public static class StringWrapper\(.val.generic//"") extends AbstractMap<String, \(.val.view)> { */
-  public static class StringWrapper extends AbstractMap<String, Integer> {
+  /* template! protected static abstract class WeakIterator\(.val.generic//"") { */
+  protected static abstract class WeakIterator {
+    /* template! protected final \(.val.disp)PocketMap\(.val.generic//"") owner; */
+    protected final IntPocketMap owner;
+    // arrays from when the iterator was created; after a resize the map no longer writes to them
+    protected final long[] keys;
+    /* template! protected final \(.val.t)[] values; */
+    protected final int[] values;
+    private long lastKeyRef;
+    private int nextIndex;
+
+    /* template! protected WeakIterator(final \(.val.disp)PocketMap\(.val.generic//"") owner) { */
+    protected WeakIterator(final IntPocketMap owner) {
+      this.owner = owner;
+      this.keys = owner.keys;
+      this.values = owner.values;
+      this.lastKeyRef = 0L;
+      this.nextIndex = this.findIndex(0);
+    }
+
+    private final int findIndex(int start) {
+      for (int src = start; src < this.keys.length; src++) {
+        if ((this.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
+          return src;
+        }
+      }
+      return -1;
+    }
+
+    public final boolean hasNext() {
+      return this.nextIndex != -1;
+    }
+
+    public final void remove() {
+      if (this.lastKeyRef == 0L) {
+        throw new IllegalStateException();
+      }
+      // the entry may have moved or been removed since it was returned
+      int idx = owner.findKeyRef(this.lastKeyRef);
+      if (idx >= 0) {
+        owner.removeByIndex(idx);
+      }
+      this.lastKeyRef = 0L;
+    }
+
+    protected int advance() {
+      if (this.nextIndex < 0) {
+        throw new NoSuchElementException();
+      }
+      int index = this.nextIndex;
+      this.lastKeyRef = this.keys[index];
+      this.nextIndex = this.findIndex(index + 1);
+      return index;
+    }
+  }
+
+  /* template! protected static class WeakEntryIterator\(.val.generic//"") extends WeakIterator\(.val.generic//"") implements Iterator<Map.Entry<byte[], \(.val.view)>> { */
+  protected static class WeakEntryIterator extends WeakIterator implements Iterator<Map.Entry<byte[], Integer>> {
+    /* template! protected WeakEntryIterator(final \(.val.disp)PocketMap\(.val.generic//"") owner) { */
+    protected WeakEntryIterator(final IntPocketMap owner) {
+      super(owner);
+    }
+    /* template! public final Map.Entry<byte[], \(.val.view)> next() { */
+    public final Map.Entry<byte[], Integer> next() {
+      int idx = this.advance();
+      /* template! return new AbstractMap.SimpleImmutableEntry<>(owner.keyStorage.load(this.keys[idx]), \([.val.object, "this.values[idx]"] | castUnsafe)); */
+      return new AbstractMap.SimpleImmutableEntry<>(owner.keyStorage.load(this.keys[idx]), this.values[idx]);
+    }
+  }
+
+  /* template! protected static class StringWrapperWeakEntryIterator\(.val.generic//"") extends WeakIterator\(.val.generic//"") implements Iterator<Map.Entry<String, \(.val.view)>> { */
+  protected static class StringWrapperWeakEntryIterator extends WeakIterator implements Iterator<Map.Entry<String, Integer>> {
+    private final Charset charset;
+
+    /* template! protected StringWrapperWeakEntryIterator(final \(.val.disp)PocketMap\(.val.generic//"") owner, final Charset charset) { */
+    protected StringWrapperWeakEntryIterator(final IntPocketMap owner, final Charset charset) {
+      super(owner);
+      this.charset = charset;
+    }
+    /* template! public final Map.Entry<String, \(.val.view)> next() { */
+    public final Map.Entry<String, Integer> next() {
+      int idx = this.advance();
+      /* template! return new AbstractMap.SimpleImmutableEntry<>(owner.keyStorage.loadAsString(this.keys[idx], this.charset), \([.val.object, "this.values[idx]"] | castUnsafe)); */
+      return new AbstractMap.SimpleImmutableEntry<>(owner.keyStorage.loadAsString(this.keys[idx], this.charset), this.values[idx]);
+    }
+  }
+
+  /* template! public static class StringWrapper\(.val.generic//"") extends AbstractMap<String, \(.val.view)> implements Serializable { */
+  public static class StringWrapper extends AbstractMap<String, Integer> implements Serializable {
+    private static final long serialVersionUID = 1L;
     /* template! protected final \(.val.disp)PocketMap\(.val.generic//"") inner; */
     protected final IntPocketMap inner;
     protected final Charset charset;
@@ -795,6 +1499,27 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
       this.charset = charset;
     }
 
+    private Object writeReplace() {
+      /* template! return new StringWrapperSerializedForm\(.val.generic_infer//"")(inner, this.charset.name()); */
+      return new StringWrapperSerializedForm(inner, this.charset.name());
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+      throw new InvalidObjectException("expected StringWrapperSerializedForm");
+    }
+
+    /**
+     * Sets the pool used to rehash large tables when the map resizes. Pass {@code null} to
+     * rehash on the calling thread, which is the default.
+     */
+    public void setRehashPool(ForkJoinPool pool) {
+      inner.setRehashPool(pool);
+    }
+
+    public void setMembershipFilter(boolean enabled) {
+      inner.setMembershipFilter(enabled);
+    }
+
     @Override
     public int size() {
       return inner.size;
@@ -811,7 +1536,7 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
         return false;
       }
       byte[] keyContent = ((String) key).getBytes(this.charset);
-      return inner.readIndex(keyContent) >= 0;
+      return inner.lookupIndex(keyContent) >= 0;
     }
 
     @Override
@@ -920,10 +1645,30 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
           String k = inner.keyStorage.loadAsString(inner.keys[i], this.charset);
           /* template! inner.values[i] = function.apply(k, \([.val.object, "inner.values[i]"] | castUnsafe)); */
           inner.values[i] = function.apply(k, inner.values[i]);
+          /* template_if! .val.object | not */
+          inner.markDirty(i);
+          /* template_endif! */
         }
       }
     }
 
+    /* template_if! .atomic */
+    /* template! public boolean compareAndSetValue(String key, \(.val.t) expectedValue, \(.val.t) newValue) { */
+    public boolean compareAndSetValue(String key, int expectedValue, int newValue) {
+      return inner.compareAndSetValue(key.getBytes(this.charset), expectedValue, newValue);
+    }
+
+    /* template! public \(.val.t) getAndAddValue(String key, \(.val.t) delta) { */
+    public int getAndAddValue(String key, int delta) {
+      return inner.getAndAddValue(key.getBytes(this.charset), delta);
+    }
+
+    /* template! public \(.val.t) accumulate(String key, \(.val.t) x, \(.val.disp)BinaryOperator accumulatorFunction) { */
+    public int accumulate(String key, int x, IntBinaryOperator accumulatorFunction) {
+      return inner.accumulate(key.getBytes(this.charset), x, accumulatorFunction);
+    }
+    /* template_endif! */
+
     @Override
     public void clear() {
       inner.clear();
@@ -947,6 +1692,58 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
       return new EntrySet(this);
     }
 
+    /**
+     * Returns an iterator over the entries which tolerates modification of the map, including
+     * resizes. It may or may not reflect changes made after it was created.
+     */
+    /* template! public Iterator<Map.Entry<String, \(.val.view)>> weakEntryIterator() { */
+    public Iterator<Map.Entry<String, Integer>> weakEntryIterator() {
+      /* template! return new StringWrapperWeakEntryIterator\(.val.generic_infer//"")(inner, this.charset); */
+      return new StringWrapperWeakEntryIterator(inner, this.charset);
+    }
+
+    /** Returns an iterator over the entries in the order their keys were stored. */
+    /* template! public Iterator<Map.Entry<String, \(.val.view)>> storageOrderIterator() { */
+    public Iterator<Map.Entry<String, Integer>> storageOrderIterator() {
+      /* template! return new StringWrapperStorageOrderEntryIterator\(.val.generic_infer//"")(inner, this.charset); */
+      return new StringWrapperStorageOrderEntryIterator(inner, this.charset);
+    }
+
+    /** Returns a read-only copy of this map, as in {@link #freezePerfect()} on the inner map. */
+    /* template! public FrozenStringWrapper\(.val.generic//"") freezePerfect() { */
+    public FrozenStringWrapper freezePerfect() {
+      /* template! return new FrozenStringWrapper\(.val.generic_infer//"")(inner.freezePerfect(), this.charset); */
+      return new FrozenStringWrapper(inner.freezePerfect(), this.charset);
+    }
+
+    /** Returns a read-only copy of this map, as in {@link #freezeSorted()} on the inner map. */
+    /* template! public SortedStringWrapper\(.val.generic//"") freezeSorted() { */
+    public SortedStringWrapper freezeSorted() {
+      /* template! return new SortedStringWrapper\(.val.generic_infer//"")(inner.freezeSorted(), this.charset); */
+      return new SortedStringWrapper(inner.freezeSorted(), this.charset);
+    }
+
+    /* template_if! .val.object | not */
+    /** Writes a binary snapshot of the map, which can be read with {@code readUtf8}. */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+      inner.writeTo(ch);
+    }
+
+    /** Writes each entry as a line of text, with keys in their stored encoding. */
+    public void exportTo(WritableByteChannel ch, ExportFormat format) throws IOException {
+      inner.exportTo(ch, format);
+    }
+
+    /** Writes the changes since the last checkpoint, which can be applied with {@code readDeltaFrom}. */
+    public void writeDeltaTo(WritableByteChannel ch) throws IOException {
+      inner.writeDeltaTo(ch);
+    }
+
+    public void readDeltaFrom(ReadableByteChannel ch) throws IOException {
+      inner.readDeltaFrom(ch);
+    }
+    /* template_endif! */
+
     /**
      * Creates a shallow clone of this map, with separate key storage.
      */
@@ -1106,11 +1903,71 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     return -h - 1;
   }
 
-  private int readIndex(byte[] keyContent) {
+  // same as above, for a key in a buffer such as a memory-mapped file
+  private int readIndex(int hash, ByteBuffer src, int offset, int length) {
+    int h = hash & (this.keys.length - 1);
+    int distance = 1;
+    int firstTombstone = -1;
+    while ((this.keys[h] & ALIVE_H2_MASK) > 0) {
+      if ((this.keys[h] & ALIVE_FLAG) == 0) {
+        // Tombstone
+        firstTombstone = firstTombstone < 0 ? h : firstTombstone;
+        h = (h + distance) & (this.keys.length - 1);
+        distance++;
+        continue;
+      }
+      if (this.keyStorage.equalsAt(this.keys[h], src, offset, length)) {
+        return h;
+      }
+      h = (h + distance) & (this.keys.length - 1);
+      distance++;
+    }
+    if (firstTombstone >= 0) {
+      return -firstTombstone - 1;
+    }
+    return -h - 1;
+  }
+
+  int readIndex(byte[] keyContent) {
     int hash = this.hasher.hashBytes(keyContent);
     return this.readIndex(hash, keyContent);
   }
 
+  // like readIndex, but returns -1 instead of the insertion index if the key isn't found, which
+  // lets most absent keys skip the probe when there's a membership filter
+  int lookupIndex(byte[] keyContent) {
+    int hash = this.hasher.hashBytes(keyContent);
+    if (this.membershipFilter != null && !this.membershipFilter.mightContain(hash)) {
+      return -1;
+    }
+    int idx = this.readIndex(hash, keyContent);
+    return idx >= 0 ? idx : -1;
+  }
+
+  /**
+   * Inserts or replaces the key {@code src[offset:offset+length]}, for loaders in this package
+   * which hash keys in bulk ahead of time. The key is copied straight from {@code src} to the key
+   * storage, and {@code src}'s position is moved.
+   */
+  /* template! void putHashed(int hash, ByteBuffer src, int offset, int length, \(.val.t) value) { */
+  void putHashed(int hash, ByteBuffer src, int offset, int length, int value) {
+    int idx = this.readIndex(hash, src, offset, length);
+    if (idx >= 0) {
+      this.values[idx] = value;
+      /* template_if! .val.object | not */
+      this.markDirty(idx);
+      /* template_endif! */
+    } else {
+      this.insertByIndex(-idx - 1, hash, this.keyStorage.store(src, offset, length), value);
+    }
+  }
+
+  // unboxed read for callers in this package which already have an index from readIndex
+  /* template! \(.val.t) valueAt(int idx) { */
+  int valueAt(int idx) {
+    return this.values[idx];
+  }
+
   // used by Node to refresh its known index on the first access after a rehash
   private int rereadIndex(long keyRef) {
     int hash = this.keyStorage.hashAt(keyRef);
@@ -1126,6 +1983,72 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     return -1;
   }
 
+  // like rereadIndex, but probes past tombstones, since entries may have been removed since the
+  // last rehash
+  private int findKeyRef(long keyRef) {
+    int hash = this.keyStorage.hashAt(keyRef);
+    int h = hash & (keys.length - 1);
+    int distance = 1;
+    while ((keys[h] & ALIVE_H2_MASK) > 0) {
+      if (keys[h] == keyRef) {
+        return h;
+      }
+      h = (h + distance) & (keys.length - 1);
+      distance++;
+    }
+    return -1;
+  }
+
+  /* template_if! .val.object | not */
+  private void markDirty(int idx) {
+    if (this.dirtyPages != null) {
+      int page = idx >>> DELTA_PAGE_BITS;
+      this.dirtyPages[page >>> 6] |= 1L << page;
+    }
+  }
+
+  /* template_if! .atomic */
+  // for the atomic value operations, which may run on several threads at once
+  private void markDirtyAtomic(int idx) {
+    long[] dirty = this.dirtyPages;
+    if (dirty != null) {
+      int page = idx >>> DELTA_PAGE_BITS;
+      KEYS_HANDLE.getAndBitwiseOr(dirty, page >>> 6, 1L << page);
+    }
+  }
+  /* template_endif! */
+
+  private void markAllDirty() {
+    if (this.dirtyPages != null) {
+      this.dirtyPages = newDirtyPages(this.keys.length);
+      Arrays.fill(this.dirtyPages, -1L);
+    }
+  }
+
+  // called after this map's state is saved or loaded, so the next delta is relative to it
+  private void startDeltaTracking() {
+    this.dirtyPages = newDirtyPages(this.keys.length);
+    this.checkpointStorageEnd = this.keyStorage.end();
+  }
+  /* template_endif! */
+
+  private void rebuildMembershipFilter() {
+    BloomFilter filter = new BloomFilter(this.keys.length);
+    for (int i = 0; i < this.keys.length; i++) {
+      if ((this.keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
+        filter.add(this.keyStorage.hashAt(this.keys[i]));
+      }
+    }
+    this.membershipFilter = filter;
+  }
+
+  /* template_if! .val.object | not */
+  private static long[] newDirtyPages(int cap) {
+    int pageCount = ((cap - 1) >>> DELTA_PAGE_BITS) + 1;
+    return new long[((pageCount - 1) >>> 6) + 1];
+  }
+  /* template_endif! */
+
   /**
    * INVARIANT 2 upheld WHEN this.keys[idx] has low bits != 3 prior to calling 
    *
@@ -1134,14 +2057,25 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
    */
   /* template! private void insertByIndex(int idx, int hash, byte[] keyContent, \(.val.t) value) { */
   private void insertByIndex(int idx, int hash, byte[] keyContent, int value) {
+    this.insertByIndex(idx, hash, this.keyStorage.store(keyContent), value);
+  }
+
+  // same as above, with the key already in the key storage
+  /* template! private void insertByIndex(int idx, int hash, long keyRef, \(.val.t) value) { */
+  private void insertByIndex(int idx, int hash, long keyRef, int value) {
     boolean isTombstone = (this.keys[idx] & 1) == 1;
     if (!isTombstone && this.maybeSetCapacity()) {
       idx = this.insertionIndex(this.keys, hash);
       isTombstone = false;  // no tombstones following resize
     }
-    long keyRef = this.keyStorage.store(keyContent);
+    if (this.membershipFilter != null) {
+      this.membershipFilter.add(hash);
+    }
     this.keys[idx] = keyRef;
     this.values[idx] = value;
+    /* template_if! .val.object | not */
+    this.markDirty(idx);
+    /* template_endif! */
     this.size++;
     if (isTombstone) {
       this.tombstoneCount--;
@@ -1154,6 +2088,9 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     this.keys[idx] ^= (this.keys[idx] ^ 0x01) & ALIVE_H2_MASK;
     /* template! \(if .val.object then "" else "// " end)this.values[idx] = null; */
     // this.values[idx] = null;
+    /* template_if! .val.object | not */
+    this.markDirty(idx);
+    /* template_endif! */
     this.size--;
     this.tombstoneCount++;
   }
@@ -1178,22 +2115,394 @@ public class IntPocketMap extends AbstractMap<byte[], Integer> {
     long[] nextKeys = new long[cap];
     /* template! \(.val.t)[] nextValues = new \(.val.t)[cap]; */
     int[] nextValues = new int[cap];
-    for (int src = 0; src < this.keys.length; src++) {
-      if ((this.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
-        // INVARIANT 2a upheld: this condition is true for `size` iterations, and each time
-        // the keyRef with ALIVE_FLAG is copied to a **different index** in nextKeys
-        //   - insertionIndex only returns idx with (keys[idx] & ALIVE_FLAG) == 0
-        int hash = this.keyStorage.hashAt(this.keys[src]);
-        int idx = this.insertionIndex(nextKeys, hash);
-        nextKeys[idx] = this.keys[src];
-        nextValues[idx] = this.values[src];
+    if (this.rehashPool != null && this.keys.length >= PARALLEL_REHASH_THRESHOLD) {
+      this.rehashPool.invoke(new RehashTask(this.keyStorage, this.keys, this.values, nextKeys, nextValues, 0, this.keys.length));
+    } else {
+      for (int src = 0; src < this.keys.length; src++) {
+        if ((this.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
+          // INVARIANT 2a upheld: this condition is true for `size` iterations, and each time
+          // the keyRef with ALIVE_FLAG is copied to a **different index** in nextKeys
+          //   - insertionIndex only returns idx with (keys[idx] & ALIVE_FLAG) == 0
+          int hash = this.keyStorage.hashAt(this.keys[src]);
+          int idx = this.insertionIndex(nextKeys, hash);
+          nextKeys[idx] = this.keys[src];
+          nextValues[idx] = this.values[src];
+        }
+        // INVARIANT 2b upheld: other indices in nextKeys are all zero
       }
-      // INVARIANT 2b upheld: other indices in nextKeys are all zero
     }
 
     this.keys = nextKeys;
     this.values = nextValues;
     this.tombstoneCount = 0;
     this.rehashCount++;
+    /* template_if! .val.object | not */
+    this.markAllDirty();
+    /* template_endif! */
+    if (this.membershipFilter != null) {
+      this.rebuildMembershipFilter();
+    }
+  }
+
+  /**
+   * Moves the live keys in {@code [start, end)} of the old table to the new one. Since slots in
+   * the new table only ever go from empty to occupied, a key placed by CAS is reachable by the
+   * usual probe sequence no matter how the workers interleave.
+   */
+  private static class RehashTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final KeyStorage keyStorage;
+    private final long[] keys;
+    /* template! private final \(.val.t)[] values; */
+    private final int[] values;
+    private final long[] nextKeys;
+    /* template! private final \(.val.t)[] nextValues; */
+    private final int[] nextValues;
+    private final int start;
+    private final int end;
+
+    /* template! RehashTask(KeyStorage keyStorage, long[] keys, \(.val.t)[] values, long[] nextKeys, \(.val.t)[] nextValues, int start, int end) { */
+    RehashTask(KeyStorage keyStorage, long[] keys, int[] values, long[] nextKeys, int[] nextValues, int start, int end) {
+      this.keyStorage = keyStorage;
+      this.keys = keys;
+      this.values = values;
+      this.nextKeys = nextKeys;
+      this.nextValues = nextValues;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.end - this.start > PARALLEL_REHASH_CHUNK) {
+        int mid = (this.start + this.end) >>> 1;
+        invokeAll(
+          new RehashTask(this.keyStorage, this.keys, this.values, this.nextKeys, this.nextValues, this.start, mid),
+          new RehashTask(this.keyStorage, this.keys, this.values, this.nextKeys, this.nextValues, mid, this.end)
+        );
+        return;
+      }
+      int mask = this.nextKeys.length - 1;
+      for (int src = this.start; src < this.end; src++) {
+        long keyRef = this.keys[src];
+        if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG) {
+          int h = this.keyStorage.hashAt(keyRef) & mask;
+          int distance = 1;
+          while (!KEYS_HANDLE.compareAndSet(this.nextKeys, h, 0L, keyRef)) {
+            h = (h + distance) & mask;
+            distance++;
+          }
+          this.nextValues[h] = this.values[src];
+        }
+      }
+    }
+  }
+
+  /** Read-only map returned by {@link #freezePerfect()}. */
+  /* template! public static final class Frozen\(.val.generic//"") { */
+  public static final class Frozen {
+    private final PerfectHashIndex index;
+    /* template! private final \(.val.t)[] values; */
+    private final int[] values;
+
+    /* template! private Frozen(PerfectHashIndex index, \(.val.t)[] values) { */
+    private Frozen(PerfectHashIndex index, int[] values) {
+      this.index = index;
+      this.values = values;
+    }
+
+    public int size() {
+      return this.values.length;
+    }
+
+    public boolean isEmpty() {
+      return this.values.length == 0;
+    }
+
+    public boolean containsKey(byte[] key) {
+      return this.index.indexOf(key) >= 0;
+    }
+
+    /* template! public \(if .val.object then .val.view else .val.t end) get(byte[] key, \(if .val.object then .val.view else .val.t end) defaultValue) { */
+    public int get(byte[] key, int defaultValue) {
+      int idx = this.index.indexOf(key);
+      /* template! return idx >= 0 ? \([.val.object, "this.values[idx]"] | castUnsafe) : defaultValue; */
+      return idx >= 0 ? this.values[idx] : defaultValue;
+    }
+
+    /** Calls {@code action} on each entry, in no particular order. */
+    /* template! public void forEach(BiConsumer<? super byte[], ? super \(.val.view)> action) { */
+    public void forEach(BiConsumer<? super byte[], ? super Integer> action) {
+      for (int idx = 0; idx < this.values.length; idx++) {
+        /* template! action.accept(this.index.keyAt(idx), \([.val.object, "this.values[idx]"] | castUnsafe)); */
+        action.accept(this.index.keyAt(idx), this.values[idx]);
+      }
+    }
+  }
+
+  /* template! public static final class FrozenStringWrapper\(.val.generic//"") { */
+  public static final class FrozenStringWrapper {
+    /* template! private final Frozen\(.val.generic//"") inner; */
+    private final Frozen inner;
+    private final Charset charset;
+
+    /* template! private FrozenStringWrapper(Frozen\(.val.generic//"") inner, Charset charset) { */
+    private FrozenStringWrapper(Frozen inner, Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    /* template! public \(if .val.object then .val.view else .val.t end) get(String key, \(if .val.object then .val.view else .val.t end) defaultValue) { */
+    public int get(String key, int defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    /** Calls {@code action} on each entry, in no particular order. */
+    /* template! public void forEach(BiConsumer<? super String, ? super \(.val.view)> action) { */
+    public void forEach(BiConsumer<? super String, ? super Integer> action) {
+      for (int idx = 0; idx < inner.values.length; idx++) {
+        /* template! action.accept(inner.index.keyAt(idx, this.charset), \([.val.object, "inner.values[idx]"] | castUnsafe)); */
+        action.accept(inner.index.keyAt(idx, this.charset), inner.values[idx]);
+      }
+    }
+  }
+
+  /** Read-only map returned by {@link #freezeSorted()}. */
+  /* template! public static final class Sorted\(.val.generic//"") { */
+  public static final class Sorted {
+    private final FrontCodedKeys keys;
+    /* template! private final \(.val.t)[] values; */
+    private final int[] values;
+
+    /* template! private Sorted(FrontCodedKeys keys, \(.val.t)[] values) { */
+    private Sorted(FrontCodedKeys keys, int[] values) {
+      this.keys = keys;
+      this.values = values;
+    }
+
+    public int size() {
+      return this.values.length;
+    }
+
+    public boolean isEmpty() {
+      return this.values.length == 0;
+    }
+
+    public boolean containsKey(byte[] key) {
+      return this.keys.search(key) >= 0;
+    }
+
+    /* template! public \(if .val.object then .val.view else .val.t end) get(byte[] key, \(if .val.object then .val.view else .val.t end) defaultValue) { */
+    public int get(byte[] key, int defaultValue) {
+      int idx = this.keys.search(key);
+      /* template! return idx >= 0 ? \([.val.object, "this.values[idx]"] | castUnsafe) : defaultValue; */
+      return idx >= 0 ? this.values[idx] : defaultValue;
+    }
+
+    /**
+     * Returns the entries whose keys are at least {@code fromKey} and less than {@code toKey}, in
+     * order. A null bound leaves that end of the range open.
+     */
+    /* template! public Iterator<Map.Entry<byte[], \(.val.view)>> range(byte[] fromKey, byte[] toKey) { */
+    public Iterator<Map.Entry<byte[], Integer>> range(byte[] fromKey, byte[] toKey) {
+      int start = fromKey == null ? 0 : this.keys.lowerBound(fromKey);
+      int end = toKey == null ? this.keys.size() : this.keys.lowerBound(toKey);
+      /* template! return new SortedEntryIterator\(.val.generic_infer//"")(this, start, Math.max(start, end)); */
+      return new SortedEntryIterator(this, start, Math.max(start, end));
+    }
+
+    /** Returns the entries whose keys start with {@code prefix}, in order. */
+    /* template! public Iterator<Map.Entry<byte[], \(.val.view)>> prefixScan(byte[] prefix) { */
+    public Iterator<Map.Entry<byte[], Integer>> prefixScan(byte[] prefix) {
+      /* template! return new SortedEntryIterator\(.val.generic_infer//"")(this, this.keys.lowerBound(prefix), this.keys.prefixEnd(prefix)); */
+      return new SortedEntryIterator(this, this.keys.lowerBound(prefix), this.keys.prefixEnd(prefix));
+    }
+  }
+
+  /* template! public static final class SortedStringWrapper\(.val.generic//"") { */
+  public static final class SortedStringWrapper {
+    /* template! private final Sorted\(.val.generic//"") inner; */
+    private final Sorted inner;
+    private final Charset charset;
+
+    /* template! private SortedStringWrapper(Sorted\(.val.generic//"") inner, Charset charset) { */
+    private SortedStringWrapper(Sorted inner, Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    /* template! public \(if .val.object then .val.view else .val.t end) get(String key, \(if .val.object then .val.view else .val.t end) defaultValue) { */
+    public int get(String key, int defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    /** Returns the entries with keys in {@code [fromKey, toKey)}, in the byte order of their encoding. */
+    /* template! public Iterator<Map.Entry<String, \(.val.view)>> range(String fromKey, String toKey) { */
+    public Iterator<Map.Entry<String, Integer>> range(String fromKey, String toKey) {
+      int start = fromKey == null ? 0 : inner.keys.lowerBound(fromKey.getBytes(this.charset));
+      int end = toKey == null ? inner.keys.size() : inner.keys.lowerBound(toKey.getBytes(this.charset));
+      /* template! return new SortedStringEntryIterator\(.val.generic_infer//"")(inner, this.charset, start, Math.max(start, end)); */
+      return new SortedStringEntryIterator(inner, this.charset, start, Math.max(start, end));
+    }
+
+    /** Returns the entries whose keys start with {@code prefix}, in order. */
+    /* template! public Iterator<Map.Entry<String, \(.val.view)>> prefixScan(String prefix) { */
+    public Iterator<Map.Entry<String, Integer>> prefixScan(String prefix) {
+      byte[] encoded = prefix.getBytes(this.charset);
+      /* template! return new SortedStringEntryIterator\(.val.generic_infer//"")(inner, this.charset, inner.keys.lowerBound(encoded), inner.keys.prefixEnd(encoded)); */
+      return new SortedStringEntryIterator(inner, this.charset, inner.keys.lowerBound(encoded), inner.keys.prefixEnd(encoded));
+    }
+  }
+
+  /* template! private static class SortedEntryIterator\(.val.generic//"") implements Iterator<Map.Entry<byte[], \(.val.view)>> { */
+  private static class SortedEntryIterator implements Iterator<Map.Entry<byte[], Integer>> {
+    /* template! private final Sorted\(.val.generic//"") owner; */
+    private final Sorted owner;
+    private final FrontCodedKeys.Cursor cursor;
+    private final int end;
+    private int index;
+
+    /* template! SortedEntryIterator(Sorted\(.val.generic//"") owner, int start, int end) { */
+    SortedEntryIterator(Sorted owner, int start, int end) {
+      this.owner = owner;
+      this.cursor = owner.keys.cursor(start);
+      this.end = end;
+      this.index = start;
+    }
+
+    public boolean hasNext() {
+      return this.index < this.end;
+    }
+
+    /* template! public Map.Entry<byte[], \(.val.view)> next() { */
+    public Map.Entry<byte[], Integer> next() {
+      if (this.index >= this.end) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.cursor.next() + 1;
+      /* template! return new AbstractMap.SimpleImmutableEntry<>(this.cursor.key(), \([.val.object, "owner.values[this.index - 1]"] | castUnsafe)); */
+      return new AbstractMap.SimpleImmutableEntry<>(this.cursor.key(), owner.values[this.index - 1]);
+    }
+  }
+
+  /* template! private static class SortedStringEntryIterator\(.val.generic//"") implements Iterator<Map.Entry<String, \(.val.view)>> { */
+  private static class SortedStringEntryIterator implements Iterator<Map.Entry<String, Integer>> {
+    /* template! private final Sorted\(.val.generic//"") owner; */
+    private final Sorted owner;
+    private final Charset charset;
+    private final FrontCodedKeys.Cursor cursor;
+    private final int end;
+    private int index;
+
+    /* template! SortedStringEntryIterator(Sorted\(.val.generic//"") owner, Charset charset, int start, int end) { */
+    SortedStringEntryIterator(Sorted owner, Charset charset, int start, int end) {
+      this.owner = owner;
+      this.charset = charset;
+      this.cursor = owner.keys.cursor(start);
+      this.end = end;
+      this.index = start;
+    }
+
+    public boolean hasNext() {
+      return this.index < this.end;
+    }
+
+    /* template! public Map.Entry<String, \(.val.view)> next() { */
+    public Map.Entry<String, Integer> next() {
+      if (this.index >= this.end) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.cursor.next() + 1;
+      /* template! return new AbstractMap.SimpleImmutableEntry<>(this.cursor.key(this.charset), \([.val.object, "owner.values[this.index - 1]"] | castUnsafe)); */
+      return new AbstractMap.SimpleImmutableEntry<>(this.cursor.key(this.charset), owner.values[this.index - 1]);
+    }
+  }
+
+  /* template! private static class SerializedForm\(.val.generic//"") implements Serializable { */
+  private static class SerializedForm implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /* template! private transient \(.val.disp)PocketMap\(.val.generic//"") map; */
+    private transient IntPocketMap map;
+
+    /* template! SerializedForm(\(.val.disp)PocketMap\(.val.generic//"") map) { */
+    SerializedForm(IntPocketMap map) {
+      this.map = map;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      out.writeObject(map.hasher);
+      out.writeInt(map.size);
+      out.writeInt(map.tombstoneCount);
+      out.writeObject(map.keys);
+      out.writeObject(map.values);
+      map.keyStorage.writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      Hasher hasher = (Hasher) in.readObject();
+      int size = in.readInt();
+      int tombstoneCount = in.readInt();
+      long[] keys = (long[]) in.readObject();
+      /* template! \(.val.t)[] values = (\(.val.t)[]) in.readObject(); */
+      int[] values = (int[]) in.readObject();
+      KeyStorage keyStorage = KeyStorage.readFrom(in, Objects.requireNonNull(hasher));
+      // INVARIANT 0 and 1 checked, 2 holds for the map that was written
+      if (keys.length < 8 || Integer.bitCount(keys.length) != 1 || values.length != keys.length
+          || size < 0 || tombstoneCount < 0 || (long) size + tombstoneCount > keys.length) {
+        throw new InvalidObjectException("invalid map arrays");
+      }
+      /* template! this.map = new \(.val.disp)PocketMap\(.val.generic_infer//"")(keyStorage, keys, values, size, tombstoneCount); */
+      this.map = new IntPocketMap(keyStorage, keys, values, size, tombstoneCount);
+    }
+
+    private Object readResolve() {
+      return map;
+    }
+  }
+
+  /* template! private static class StringWrapperSerializedForm\(.val.generic//"") implements Serializable { */
+  private static class StringWrapperSerializedForm implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /* template! private final \(.val.disp)PocketMap\(.val.generic//"") inner; */
+    private final IntPocketMap inner;
+    private final String charsetName;
+
+    /* template! StringWrapperSerializedForm(\(.val.disp)PocketMap\(.val.generic//"") inner, String charsetName) { */
+    StringWrapperSerializedForm(IntPocketMap inner, String charsetName) {
+      this.inner = inner;
+      this.charsetName = charsetName;
+    }
+
+    private Object readResolve() {
+      /* template! return new StringWrapper\(.val.generic_infer//"")(inner, Charset.forName(charsetName)); */
+      return new StringWrapper(inner, Charset.forName(charsetName));
+    }
   }
 }
@@ -0,0 +1,208 @@
+package dev.dylanburati.pocketmap;
+
+import static dev.dylanburati.pocketmap.KeyStorage.ALIVE_FLAG;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+/* template! import java.util.function.\(if .val.t == "int" then "ObjIntConsumer" else "BiConsumer" end); */
+import java.util.function.ObjIntConsumer;
+
+/* template(13)! /**\n * Map from byte array keys to \(.val.t)s, with each key reference and its value stored next to each\n * other in one {@code long[]}. In {@link \(.val.disp)PocketMap}, a hit reads {@code keys[h]} and then\n * {@code values[h]}, which is in another array and so another cache line. Here the value is in\n * the word after the key reference, which is almost always in the same cache line, so a hit\n * usually touches one line of the table plus the key storage.\n *\n * The cost is memory: each slot takes 16 bytes, against \({"int": 12, "float": 12, "short": 10, "byte": 9}[.val.t]) in {@link \(.val.disp)PocketMap}, since the\n * \(.val.t) value gets a whole long. For the same reason a 64-byte cache line holds 4 candidate key\n * references instead of 8, so a miss or a long probe touches about twice as many lines of the\n * table. This layout pays off when most lookups hit on the first probe.\n *\n * \(if .val.t == "int" then "The Float, Short and Byte versions of this class are generated from it by gen.py." else "Generated from {@link InterleavedIntPocketMap} by gen.py." end)\(if .val.t == "float" then "\n * Floats are stored by their raw bits, so a NaN is returned with the bits it was stored with." else "" end) */
+/**
+ * Map from byte array keys to ints, with each key reference and its value stored next to each
+ * other in one {@code long[]}. In {@link IntPocketMap}, a hit reads {@code keys[h]} and then
+ * {@code values[h]}, which is in another array and so another cache line. Here the value is in
+ * the word after the key reference, which is almost always in the same cache line, so a hit
+ * usually touches one line of the table plus the key storage.
+ *
+ * The cost is memory: each slot takes 16 bytes, against 12 in {@link IntPocketMap}, since the
+ * int value gets a whole long. For the same reason a 64-byte cache line holds 4 candidate key
+ * references instead of 8, so a miss or a long probe touches about twice as many lines of the
+ * table. This layout pays off when most lookups hit on the first probe.
+ *
+ * The Float, Short and Byte versions of this class are generated from it by gen.py.
+ */
+/* template! public class Interleaved\(.val.disp)PocketMap { */
+public class InterleavedIntPocketMap {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  // slot h has its key reference at table.keys[2 * h] and its value at table.keys[2 * h + 1]
+  private final KeyTable table;
+
+  /* template! public Interleaved\(.val.disp)PocketMap() { */
+  public InterleavedIntPocketMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /* template! public Interleaved\(.val.disp)PocketMap(int initialCapacity) { */
+  public InterleavedIntPocketMap(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  /* template! public Interleaved\(.val.disp)PocketMap(int initialCapacity, final Hasher hasher) { */
+  public InterleavedIntPocketMap(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 1);
+  }
+
+  public static StringWrapper newUtf8() {
+    /* template! return new StringWrapper(new Interleaved\(.val.disp)PocketMap(), StandardCharsets.UTF_8); */
+    return new StringWrapper(new InterleavedIntPocketMap(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    /* template! return new StringWrapper(new Interleaved\(.val.disp)PocketMap(initialCapacity), StandardCharsets.UTF_8); */
+    return new StringWrapper(new InterleavedIntPocketMap(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    /* template! return new StringWrapper(new Interleaved\(.val.disp)PocketMap(initialCapacity, hasher), StandardCharsets.UTF_8); */
+    return new StringWrapper(new InterleavedIntPocketMap(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.table.readIndex(this.hasher.hashBytes(key), key) >= 0;
+  }
+
+  /* template! public \(.val.t) get(byte[] key, \(.val.t) defaultValue) { */
+  public int get(byte[] key, int defaultValue) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? fromWord(this.table.keys[(idx << 1) | 1]) : defaultValue;
+  }
+
+  /* template! public void put(byte[] key, \(.val.t) value) { */
+  public void put(byte[] key, int value) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      this.table.keys[(idx << 1) | 1] = toWord(value);
+    } else {
+      this.insertByIndex(-idx - 1, hash, key, value);
+    }
+  }
+
+  /** Adds {@code delta} to the value for {@code key}, inserting it with a value of 0 if absent. */
+  /* template! public \(.val.t) add(byte[] key, \(.val.t) delta) { */
+  public int add(byte[] key, int delta) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      /* template! \(.val.t) sum = \(if .demote then "\(.demote)(" else "" end)fromWord(this.table.keys[(idx << 1) | 1]) + delta\(if .demote then ")" else "" end); */
+      int sum = fromWord(this.table.keys[(idx << 1) | 1]) + delta;
+      this.table.keys[(idx << 1) | 1] = toWord(sum);
+      return sum;
+    }
+    this.insertByIndex(-idx - 1, hash, key, delta);
+    return delta;
+  }
+
+  public boolean remove(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    this.table.clear();
+  }
+
+  /* template! public void forEach(\(if .val.t == "int" then "ObjIntConsumer<? super byte[]>" else "BiConsumer<? super byte[], ? super \(.val.view)>" end) action) { */
+  public void forEach(ObjIntConsumer<? super byte[]> action) {
+    Objects.requireNonNull(action);
+    long[] keys = this.table.keys;
+    for (int i = 0; i < keys.length; i += 2) {
+      if ((keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
+        action.accept(this.keyStorage.load(keys[i]), fromWord(keys[i + 1]));
+      }
+    }
+  }
+
+  /* template! private static \(.val.t) fromWord(long word) { */
+  private static int fromWord(long word) {
+    /* template! return \(if .val.t == "float" then "Float.intBitsToFloat((int) word)" else "(\(.val.t)) word" end); */
+    return (int) word;
+  }
+
+  /* template! private static long toWord(\(.val.t) value) { */
+  private static long toWord(int value) {
+    /* template! return \(if .val.t == "float" then "Float.floatToRawIntBits(value)" else "value" end); */
+    return value;
+  }
+
+  /* template! private void insertByIndex(int idx, int hash, byte[] keyContent, \(.val.t) value) { */
+  private void insertByIndex(int idx, int hash, byte[] keyContent, int value) {
+    if (this.table.needsRehash(idx)) {
+      // the values move along with the key references
+      this.table.rehashKeys();
+      idx = this.table.insertionIndex(hash);
+    }
+    this.table.fill(idx, this.keyStorage.store(keyContent));
+    this.table.keys[(idx << 1) | 1] = toWord(value);
+  }
+
+  public static class StringWrapper {
+    /* template! protected final Interleaved\(.val.disp)PocketMap inner; */
+    protected final InterleavedIntPocketMap inner;
+    protected final Charset charset;
+
+    /* template! protected StringWrapper(final Interleaved\(.val.disp)PocketMap inner, final Charset charset) { */
+    protected StringWrapper(final InterleavedIntPocketMap inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    /* template! public \(.val.t) get(String key, \(.val.t) defaultValue) { */
+    public int get(String key, int defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    /* template! public void put(String key, \(.val.t) value) { */
+    public void put(String key, int value) {
+      inner.put(key.getBytes(this.charset), value);
+    }
+
+    /* template! public \(.val.t) add(String key, \(.val.t) delta) { */
+    public int add(String key, int delta) {
+      return inner.add(key.getBytes(this.charset), delta);
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void clear() {
+      inner.clear();
+    }
+
+    /* template! public void forEach(\(if .val.t == "int" then "ObjIntConsumer<? super String>" else "BiConsumer<? super String, ? super \(.val.view)>" end) action) { */
+    public void forEach(ObjIntConsumer<? super String> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, v) -> action.accept(new String(k, this.charset), v));
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package dev.dylanburati.pocketmap;
+
+import static dev.dylanburati.pocketmap.KeyStorage.ALIVE_FLAG;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Map from byte array keys to shorts, with each key reference and its value stored next to each
+ * other in one {@code long[]}. In {@link ShortPocketMap}, a hit reads {@code keys[h]} and then
+ * {@code values[h]}, which is in another array and so another cache line. Here the value is in
+ * the word after the key reference, which is almost always in the same cache line, so a hit
+ * usually touches one line of the table plus the key storage.
+ *
+ * The cost is memory: each slot takes 16 bytes, against 10 in {@link ShortPocketMap}, since the
+ * short value gets a whole long. For the same reason a 64-byte cache line holds 4 candidate key
+ * references instead of 8, so a miss or a long probe touches about twice as many lines of the
+ * table. This layout pays off when most lookups hit on the first probe.
+ *
+ * Generated from {@link InterleavedIntPocketMap} by gen.py.
+ */
+public class InterleavedShortPocketMap {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  // slot h has its key reference at table.keys[2 * h] and its value at table.keys[2 * h + 1]
+  private final KeyTable table;
+
+  public InterleavedShortPocketMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public InterleavedShortPocketMap(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  public InterleavedShortPocketMap(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 1);
+  }
+
+  public static StringWrapper newUtf8() {
+    return new StringWrapper(new InterleavedShortPocketMap(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    return new StringWrapper(new InterleavedShortPocketMap(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    return new StringWrapper(new InterleavedShortPocketMap(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.table.readIndex(this.hasher.hashBytes(key), key) >= 0;
+  }
+
+  public short get(byte[] key, short defaultValue) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? fromWord(this.table.keys[(idx << 1) | 1]) : defaultValue;
+  }
+
+  public void put(byte[] key, short value) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      this.table.keys[(idx << 1) | 1] = toWord(value);
+    } else {
+      this.insertByIndex(-idx - 1, hash, key, value);
+    }
+  }
+
+  /** Adds {@code delta} to the value for {@code key}, inserting it with a value of 0 if absent. */
+  public short add(byte[] key, short delta) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      short sum = (short) (fromWord(this.table.keys[(idx << 1) | 1]) + delta);
+      this.table.keys[(idx << 1) | 1] = toWord(sum);
+      return sum;
+    }
+    this.insertByIndex(-idx - 1, hash, key, delta);
+    return delta;
+  }
+
+  public boolean remove(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    this.table.clear();
+  }
+
+  public void forEach(BiConsumer<? super byte[], ? super Short> action) {
+    Objects.requireNonNull(action);
+    long[] keys = this.table.keys;
+    for (int i = 0; i < keys.length; i += 2) {
+      if ((keys[i] & ALIVE_FLAG) == ALIVE_FLAG) {
+        action.accept(this.keyStorage.load(keys[i]), fromWord(keys[i + 1]));
+      }
+    }
+  }
+
+  private static short fromWord(long word) {
+    return (short) word;
+  }
+
+  private static long toWord(short value) {
+    return value;
+  }
+
+  private void insertByIndex(int idx, int hash, byte[] keyContent, short value) {
+    if (this.table.needsRehash(idx)) {
+      // the values move along with the key references
+      this.table.rehashKeys();
+      idx = this.table.insertionIndex(hash);
+    }
+    this.table.fill(idx, this.keyStorage.store(keyContent));
+    this.table.keys[(idx << 1) | 1] = toWord(value);
+  }
+
+  public static class StringWrapper {
+    protected final InterleavedShortPocketMap inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final InterleavedShortPocketMap inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public short get(String key, short defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    public void put(String key, short value) {
+      inner.put(key.getBytes(this.charset), value);
+    }
+
+    public short add(String key, short delta) {
+      return inner.add(key.getBytes(this.charset), delta);
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void clear() {
+      inner.clear();
+    }
+
+    public void forEach(BiConsumer<? super String, ? super Short> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, v) -> action.accept(new String(k, this.charset), v));
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Assigns each distinct key an ordinal, counting up from 0 in insertion order, so that per-key
+ * data can be kept in plain arrays indexed by ordinal.
+ *
+ * The table is laid out like a {@link IntPocketMap} with the ordinal as the value. A second array
+ * holds the key reference for each ordinal, so {@link #keyAt} is a single array read plus a
+ * copy out of key storage.
+ *
+ * Keys can't be removed, since that would leave a gap in the ordinals.
+ */
+public class KeyDictionary {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  // there are no tombstones, since keys are never removed
+  private final KeyTable table;
+  // INVARIANT 0: table.capacity() == ordinals.length
+  private int[] ordinals;
+  // INVARIANT 1: refs[o] is the key reference with ordinal o, for o < table.size
+  private long[] refs;
+
+  public KeyDictionary() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public KeyDictionary(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  public KeyDictionary(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 0);
+    int cap = this.table.capacity();
+    this.ordinals = new int[cap];
+    // at most 7/8 of the slots are used before the table doubles
+    this.refs = new long[cap - cap / 8];
+  }
+
+  public static StringWrapper newUtf8() {
+    return new StringWrapper(new KeyDictionary(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    return new StringWrapper(new KeyDictionary(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    return new StringWrapper(new KeyDictionary(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  /** Returns the number of keys, which is also the next ordinal to be assigned. */
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  /** Returns the ordinal of {@code key}, assigning it the next ordinal if absent. */
+  public int intern(byte[] key) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      return this.ordinals[idx];
+    }
+    return this.insertByIndex(-idx - 1, hash, key);
+  }
+
+  /** Returns the ordinal of {@code key}, or -1 if absent. */
+  public int ordinalOf(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? this.ordinals[idx] : -1;
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.ordinalOf(key) >= 0;
+  }
+
+  /** Returns a copy of the key with the given ordinal. */
+  public byte[] keyAt(int ordinal) {
+    return this.keyStorage.load(this.refs[Objects.checkIndex(ordinal, this.table.size)]);
+  }
+
+  String keyAt(int ordinal, Charset charset) {
+    return this.keyStorage.loadAsString(this.refs[Objects.checkIndex(ordinal, this.table.size)], charset);
+  }
+
+  // returns the new ordinal
+  private int insertByIndex(int idx, int hash, byte[] keyContent) {
+    if (this.table.needsRehash(idx)) {
+      // with no tombstones, this always doubles the table
+      int[] dests = this.table.rehash();
+      int cap = this.table.capacity();
+      this.ordinals = KeyTable.move(this.ordinals, dests, cap);
+      this.refs = Arrays.copyOf(this.refs, cap - cap / 8);
+      idx = this.table.insertionIndex(hash);
+    }
+    long keyRef = this.keyStorage.store(keyContent);
+    int ordinal = this.table.size;
+    this.table.fill(idx, keyRef);
+    this.ordinals[idx] = ordinal;
+    this.refs[ordinal] = keyRef;
+    return ordinal;
+  }
+
+  public static class StringWrapper {
+    protected final KeyDictionary inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final KeyDictionary inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public int intern(String key) {
+      return inner.intern(key.getBytes(this.charset));
+    }
+
+    public int ordinalOf(String key) {
+      return inner.ordinalOf(key.getBytes(this.charset));
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public String keyAt(int ordinal) {
+      return inner.keyAt(ordinal, this.charset);
+    }
+  }
+}
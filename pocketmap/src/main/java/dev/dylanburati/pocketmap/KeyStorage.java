@@ -1,6 +1,11 @@
 package dev.dylanburati.pocketmap;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -41,6 +46,97 @@ import java.util.List;
     this.buffers = new ArrayList<>();
     this.buffers.add(ByteBuffer.allocate(BUF_SIZE));
   }
+
+  private KeyStorage(final Hasher hasher, final List<ByteBuffer> buffers) {
+    this.hasher = hasher;
+    this.buffers = buffers;
+  }
+
+  int bufferCount() {
+    return this.buffers.size();
+  }
+
+  /** Writes the used part of each buffer as a snapshot block. */
+  void writeTo(WritableByteChannel ch) throws IOException {
+    for (ByteBuffer buf : this.buffers) {
+      SnapshotIO.writeBytes(ch, buf.array(), 0, buf.position());
+    }
+  }
+
+  /** Returns the buffer number and offset where the next key will be stored. */
+  long end() {
+    int which = this.buffers.size() - 1;
+    return ((long) which << 32) | this.buffers.get(which).position();
+  }
+
+  /**
+   * Returns the buffer number and offset of the key, as one number which increases in the order
+   * keys were stored.
+   */
+  static long position(long keyRef) {
+    return keyRef >>> (KEY_LEN_BITS + H2_BITS + 1);
+  }
+
+  /** Writes the keys stored after {@code start}, a previous result of {@link #end()}. */
+  void writeRangeTo(WritableByteChannel ch, long start) throws IOException {
+    int first = (int) (start >>> 32);
+    for (int i = first; i < this.buffers.size(); i++) {
+      ByteBuffer buf = this.buffers.get(i);
+      int from = i == first ? (int) start : 0;
+      SnapshotIO.writeBytes(ch, buf.array(), from, buf.position() - from);
+    }
+  }
+
+  /** Appends keys written by {@link #writeRangeTo}, when {@link #end()} equals its start. */
+  void readRangeFrom(ReadableByteChannel ch, int bufferCount) throws IOException {
+    for (int i = this.buffers.size() - 1; i < bufferCount; i++) {
+      if (i == this.buffers.size()) {
+        this.buffers.add(ByteBuffer.allocate(BUF_SIZE));
+      }
+      ByteBuffer buf = this.buffers.get(i);
+      int used = SnapshotIO.readBytes(ch, buf.array(), buf.position(), buf.remaining());
+      buf.position(buf.position() + used);
+    }
+  }
+
+  /** Writes the used part of each buffer, for Java serialization. */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(this.buffers.size());
+    for (ByteBuffer buf : this.buffers) {
+      out.writeInt(buf.position());
+      out.write(buf.array(), 0, buf.position());
+    }
+  }
+
+  static KeyStorage readFrom(DataInput in, final Hasher hasher) throws IOException {
+    int bufferCount = in.readInt();
+    if (bufferCount < 1 || bufferCount > BUFNR_LIMIT) {
+      throw new IOException("invalid key storage buffer count");
+    }
+    List<ByteBuffer> buffers = new ArrayList<>(bufferCount);
+    for (int i = 0; i < bufferCount; i++) {
+      int used = in.readInt();
+      if (used < 0 || used > BUF_SIZE) {
+        throw new IOException("invalid key storage buffer length");
+      }
+      ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE);
+      in.readFully(buf.array(), 0, used);
+      buf.position(used);
+      buffers.add(buf);
+    }
+    return new KeyStorage(hasher, buffers);
+  }
+
+  static KeyStorage readFrom(ReadableByteChannel ch, final Hasher hasher, int bufferCount) throws IOException {
+    List<ByteBuffer> buffers = new ArrayList<>(bufferCount);
+    for (int i = 0; i < bufferCount; i++) {
+      ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE);
+      int used = SnapshotIO.readBytes(ch, buf.array(), BUF_SIZE);
+      buf.position(used);
+      buffers.add(buf);
+    }
+    return new KeyStorage(hasher, buffers);
+  }
   
   // bits[63:23] = offset
   //     [22:2]  = length
@@ -49,23 +145,45 @@ import java.util.List;
     return this.store(keyContent, 0, keyContent.length);
   }
 
-  private long store(byte[] src, int srcOffset, int srcLength) {
+  long store(byte[] src, int srcOffset, int srcLength) {
+    ByteBuffer store = this.reserve(srcLength);
+    int offset = store.position();
+    store.put(src, srcOffset, srcLength);
+    return this.refTo(offset, srcLength);
+  }
+
+  /**
+   * Stores {@code src[srcOffset:srcOffset+srcLength]}, such as a key in a memory-mapped file, and
+   * moves {@code src}'s position.
+   */
+  long store(ByteBuffer src, int srcOffset, int srcLength) {
+    ByteBuffer store = this.reserve(srcLength);
+    int offset = store.position();
+    src.position(srcOffset);
+    src.get(store.array(), offset, srcLength);
+    store.position(offset + srcLength);
+    return this.refTo(offset, srcLength);
+  }
+
+  // returns the last buffer, after adding a new one if it can't fit srcLength more bytes
+  private ByteBuffer reserve(int srcLength) {
     if (srcLength >= KEY_LEN_LIMIT) {
       throw new IllegalArgumentException("Key too long");
     }
-    int which = this.buffers.size() - 1;
-    ByteBuffer store = this.buffers.get(which);
+    ByteBuffer store = this.buffers.get(this.buffers.size() - 1);
     if (store.remaining() < srcLength) {
-      which += 1;
-      assert which < BUFNR_LIMIT;
+      assert this.buffers.size() < BUFNR_LIMIT;
       store = ByteBuffer.allocate(BUF_SIZE);
       this.buffers.add(store);
     }
-    int offset = store.position();
-    store.put(src, srcOffset, srcLength);
-    return ((long) which << (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1))
+    return store;
+  }
+
+  private long refTo(int offset, int length) {
+    long which = this.buffers.size() - 1;
+    return (which << (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1))
       | ((long) offset << (KEY_LEN_BITS + H2_BITS + 1))
-      | ((long) srcLength << (H2_BITS + 1))
+      | ((long) length << (H2_BITS + 1))
       | 3L;
   }
 
@@ -85,6 +203,13 @@ import java.util.List;
     return new String(bufContent, offset, length, charset);
   }
 
+  void exportKey(long keyRef, ExportWriter w) throws IOException {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    int length = (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+    w.key(this.buffers.get(which).array(), offset, length);
+  }
+
   int hashAt(long keyRef) {
     int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
     int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
@@ -92,15 +217,89 @@ import java.util.List;
     return this.hasher.hashBuffer(this.buffers.get(which), offset, length);
   }
 
+  /** Hashes the stored key with {@code hasher}, which may not be this storage's hasher. */
+  int hashAt(long keyRef, Hasher hasher) {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    int length = (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+    return hasher.hashBuffer(this.buffers.get(which), offset, length);
+  }
+
+  /**
+   * Returns the array holding the stored key, which starts at {@link #offsetOf} and is
+   * {@link #lengthOf} bytes long. Used to compare and copy keys without loading them.
+   */
+  byte[] arrayOf(long keyRef) {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    return this.buffers.get(which).array();
+  }
+
+  static int offsetOf(long keyRef) {
+    return (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+  }
+
+  static int lengthOf(long keyRef) {
+    return (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+  }
+
+  /** Compares the bytes of two stored keys as unsigned values, like {@link Arrays#compareUnsigned}. */
+  int compareAt(long keyRef, long otherRef) {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    int length = (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+    int otherWhich = (int) (otherRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int otherOffset = (int) ((otherRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    int otherLength = (int) ((otherRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+    return Arrays.compareUnsigned(this.buffers.get(which).array(), offset, offset + length,
+        this.buffers.get(otherWhich).array(), otherOffset, otherOffset + otherLength);
+  }
+
   boolean equalsAt(long keyRef, byte[] other) {
+    return this.equalsAt(keyRef, other, 0, other.length);
+  }
+
+  boolean equalsAt(long keyRef, byte[] other, int otherOffset, int otherLength) {
     int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
     int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
     int length = (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
-    if (other.length != length) {
+    if (otherLength != length) {
       return false;
     }
     byte[] bufContent = this.buffers.get(which).array();
-    return Arrays.equals(bufContent, offset, offset + length, other, 0, length);
+    return Arrays.equals(bufContent, offset, offset + length, other, otherOffset, otherOffset + length);
+  }
+
+  boolean equalsAt(long keyRef, ByteBuffer other, int otherOffset, int otherLength) {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    int length = (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+    if (otherLength != length) {
+      return false;
+    }
+    byte[] bufContent = this.buffers.get(which).array();
+    for (int i = 0; i < length; i++) {
+      if (bufContent[offset + i] != other.get(otherOffset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Overwrites the stored bytes of {@code keyRef} with {@code src}, and returns the reference to
+   * the slice of {@code src.length} bytes. {@code capacity} is the number of bytes reserved at the
+   * reference's offset, which the caller tracks since the reference only has the current length.
+   * Used for value arenas, where the old bytes aren't referenced anywhere else.
+   */
+  long overwrite(long keyRef, int capacity, byte[] src) {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    if (src.length > capacity) {
+      throw new IllegalArgumentException("expected at most " + capacity + " bytes");
+    }
+    System.arraycopy(src, 0, this.buffers.get(which).array(), offset, src.length);
+    long lengthMask = (long) KEY_LEN_MASK << (H2_BITS + 1);
+    return (keyRef & ~lengthMask) | ((long) src.length << (H2_BITS + 1));
   }
 
   public long copyFrom(KeyStorage src, long keyRef) {
@@ -0,0 +1,235 @@
+package dev.dylanburati.pocketmap;
+
+import static dev.dylanburati.pocketmap.KeyStorage.ALIVE_FLAG;
+import static dev.dylanburati.pocketmap.KeyStorage.ALIVE_H2_MASK;
+
+/**
+ * Open-addressing table of key references, with the quadratic probe, tombstones and resizing
+ * shared by the maps and sets which aren't generated from {@link IntPocketMap}.
+ *
+ * Each slot is {@code 1 << shift} longs of {@link #keys}, starting with the key reference. With a
+ * shift of 0, the owner keeps its values in arrays indexed by slot, and moves them using the
+ * array returned by {@link #rehash}. With a larger shift, the owner keeps its values in the other
+ * words of the slot, which move along with the key reference.
+ *
+ * To insert, the owner calls {@link #readIndex}, then {@link #needsRehash} with the slot it
+ * returned, and if that's true, rehashes and finds the slot again with {@link #insertionIndex}.
+ * {@link #fill} then stores the key reference.
+ */
+final class KeyTable {
+  final KeyStorage keyStorage;
+  private final int shift;
+  // INVARIANT 0: keys.length >> shift is a power of 2
+  long[] keys;
+  private int slotMask;
+
+  // INVARIANT 1:
+  //  1A: size           == count [k | k in key references, (k & 3) >= 2]
+  //  1B: tombstoneCount == count [k | k in key references, (k & 3) == 1]
+  int size;
+  int tombstoneCount;
+
+  KeyTable(final KeyStorage keyStorage, int initialCapacity, int shift) {
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("expected non-negative initialCapacity");
+    }
+    int cap = 8;
+    if (initialCapacity > 8) {
+      // next power of two >= initialCapacity
+      cap = 1 << (32 - Integer.numberOfLeadingZeros(initialCapacity - 1));
+    }
+    this.keyStorage = keyStorage;
+    this.shift = shift;
+    this.keys = new long[cap << shift];
+    this.slotMask = cap - 1;
+    this.size = 0;
+    this.tombstoneCount = 0;
+  }
+
+  /** Returns the number of slots. */
+  int capacity() {
+    return this.slotMask + 1;
+  }
+
+  long keyRef(int slot) {
+    return this.keys[slot << this.shift];
+  }
+
+  boolean isLive(int slot) {
+    return (this.keys[slot << this.shift] & ALIVE_FLAG) == ALIVE_FLAG;
+  }
+
+  /** Empties the table, keeping its capacity. Like the maps, the key storage isn't reclaimed. */
+  void clear() {
+    this.keys = new long[this.keys.length];
+    this.size = 0;
+    this.tombstoneCount = 0;
+  }
+
+  /** Slot of first empty/tombstone slot in quadratic probe starting from hash */
+  int insertionIndex(int hash) {
+    return insertionIndex(this.keys, this.slotMask, this.shift, hash);
+  }
+
+  private static int insertionIndex(long[] keys, int slotMask, int shift, int hash) {
+    int h = hash & slotMask;
+    int distance = 1;
+    while ((keys[h << shift] & ALIVE_FLAG) == ALIVE_FLAG) {
+      h = (h + distance) & slotMask;
+      distance++;
+    }
+    return h;
+  }
+
+  /**
+   * Attempts to find the slot whose stored key equals the given one, using a quadratic probe
+   * starting from hash(keyContent).
+   *
+   * Returns:
+   * <ul>
+   * <li> {@code slot} when key found
+   * <li> {@code -slot - 1} when an empty slot is found; the slot refers to the first tombstone found
+   *   if any, otherwise the empty slot
+   */
+  int readIndex(int hash, byte[] keyContent) {
+    return this.readIndex(hash, keyContent, 0, keyContent.length);
+  }
+
+  /** Like {@link #readIndex(int, byte[])}, for the key {@code src[offset:offset+length]}. */
+  int readIndex(int hash, byte[] src, int offset, int length) {
+    int h = hash & this.slotMask;
+    int distance = 1;
+    int firstTombstone = -1;
+    long keyRef;
+    while (((keyRef = this.keys[h << this.shift]) & ALIVE_H2_MASK) > 0) {
+      if ((keyRef & ALIVE_FLAG) == 0) {
+        // Tombstone
+        firstTombstone = firstTombstone < 0 ? h : firstTombstone;
+        h = (h + distance) & this.slotMask;
+        distance++;
+        continue;
+      }
+      if (this.keyStorage.equalsAt(keyRef, src, offset, length)) {
+        return h;
+      }
+      h = (h + distance) & this.slotMask;
+      distance++;
+    }
+    if (firstTombstone >= 0) {
+      return -firstTombstone - 1;
+    }
+    return -h - 1;
+  }
+
+  /**
+   * Returns true if the table must be rehashed before a key is stored in {@code slot}, which is
+   * an empty slot or a tombstone returned by {@link #readIndex}. Reusing a tombstone never does.
+   */
+  boolean needsRehash(int slot) {
+    boolean isTombstone = (this.keys[slot << this.shift] & 1) == 1;
+    return !isTombstone && this.size + this.tombstoneCount + 1 > this.capacity() * 7 / 8;
+  }
+
+  /**
+   * Stores {@code keyRef}, with any value bits the owner packs into it, in {@code slot}.
+   * INVARIANT 1 upheld WHEN the key reference in the slot has low bits != 3 prior to calling
+   */
+  void fill(int slot, long keyRef) {
+    boolean isTombstone = (this.keys[slot << this.shift] & 1) == 1;
+    this.keys[slot << this.shift] = keyRef;
+    this.size++;
+    if (isTombstone) {
+      this.tombstoneCount--;
+    }
+  }
+
+  /** INVARIANT 1 upheld WHEN the key reference in the slot has ALIVE_FLAG prior to calling */
+  void remove(int slot) {
+    // set alive bit 0, hash to 1 so not treated as empty
+    this.keys[slot << this.shift] ^= (this.keys[slot << this.shift] ^ 0x01) & ALIVE_H2_MASK;
+    this.size--;
+    this.tombstoneCount++;
+  }
+
+  /**
+   * Rehashes into a table which is twice as large if more than 3/4 of the slots would be live,
+   * and the same size otherwise, dropping the tombstones. Returns the new slot of each live
+   * entry, indexed by its old slot, or -1 for the other slots.
+   */
+  int[] rehash() {
+    int[] dests = new int[this.capacity()];
+    this.rehash(dests);
+    return dests;
+  }
+
+  /** Like {@link #rehash()}, for owners which keep no values outside of {@link #keys}. */
+  void rehashKeys() {
+    this.rehash(null);
+  }
+
+  private void rehash(int[] dests) {
+    int cap = this.capacity();
+    // INVARIANT 0 upheld: we either double or remain the same
+    if (this.size + 1 > cap * 3 / 4) {
+      cap <<= 1;
+    }
+    int stride = 1 << this.shift;
+    long[] nextKeys = new long[cap << this.shift];
+    int nextMask = cap - 1;
+    for (int src = 0; src <= this.slotMask; src++) {
+      long keyRef = this.keys[src << this.shift];
+      if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG) {
+        int idx = insertionIndex(nextKeys, nextMask, this.shift, this.keyStorage.hashAt(keyRef));
+        System.arraycopy(this.keys, src << this.shift, nextKeys, idx << this.shift, stride);
+        if (dests != null) {
+          dests[src] = idx;
+        }
+      } else if (dests != null) {
+        dests[src] = -1;
+      }
+    }
+    this.keys = nextKeys;
+    this.slotMask = nextMask;
+    this.tombstoneCount = 0;
+  }
+
+  static int[] move(int[] values, int[] dests, int cap) {
+    int[] next = new int[cap];
+    for (int src = 0; src < dests.length; src++) {
+      if (dests[src] >= 0) {
+        next[dests[src]] = values[src];
+      }
+    }
+    return next;
+  }
+
+  static long[] move(long[] values, int[] dests, int cap) {
+    long[] next = new long[cap];
+    for (int src = 0; src < dests.length; src++) {
+      if (dests[src] >= 0) {
+        next[dests[src]] = values[src];
+      }
+    }
+    return next;
+  }
+
+  static float[] move(float[] values, int[] dests, int cap) {
+    float[] next = new float[cap];
+    for (int src = 0; src < dests.length; src++) {
+      if (dests[src] >= 0) {
+        next[dests[src]] = values[src];
+      }
+    }
+    return next;
+  }
+
+  static double[] move(double[] values, int[] dests, int cap) {
+    double[] next = new double[cap];
+    for (int src = 0; src < dests.length; src++) {
+      if (dests[src] >= 0) {
+        next[dests[src]] = values[src];
+      }
+    }
+    return next;
+  }
+}
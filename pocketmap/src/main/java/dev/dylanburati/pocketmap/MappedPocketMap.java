@@ -0,0 +1,301 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+import static dev.dylanburati.pocketmap.KeyStorage.*;
+
+/**
+ * Read-only view of a map snapshot, as written by {@code writeTo} on any of the primitive-valued
+ * maps, which serves lookups directly from a memory-mapped file.
+ *
+ * Opening only reads the header and the length of each block, so it takes constant time
+ * regardless of the size of the map. The key references, values and key bytes stay in the file,
+ * and pages are loaded by the OS as lookups touch them. Processes which open the same file share
+ * those pages in the page cache. Block checksums are not verified; load the snapshot with
+ * {@code readFrom} to check them.
+ *
+ * The mapping stays valid until the map is garbage collected, even if the file is deleted. The
+ * file must not be modified while it's open.
+ */
+public class MappedPocketMap {
+  private static final int SEGMENT_BITS = 30;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+  private final Hasher hasher;
+  private final int valueType;
+  private final int size;
+  private final int mask;
+  // keys and values are mapped in 1 GiB segments, so that arrays over 2 GiB can be mapped
+  private final ByteBuffer[] keySegments;
+  private final ByteBuffer[] valueSegments;
+  private final int valueWidth;
+  private final ByteBuffer[] storage;
+
+  private MappedPocketMap(final Hasher hasher, SnapshotIO.Header header, ByteBuffer[] keySegments,
+      ByteBuffer[] valueSegments, ByteBuffer[] storage) {
+    this.hasher = hasher;
+    this.valueType = header.valueType;
+    this.size = header.size;
+    this.mask = header.capacity - 1;
+    this.keySegments = keySegments;
+    this.valueSegments = valueSegments;
+    this.valueWidth = SnapshotIO.typeWidth(header.valueType);
+    this.storage = storage;
+  }
+
+  public static MappedPocketMap open(Path path) throws IOException {
+    return open(path, DefaultHasher.instance());
+  }
+
+  /**
+   * Maps the snapshot at {@code path}, which must have been written by a map using an equivalent
+   * {@code hasher}.
+   *
+   * @throws IOException if the file can't be read or isn't a snapshot
+   */
+  public static MappedPocketMap open(Path path, final Hasher hasher) throws IOException {
+    Objects.requireNonNull(hasher);
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      long fileSize = ch.size();
+      SnapshotIO.Header header = SnapshotIO.readHeader(ch);
+      long pos = ch.position();
+      long keysLength = (long) header.capacity * Long.BYTES;
+      ByteBuffer[] keySegments = mapBlock(ch, pos, keysLength, fileSize);
+      pos = nextBlock(pos, keysLength);
+      long valuesLength = (long) header.capacity * SnapshotIO.typeWidth(header.valueType);
+      ByteBuffer[] valueSegments = mapBlock(ch, pos, valuesLength, fileSize);
+      pos = nextBlock(pos, valuesLength);
+      ByteBuffer[] storage = new ByteBuffer[header.bufferCount];
+      for (int i = 0; i < storage.length; i++) {
+        long length = readBlockLength(ch, pos);
+        if (length > BUF_SIZE) {
+          throw new IOException("snapshot block is too long");
+        }
+        storage[i] = mapBlock(ch, pos, length, fileSize)[0];
+        pos = nextBlock(pos, length);
+      }
+      return new MappedPocketMap(hasher, header, keySegments, valueSegments, storage);
+    }
+  }
+
+  public static StringWrapper openUtf8(Path path) throws IOException {
+    return new StringWrapper(open(path), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper openUtf8(Path path, final Hasher hasher) throws IOException {
+    return new StringWrapper(open(path, hasher), StandardCharsets.UTF_8);
+  }
+
+  private static long readBlockLength(FileChannel ch, long pos) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    while (buf.hasRemaining()) {
+      if (ch.read(buf, pos + buf.position()) < 0) {
+        throw new IOException("unexpected end of snapshot");
+      }
+    }
+    return buf.getLong(0);
+  }
+
+  private static ByteBuffer[] mapBlock(FileChannel ch, long pos, long expectedLength, long fileSize) throws IOException {
+    if (readBlockLength(ch, pos) != expectedLength) {
+      throw new IOException("unexpected snapshot block length");
+    }
+    if (nextBlock(pos, expectedLength) > fileSize) {
+      throw new IOException("unexpected end of snapshot");
+    }
+    long start = pos + 8;
+    int count = (int) Math.max(1, (expectedLength + SEGMENT_MASK) >>> SEGMENT_BITS);
+    ByteBuffer[] segments = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      long offset = (long) i << SEGMENT_BITS;
+      long length = Math.min(expectedLength - offset, 1L << SEGMENT_BITS);
+      segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start + offset, length)
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return segments;
+  }
+
+  private static long nextBlock(long pos, long length) {
+    return pos + SnapshotIO.BLOCK_OVERHEAD + length + SnapshotIO.padding(length);
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.readIndex(key) >= 0;
+  }
+
+  public boolean getBoolean(byte[] key, boolean defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_BOOLEAN);
+    return idx >= 0 ? this.valueByte(idx) != 0 : defaultValue;
+  }
+
+  public byte getByte(byte[] key, byte defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_BYTE);
+    return idx >= 0 ? this.valueByte(idx) : defaultValue;
+  }
+
+  public short getShort(byte[] key, short defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_SHORT);
+    if (idx < 0) {
+      return defaultValue;
+    }
+    long pos = (long) idx * Short.BYTES;
+    return this.valueSegments[(int) (pos >>> SEGMENT_BITS)].getShort((int) (pos & SEGMENT_MASK));
+  }
+
+  public int getInt(byte[] key, int defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_INT);
+    if (idx < 0) {
+      return defaultValue;
+    }
+    long pos = (long) idx * Integer.BYTES;
+    return this.valueSegments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & SEGMENT_MASK));
+  }
+
+  public long getLong(byte[] key, long defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_LONG);
+    if (idx < 0) {
+      return defaultValue;
+    }
+    long pos = (long) idx * Long.BYTES;
+    return this.valueSegments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+  }
+
+  public float getFloat(byte[] key, float defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_FLOAT);
+    if (idx < 0) {
+      return defaultValue;
+    }
+    long pos = (long) idx * Float.BYTES;
+    return this.valueSegments[(int) (pos >>> SEGMENT_BITS)].getFloat((int) (pos & SEGMENT_MASK));
+  }
+
+  public double getDouble(byte[] key, double defaultValue) {
+    int idx = this.readIndex(key, SnapshotIO.TYPE_DOUBLE);
+    if (idx < 0) {
+      return defaultValue;
+    }
+    long pos = (long) idx * Double.BYTES;
+    return this.valueSegments[(int) (pos >>> SEGMENT_BITS)].getDouble((int) (pos & SEGMENT_MASK));
+  }
+
+  private byte valueByte(int idx) {
+    return this.valueSegments[idx >>> SEGMENT_BITS].get((int) (idx & SEGMENT_MASK));
+  }
+
+  private long keyAt(int idx) {
+    long pos = (long) idx * Long.BYTES;
+    return this.keySegments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+  }
+
+  private int readIndex(byte[] key, int expectedValueType) {
+    if (this.valueType != expectedValueType) {
+      throw new IllegalStateException(
+          "map has " + SnapshotIO.typeName(this.valueType) + " values, not " + SnapshotIO.typeName(expectedValueType));
+    }
+    return this.readIndex(key);
+  }
+
+  private int readIndex(byte[] key) {
+    int h = this.hasher.hashBytes(key) & this.mask;
+    int distance = 1;
+    long keyRef;
+    while (((keyRef = this.keyAt(h)) & ALIVE_H2_MASK) > 0) {
+      if ((keyRef & ALIVE_FLAG) != 0 && this.equalsAt(keyRef, key)) {
+        return h;
+      }
+      h = (h + distance) & this.mask;
+      distance++;
+    }
+    return -1;
+  }
+
+  private boolean equalsAt(long keyRef, byte[] other) {
+    int which = (int) (keyRef >>> (KEY_OFFSET_BITS + KEY_LEN_BITS + H2_BITS + 1));
+    int offset = (int) ((keyRef >>> (KEY_LEN_BITS + H2_BITS + 1)) & KEY_OFFSET_MASK);
+    int length = (int) ((keyRef >>> (H2_BITS + 1)) & KEY_LEN_MASK);
+    if (other.length != length) {
+      return false;
+    }
+    ByteBuffer buf = this.storage[which];
+    int i = 0;
+    if (length >= Long.BYTES) {
+      ByteBuffer otherBuf = ByteBuffer.wrap(other).order(ByteOrder.LITTLE_ENDIAN);
+      for (; i <= length - Long.BYTES; i += Long.BYTES) {
+        if (buf.getLong(offset + i) != otherBuf.getLong(i)) {
+          return false;
+        }
+      }
+    }
+    for (; i < length; i++) {
+      if (buf.get(offset + i) != other[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static class StringWrapper {
+    protected final MappedPocketMap inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final MappedPocketMap inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+      return inner.getBoolean(key.getBytes(this.charset), defaultValue);
+    }
+
+    public byte getByte(String key, byte defaultValue) {
+      return inner.getByte(key.getBytes(this.charset), defaultValue);
+    }
+
+    public short getShort(String key, short defaultValue) {
+      return inner.getShort(key.getBytes(this.charset), defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+      return inner.getInt(key.getBytes(this.charset), defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+      return inner.getLong(key.getBytes(this.charset), defaultValue);
+    }
+
+    public float getFloat(String key, float defaultValue) {
+      return inner.getFloat(key.getBytes(this.charset), defaultValue);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+      return inner.getDouble(key.getBytes(this.charset), defaultValue);
+    }
+  }
+}
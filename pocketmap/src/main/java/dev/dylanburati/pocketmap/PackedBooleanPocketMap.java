@@ -0,0 +1,172 @@
+package dev.dylanburati.pocketmap;
+
+import static dev.dylanburati.pocketmap.KeyStorage.ALIVE_FLAG;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Map from byte array keys to booleans, stored as a single {@code long[]} of key references plus
+ * the key storage. The low bit of a key reference is only needed to tell a tombstone from an
+ * empty slot, which both have the alive bit clear, so in live references this map uses it for
+ * the value. Compared to
+ * {@link BooleanPocketMap}, there is no {@code boolean[]}, so each slot is a byte smaller and a
+ * lookup touches one array.
+ */
+public class PackedBooleanPocketMap {
+  private static final int DEFAULT_CAPACITY = 65536;
+  private static final long VALUE_BIT = KeyStorage.H2_MASK;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  // INVARIANT 0: for live keys, (k & VALUE_BIT) != 0 IFF the value is true
+  private final KeyTable table;
+
+  public PackedBooleanPocketMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PackedBooleanPocketMap(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  public PackedBooleanPocketMap(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 0);
+  }
+
+  public static StringWrapper newUtf8() {
+    return new StringWrapper(new PackedBooleanPocketMap(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    return new StringWrapper(new PackedBooleanPocketMap(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    return new StringWrapper(new PackedBooleanPocketMap(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.table.readIndex(this.hasher.hashBytes(key), key) >= 0;
+  }
+
+  public boolean get(byte[] key, boolean defaultValue) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? (this.table.keys[idx] & VALUE_BIT) != 0 : defaultValue;
+  }
+
+  public void put(byte[] key, boolean value) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      this.table.keys[idx] = withValue(this.table.keys[idx], value);
+    } else {
+      this.insertByIndex(-idx - 1, hash, key, value);
+    }
+  }
+
+  /** Flips the value for {@code key}, inserting it as true if absent, and returns the new value. */
+  public boolean toggle(byte[] key) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      this.table.keys[idx] ^= VALUE_BIT;
+      return (this.table.keys[idx] & VALUE_BIT) != 0;
+    }
+    this.insertByIndex(-idx - 1, hash, key, true);
+    return true;
+  }
+
+  public boolean remove(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    this.table.clear();
+  }
+
+  public void forEach(BiConsumer<? super byte[], ? super Boolean> action) {
+    Objects.requireNonNull(action);
+    long[] keys = this.table.keys;
+    for (int idx = 0; idx < keys.length; idx++) {
+      if ((keys[idx] & ALIVE_FLAG) == ALIVE_FLAG) {
+        action.accept(this.keyStorage.load(keys[idx]), (keys[idx] & VALUE_BIT) != 0);
+      }
+    }
+  }
+
+  private static long withValue(long keyRef, boolean value) {
+    return value ? keyRef | VALUE_BIT : keyRef & ~VALUE_BIT;
+  }
+
+  private void insertByIndex(int idx, int hash, byte[] keyContent, boolean value) {
+    if (this.table.needsRehash(idx)) {
+      // the values move along with the rest of the key references
+      this.table.rehashKeys();
+      idx = this.table.insertionIndex(hash);
+    }
+    this.table.fill(idx, withValue(this.keyStorage.store(keyContent), value));
+  }
+
+  public static class StringWrapper {
+    protected final PackedBooleanPocketMap inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final PackedBooleanPocketMap inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public boolean get(String key, boolean defaultValue) {
+      return inner.get(key.getBytes(this.charset), defaultValue);
+    }
+
+    public void put(String key, boolean value) {
+      inner.put(key.getBytes(this.charset), value);
+    }
+
+    public boolean toggle(String key) {
+      return inner.toggle(key.getBytes(this.charset));
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void clear() {
+      inner.clear();
+    }
+
+    public void forEach(BiConsumer<? super String, ? super Boolean> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, v) -> action.accept(new String(k, this.charset), v));
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Minimal perfect hash over a fixed set of keys, which assigns each key an index in
+ * {@code [0, size)}. Used by {@code freezePerfect}, which stores values in an array of exactly
+ * {@code size} elements.
+ *
+ * The construction follows BBHash: at each level, every remaining key is hashed to a position in
+ * a bit array twice as long as the number of keys. Keys which are alone in their position are
+ * placed, and the others move on to the next level. A key's index is the number of set bits
+ * before its position, across all levels. About 60% of the keys are placed at each level, so the
+ * bit arrays total about 3.3 bits per key, plus a 32-bit rank for every 64 bits.
+ *
+ * The positions at each level are derived from the 32-bit {@link Hasher} output, so keys with
+ * equal hashes can't be separated. These, and any keys left after the last level, are kept in
+ * a list sorted by hash, which is searched after the levels.
+ */
+/* package-private */ final class PerfectHashIndex {
+  private static final int MAX_LEVELS = 32;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  // the key at each index, stored in index order
+  private final long[] keyRefs;
+  // bit offset and length of each level in bits
+  private final int[] levelStarts;
+  private final int[] levelSizes;
+  private final long[] bits;
+  // number of set bits before each word of bits
+  private final int[] ranks;
+  private final int fallbackStart;
+  private final int[] fallbackHashes;
+
+  private PerfectHashIndex(final KeyStorage keyStorage, long[] keyRefs, int[] levelStarts,
+      int[] levelSizes, long[] bits, int[] ranks, int fallbackStart, int[] fallbackHashes) {
+    this.hasher = keyStorage.hasher;
+    this.keyStorage = keyStorage;
+    this.keyRefs = keyRefs;
+    this.levelStarts = levelStarts;
+    this.levelSizes = levelSizes;
+    this.bits = bits;
+    this.ranks = ranks;
+    this.fallbackStart = fallbackStart;
+    this.fallbackHashes = fallbackHashes;
+  }
+
+  /**
+   * Builds an index over the distinct keys {@code keyRefs} from {@code source}, and sets
+   * {@code indices[i]} to the index assigned to {@code keyRefs[i]}. The keys are copied to new
+   * key storage in index order.
+   */
+  static PerfectHashIndex build(KeyStorage source, long[] keyRefs, int[] indices) {
+    int n = keyRefs.length;
+    int[] hashes = new int[n];
+    for (int i = 0; i < n; i++) {
+      hashes[i] = source.hashAt(keyRefs[i]);
+    }
+
+    int[] remaining = new int[n];
+    for (int i = 0; i < n; i++) {
+      remaining[i] = i;
+    }
+    int remainingCount = n;
+    long[][] levelBits = new long[MAX_LEVELS][];
+    int[] levelStarts = new int[MAX_LEVELS];
+    int[] levelSizes = new int[MAX_LEVELS];
+    int levelCount = 0;
+    long totalBits = 0;
+    while (remainingCount > 0 && levelCount < MAX_LEVELS) {
+      int level = levelCount;
+      // whole words, so that each level starts at a word boundary
+      int size = (int) Math.min(1L << 30, (2L * remainingCount + 63) & ~63L);
+      long[] seen = new long[size >>> 6];
+      long[] collided = new long[size >>> 6];
+      for (int j = 0; j < remainingCount; j++) {
+        int pos = position(hashes[remaining[j]], level, size);
+        long bit = 1L << pos;
+        if ((seen[pos >>> 6] & bit) != 0) {
+          collided[pos >>> 6] |= bit;
+        }
+        seen[pos >>> 6] |= bit;
+      }
+      for (int w = 0; w < seen.length; w++) {
+        seen[w] &= ~collided[w];
+      }
+      int nextCount = 0;
+      for (int j = 0; j < remainingCount; j++) {
+        int pos = position(hashes[remaining[j]], level, size);
+        if ((seen[pos >>> 6] & (1L << pos)) == 0) {
+          remaining[nextCount++] = remaining[j];
+        }
+      }
+      remainingCount = nextCount;
+      levelBits[level] = seen;
+      levelStarts[level] = (int) totalBits;
+      levelSizes[level] = size;
+      totalBits += size;
+      if (totalBits > Integer.MAX_VALUE) {
+        throw new IllegalStateException("too many keys");
+      }
+      levelCount++;
+    }
+
+    long[] bits = new long[(int) (totalBits >>> 6)];
+    for (int level = 0; level < levelCount; level++) {
+      System.arraycopy(levelBits[level], 0, bits, levelStarts[level] >>> 6, levelBits[level].length);
+    }
+    int[] ranks = new int[bits.length];
+    int rank = 0;
+    for (int w = 0; w < bits.length; w++) {
+      ranks[w] = rank;
+      rank += Long.bitCount(bits[w]);
+    }
+    int fallbackStart = rank;
+
+    // the keys which were never placed, sorted by hash
+    long[] fallback = new long[remainingCount];
+    for (int j = 0; j < remainingCount; j++) {
+      fallback[j] = ((long) hashes[remaining[j]] << 32) | remaining[j];
+    }
+    Arrays.sort(fallback);
+    int[] fallbackHashes = new int[remainingCount];
+    for (int j = 0; j < remainingCount; j++) {
+      fallbackHashes[j] = (int) (fallback[j] >> 32);
+      indices[(int) fallback[j]] = fallbackStart + j;
+    }
+
+    PerfectHashIndex partial = new PerfectHashIndex(source, null, Arrays.copyOf(levelStarts, levelCount),
+        Arrays.copyOf(levelSizes, levelCount), bits, ranks, fallbackStart, fallbackHashes);
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      int idx = partial.placedIndex(hashes[i]);
+      if (idx >= 0) {
+        indices[i] = idx;
+      }
+      order[indices[i]] = i;
+    }
+    KeyStorage keyStorage = new KeyStorage(source.hasher);
+    long[] copied = new long[n];
+    for (int idx = 0; idx < n; idx++) {
+      copied[idx] = keyStorage.copyFrom(source, keyRefs[order[idx]]);
+    }
+    return new PerfectHashIndex(keyStorage, copied, partial.levelStarts, partial.levelSizes, bits,
+        ranks, fallbackStart, fallbackHashes);
+  }
+
+  private static int position(int hash, int level, int size) {
+    // murmur3 fmix64, since the hasher's output may not be well mixed
+    long x = (hash & 0xffffffffL) | ((long) level << 32);
+    x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+    x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return (int) (((x >>> 32) * size) >>> 32);
+  }
+
+  // Returns the index of the only key which could have this hash among the placed keys, or -1
+  private int placedIndex(int hash) {
+    for (int level = 0; level < this.levelStarts.length; level++) {
+      int pos = this.levelStarts[level] + position(hash, level, this.levelSizes[level]);
+      long word = this.bits[pos >>> 6];
+      if ((word & (1L << pos)) != 0) {
+        return this.ranks[pos >>> 6] + Long.bitCount(word & ((1L << pos) - 1));
+      }
+    }
+    return -1;
+  }
+
+  int size() {
+    return this.keyRefs.length;
+  }
+
+  /** Returns the index of the key, or -1 if it isn't in the set. */
+  int indexOf(byte[] key) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.placedIndex(hash);
+    if (idx >= 0) {
+      return this.keyStorage.equalsAt(this.keyRefs[idx], key) ? idx : -1;
+    }
+    int j = Arrays.binarySearch(this.fallbackHashes, hash);
+    if (j < 0) {
+      return -1;
+    }
+    while (j > 0 && this.fallbackHashes[j - 1] == hash) {
+      j--;
+    }
+    for (; j < this.fallbackHashes.length && this.fallbackHashes[j] == hash; j++) {
+      if (this.keyStorage.equalsAt(this.keyRefs[this.fallbackStart + j], key)) {
+        return this.fallbackStart + j;
+      }
+    }
+    return -1;
+  }
+
+  byte[] keyAt(int idx) {
+    return this.keyStorage.load(this.keyRefs[idx]);
+  }
+
+  String keyAt(int idx, Charset charset) {
+    return this.keyStorage.loadAsString(this.keyRefs[idx], charset);
+  }
+}
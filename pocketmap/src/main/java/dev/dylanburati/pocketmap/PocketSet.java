@@ -0,0 +1,349 @@
+package dev.dylanburati.pocketmap;
+
+import static dev.dylanburati.pocketmap.KeyStorage.ALIVE_FLAG;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Set of byte array keys, laid out like the key half of a {@link PocketMap}: a table of 8-byte
+ * references into shared key storage, with no values array.
+ *
+ * {@link #addAll}, {@link #retainAll} and {@link #removeAll} (union, intersection and
+ * difference) have fast paths for another {@code PocketSet}, which hash and compare the other
+ * set's stored keys in place instead of copying each one out to a {@code byte[]}.
+ */
+public class PocketSet extends AbstractSet<byte[]> {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  private final KeyTable table;
+  private int rehashCount;
+
+  public PocketSet() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PocketSet(int initialCapacity) {
+    this(initialCapacity, DefaultHasher.instance());
+  }
+
+  public PocketSet(int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 0);
+  }
+
+  public static StringWrapper newUtf8() {
+    return new StringWrapper(new PocketSet(), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity) {
+    return new StringWrapper(new PocketSet(initialCapacity), StandardCharsets.UTF_8);
+  }
+  public static StringWrapper newUtf8(int initialCapacity, final Hasher hasher) {
+    return new StringWrapper(new PocketSet(initialCapacity, hasher), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public int size() {
+    return this.table.size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  @Override
+  public boolean contains(Object key) {
+    if (!(key instanceof byte[])) {
+      return false;
+    }
+    byte[] keyContent = (byte[]) key;
+    return this.table.readIndex(this.hasher.hashBytes(keyContent), keyContent, 0, keyContent.length) >= 0;
+  }
+
+  @Override
+  public boolean add(byte[] key) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key, 0, key.length);
+    if (idx >= 0) {
+      return false;
+    }
+    this.insertByIndex(-idx - 1, hash, key, 0, key.length);
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object key) {
+    if (!(key instanceof byte[])) {
+      return false;
+    }
+    byte[] keyContent = (byte[]) key;
+    int idx = this.table.readIndex(this.hasher.hashBytes(keyContent), keyContent, 0, keyContent.length);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void clear() {
+    this.table.clear();
+    this.rehashCount++;
+  }
+
+  @Override
+  public Iterator<byte[]> iterator() {
+    return new KeyIterator(this);
+  }
+
+  /** Adds every key in {@code c}, which is the union when {@code c} is a set. */
+  @Override
+  public boolean addAll(Collection<? extends byte[]> c) {
+    if (!(c instanceof PocketSet)) {
+      return super.addAll(c);
+    }
+    PocketSet other = (PocketSet) c;
+    boolean modified = false;
+    for (int src = 0; src < other.table.keys.length; src++) {
+      long keyRef = other.table.keys[src];
+      if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG) {
+        int hash = other.keyStorage.hashAt(keyRef, this.hasher);
+        byte[] array = other.keyStorage.arrayOf(keyRef);
+        int offset = KeyStorage.offsetOf(keyRef);
+        int length = KeyStorage.lengthOf(keyRef);
+        int idx = this.table.readIndex(hash, array, offset, length);
+        if (idx < 0) {
+          this.insertByIndex(-idx - 1, hash, array, offset, length);
+          modified = true;
+        }
+      }
+    }
+    return modified;
+  }
+
+  /** Removes the keys not in {@code c}, which leaves the intersection. */
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    if (!(c instanceof PocketSet)) {
+      return super.retainAll(c);
+    }
+    PocketSet other = (PocketSet) c;
+    boolean modified = false;
+    // removing only leaves tombstones, so the table doesn't move during the loop
+    for (int idx = 0; idx < this.table.keys.length; idx++) {
+      long keyRef = this.table.keys[idx];
+      if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG && !other.containsStored(this.keyStorage, keyRef)) {
+        this.table.remove(idx);
+        modified = true;
+      }
+    }
+    return modified;
+  }
+
+  /** Removes the keys in {@code c}, which leaves the difference. */
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    if (!(c instanceof PocketSet)) {
+      return super.removeAll(c);
+    }
+    PocketSet other = (PocketSet) c;
+    boolean modified = false;
+    if (other.table.size < this.table.size) {
+      // probe this set once for each key of the smaller set
+      for (int src = 0; src < other.table.keys.length; src++) {
+        long keyRef = other.table.keys[src];
+        if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG) {
+          int idx = this.readStored(other.keyStorage, keyRef);
+          if (idx >= 0) {
+            this.table.remove(idx);
+            modified = true;
+          }
+        }
+      }
+    } else {
+      for (int idx = 0; idx < this.table.keys.length; idx++) {
+        long keyRef = this.table.keys[idx];
+        if ((keyRef & ALIVE_FLAG) == ALIVE_FLAG && other.containsStored(this.keyStorage, keyRef)) {
+          this.table.remove(idx);
+          modified = true;
+        }
+      }
+    }
+    return modified;
+  }
+
+  private boolean containsStored(KeyStorage src, long keyRef) {
+    return this.readStored(src, keyRef) >= 0;
+  }
+
+  // readIndex for a key in src, which may be another set's storage
+  private int readStored(KeyStorage src, long keyRef) {
+    int hash = src.hashAt(keyRef, this.hasher);
+    return this.table.readIndex(hash, src.arrayOf(keyRef), KeyStorage.offsetOf(keyRef), KeyStorage.lengthOf(keyRef));
+  }
+
+  private void insertByIndex(int idx, int hash, byte[] src, int offset, int length) {
+    if (this.table.needsRehash(idx)) {
+      this.table.rehashKeys();
+      this.rehashCount++;
+      idx = this.table.insertionIndex(hash);
+    }
+    this.table.fill(idx, this.keyStorage.store(src, offset, length));
+  }
+
+  protected static abstract class HashIterator {
+    protected final PocketSet owner;
+    private final int rehashCount;
+    private int index;
+    private int nextIndex;
+
+    protected HashIterator(final PocketSet owner) {
+      this.owner = owner;
+      this.rehashCount = owner.rehashCount;
+      this.index = -1;
+      this.nextIndex = this.findIndex(0);
+    }
+
+    private final int findIndex(int start) {
+      if (this.rehashCount != owner.rehashCount) {
+        throw new ConcurrentModificationException();
+      }
+      for (int src = start; src < owner.table.keys.length; src++) {
+        if ((owner.table.keys[src] & ALIVE_FLAG) == ALIVE_FLAG) {
+          return src;
+        }
+      }
+      return -1;
+    }
+
+    public final boolean hasNext() {
+      return nextIndex != -1;
+    }
+
+    public final void remove() {
+      if (this.index < 0 || (owner.table.keys[this.index] & ALIVE_FLAG) == 0) {
+        throw new IllegalStateException();
+      }
+      owner.table.remove(this.index);
+    }
+
+    protected int advance() {
+      if (this.nextIndex < 0) {
+        throw new NoSuchElementException();
+      }
+      this.index = this.nextIndex;
+      this.nextIndex = this.findIndex(this.index + 1);
+      return this.index;
+    }
+  }
+
+  protected static class KeyIterator extends HashIterator implements Iterator<byte[]> {
+    protected KeyIterator(final PocketSet owner) {
+      super(owner);
+    }
+    public final byte[] next() {
+      int idx = this.advance();
+      return owner.keyStorage.load(owner.table.keys[idx]);
+    }
+  }
+
+  protected static class StringWrapperKeyIterator extends HashIterator implements Iterator<String> {
+    private final Charset charset;
+
+    protected StringWrapperKeyIterator(final PocketSet owner, final Charset charset) {
+      super(owner);
+      this.charset = charset;
+    }
+    public final String next() {
+      int idx = this.advance();
+      return owner.keyStorage.loadAsString(owner.table.keys[idx], this.charset);
+    }
+  }
+
+  public static class StringWrapper extends AbstractSet<String> {
+    protected final PocketSet inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final PocketSet inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    @Override
+    public int size() {
+      return inner.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object key) {
+      if (!(key instanceof String)) {
+        return false;
+      }
+      return inner.contains(((String) key).getBytes(this.charset));
+    }
+
+    @Override
+    public boolean add(String key) {
+      return inner.add(key.getBytes(this.charset));
+    }
+
+    @Override
+    public boolean remove(Object key) {
+      if (!(key instanceof String)) {
+        return false;
+      }
+      return inner.remove(((String) key).getBytes(this.charset));
+    }
+
+    @Override
+    public void clear() {
+      inner.clear();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return new StringWrapperKeyIterator(inner, this.charset);
+    }
+
+    // the raw key paths only apply when both sides encode strings the same way
+
+    @Override
+    public boolean addAll(Collection<? extends String> c) {
+      if (c instanceof StringWrapper && this.charset.equals(((StringWrapper) c).charset)) {
+        return inner.addAll(((StringWrapper) c).inner);
+      }
+      return super.addAll(c);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+      if (c instanceof StringWrapper && this.charset.equals(((StringWrapper) c).charset)) {
+        return inner.retainAll(((StringWrapper) c).inner);
+      }
+      return super.retainAll(c);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+      if (c instanceof StringWrapper && this.charset.equals(((StringWrapper) c).charset)) {
+        return inner.removeAll(((StringWrapper) c).inner);
+      }
+      return super.removeAll(c);
+    }
+  }
+}
@@ -0,0 +1,517 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Map from byte array keys to several primitive values, stored in one column array per value.
+ * All columns share a single key table and key storage, so each key is stored and probed once
+ * however many values it has.
+ *
+ * Values are read and written by slot: {@link #slotOf} finds a key's slot, and {@link #slotFor}
+ * also inserts it, with every column set to 0. A slot stays valid until the next insertion,
+ * which may resize the table. Columns can be accessed by index, or through a typed handle such
+ * as {@link LongColumn}, which skips the check of the column's type on each access.
+ *
+ * <pre>{@code
+ * PocketTable.StringWrapper t = PocketTable.builder()
+ *     .longColumn("count").longColumn("lastSeen").intColumn("flags").newUtf8();
+ * PocketTable.LongColumn count = t.longColumn("count");
+ * int slot = t.slotFor("word");
+ * count.add(slot, 1L);
+ * }</pre>
+ */
+public class PocketTable {
+  private static final int DEFAULT_CAPACITY = 65536;
+
+  private final Hasher hasher;
+  private final KeyStorage keyStorage;
+  private final String[] columnNames;
+  // type and position within the arrays below of each column, in declaration order
+  private final Class<?>[] columnTypes;
+  private final int[] columnPositions;
+  private final KeyTable table;
+  // INVARIANT 0: every column has length table.capacity()
+  private final int[][] intColumns;
+  private final long[][] longColumns;
+  private final float[][] floatColumns;
+  private final double[][] doubleColumns;
+
+  private PocketTable(List<String> names, List<Class<?>> types, int initialCapacity, final Hasher hasher) {
+    this.hasher = Objects.requireNonNull(hasher);
+    this.keyStorage = new KeyStorage(hasher);
+    this.table = new KeyTable(this.keyStorage, initialCapacity, 0);
+    int cap = this.table.capacity();
+    this.columnNames = names.toArray(new String[0]);
+    this.columnTypes = types.toArray(new Class<?>[0]);
+    this.columnPositions = new int[this.columnTypes.length];
+    int[] counts = new int[4];
+    for (int c = 0; c < this.columnTypes.length; c++) {
+      this.columnPositions[c] = counts[typeOrdinal(this.columnTypes[c])]++;
+    }
+    this.intColumns = new int[counts[0]][cap];
+    this.longColumns = new long[counts[1]][cap];
+    this.floatColumns = new float[counts[2]][cap];
+    this.doubleColumns = new double[counts[3]][cap];
+  }
+
+  private static int typeOrdinal(Class<?> type) {
+    if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 1;
+    } else if (type == float.class) {
+      return 2;
+    }
+    return 3;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Declares the columns of a {@link PocketTable}. Column indices follow the order of the calls. */
+  public static class Builder {
+    private final List<String> names = new ArrayList<>();
+    private final List<Class<?>> types = new ArrayList<>();
+    private int initialCapacity = DEFAULT_CAPACITY;
+    private Hasher hasher = DefaultHasher.instance();
+
+    private Builder() {
+    }
+
+    private Builder column(String name, Class<?> type) {
+      if (this.names.contains(Objects.requireNonNull(name))) {
+        throw new IllegalArgumentException("duplicate column " + name);
+      }
+      this.names.add(name);
+      this.types.add(type);
+      return this;
+    }
+
+    public Builder intColumn(String name) {
+      return this.column(name, int.class);
+    }
+
+    public Builder longColumn(String name) {
+      return this.column(name, long.class);
+    }
+
+    public Builder floatColumn(String name) {
+      return this.column(name, float.class);
+    }
+
+    public Builder doubleColumn(String name) {
+      return this.column(name, double.class);
+    }
+
+    public Builder initialCapacity(int initialCapacity) {
+      this.initialCapacity = initialCapacity;
+      return this;
+    }
+
+    public Builder hasher(final Hasher hasher) {
+      this.hasher = Objects.requireNonNull(hasher);
+      return this;
+    }
+
+    public PocketTable build() {
+      return new PocketTable(this.names, this.types, this.initialCapacity, this.hasher);
+    }
+
+    public StringWrapper newUtf8() {
+      return new StringWrapper(this.build(), StandardCharsets.UTF_8);
+    }
+  }
+
+  public int size() {
+    return this.table.size;
+  }
+
+  public boolean isEmpty() {
+    return this.table.size == 0;
+  }
+
+  public int columnCount() {
+    return this.columnNames.length;
+  }
+
+  /** Returns the index of the named column, or -1 if there is no such column. */
+  public int column(String name) {
+    for (int c = 0; c < this.columnNames.length; c++) {
+      if (this.columnNames[c].equals(name)) {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the slot holding {@code key}'s values, or -1 if absent. */
+  public int slotOf(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    return idx >= 0 ? idx : -1;
+  }
+
+  /** Returns the slot holding {@code key}'s values, inserting it with all values 0 if absent. */
+  public int slotFor(byte[] key) {
+    int hash = this.hasher.hashBytes(key);
+    int idx = this.table.readIndex(hash, key);
+    if (idx >= 0) {
+      return idx;
+    }
+    return this.insertByIndex(-idx - 1, hash, key);
+  }
+
+  public boolean containsKey(byte[] key) {
+    return this.slotOf(key) >= 0;
+  }
+
+  public boolean remove(byte[] key) {
+    int idx = this.table.readIndex(this.hasher.hashBytes(key), key);
+    if (idx >= 0) {
+      this.table.remove(idx);
+      return true;
+    }
+    return false;
+  }
+
+  public void clear() {
+    this.table.clear();
+  }
+
+  /** Calls {@code action} with each key and its slot. The table must not be modified meanwhile. */
+  public void forEach(ObjIntConsumer<? super byte[]> action) {
+    Objects.requireNonNull(action);
+    for (int idx = 0; idx < this.table.capacity(); idx++) {
+      if (this.table.isLive(idx)) {
+        action.accept(this.keyStorage.load(this.table.keyRef(idx)), idx);
+      }
+    }
+  }
+
+  // returns the position of the column among those of its type
+  private int position(int column, Class<?> type) {
+    if (this.columnTypes[column] != type) {
+      throw new IllegalArgumentException("column " + this.columnNames[column] + " is not " + (type == int.class ? "an " : "a ") + type + " column");
+    }
+    return this.columnPositions[column];
+  }
+
+  private int position(String name, Class<?> type) {
+    int column = this.column(name);
+    if (column < 0) {
+      throw new IllegalArgumentException("no column " + name);
+    }
+    return this.position(column, type);
+  }
+
+  private int[] ints(int column) {
+    return this.intColumns[this.position(column, int.class)];
+  }
+
+  private long[] longs(int column) {
+    return this.longColumns[this.position(column, long.class)];
+  }
+
+  private float[] floats(int column) {
+    return this.floatColumns[this.position(column, float.class)];
+  }
+
+  private double[] doubles(int column) {
+    return this.doubleColumns[this.position(column, double.class)];
+  }
+
+  /** @throws IllegalArgumentException if there is no int column with this name */
+  public IntColumn intColumn(String name) {
+    return new IntColumn(this, this.position(name, int.class));
+  }
+
+  /** @throws IllegalArgumentException if there is no long column with this name */
+  public LongColumn longColumn(String name) {
+    return new LongColumn(this, this.position(name, long.class));
+  }
+
+  /** @throws IllegalArgumentException if there is no float column with this name */
+  public FloatColumn floatColumn(String name) {
+    return new FloatColumn(this, this.position(name, float.class));
+  }
+
+  /** @throws IllegalArgumentException if there is no double column with this name */
+  public DoubleColumn doubleColumn(String name) {
+    return new DoubleColumn(this, this.position(name, double.class));
+  }
+
+  public int getInt(int slot, int column) {
+    return this.ints(column)[slot];
+  }
+
+  public void setInt(int slot, int column, int value) {
+    this.ints(column)[slot] = value;
+  }
+
+  /** Adds {@code delta} to the value and returns the sum. */
+  public int addInt(int slot, int column, int delta) {
+    return this.ints(column)[slot] += delta;
+  }
+
+  public long getLong(int slot, int column) {
+    return this.longs(column)[slot];
+  }
+
+  public void setLong(int slot, int column, long value) {
+    this.longs(column)[slot] = value;
+  }
+
+  /** Adds {@code delta} to the value and returns the sum. */
+  public long addLong(int slot, int column, long delta) {
+    return this.longs(column)[slot] += delta;
+  }
+
+  public float getFloat(int slot, int column) {
+    return this.floats(column)[slot];
+  }
+
+  public void setFloat(int slot, int column, float value) {
+    this.floats(column)[slot] = value;
+  }
+
+  public double getDouble(int slot, int column) {
+    return this.doubles(column)[slot];
+  }
+
+  public void setDouble(int slot, int column, double value) {
+    this.doubles(column)[slot] = value;
+  }
+
+  // returns the slot used
+  private int insertByIndex(int idx, int hash, byte[] keyContent) {
+    if (this.table.needsRehash(idx)) {
+      int[] dests = this.table.rehash();
+      int cap = this.table.capacity();
+      for (int c = 0; c < this.intColumns.length; c++) {
+        this.intColumns[c] = KeyTable.move(this.intColumns[c], dests, cap);
+      }
+      for (int c = 0; c < this.longColumns.length; c++) {
+        this.longColumns[c] = KeyTable.move(this.longColumns[c], dests, cap);
+      }
+      for (int c = 0; c < this.floatColumns.length; c++) {
+        this.floatColumns[c] = KeyTable.move(this.floatColumns[c], dests, cap);
+      }
+      for (int c = 0; c < this.doubleColumns.length; c++) {
+        this.doubleColumns[c] = KeyTable.move(this.doubleColumns[c], dests, cap);
+      }
+      idx = this.table.insertionIndex(hash);
+    }
+    this.table.fill(idx, this.keyStorage.store(keyContent));
+    // a reused slot still holds the removed key's values
+    for (int[] values : this.intColumns) {
+      values[idx] = 0;
+    }
+    for (long[] values : this.longColumns) {
+      values[idx] = 0L;
+    }
+    for (float[] values : this.floatColumns) {
+      values[idx] = 0.0f;
+    }
+    for (double[] values : this.doubleColumns) {
+      values[idx] = 0.0;
+    }
+    return idx;
+  }
+
+  /**
+   * Typed handle to an int column. Unlike {@link #getInt}, its accessors don't check the column's
+   * type, which was checked when the handle was created. It stays valid across resizes.
+   */
+  public static final class IntColumn {
+    private final PocketTable table;
+    private final int position;
+
+    private IntColumn(PocketTable table, int position) {
+      this.table = table;
+      this.position = position;
+    }
+
+    public int get(int slot) {
+      return this.table.intColumns[this.position][slot];
+    }
+
+    public void set(int slot, int value) {
+      this.table.intColumns[this.position][slot] = value;
+    }
+
+    /** Adds {@code delta} to the value and returns the sum. */
+    public int add(int slot, int delta) {
+      return this.table.intColumns[this.position][slot] += delta;
+    }
+  }
+
+  /** Typed handle to a long column, like {@link IntColumn}. */
+  public static final class LongColumn {
+    private final PocketTable table;
+    private final int position;
+
+    private LongColumn(PocketTable table, int position) {
+      this.table = table;
+      this.position = position;
+    }
+
+    public long get(int slot) {
+      return this.table.longColumns[this.position][slot];
+    }
+
+    public void set(int slot, long value) {
+      this.table.longColumns[this.position][slot] = value;
+    }
+
+    /** Adds {@code delta} to the value and returns the sum. */
+    public long add(int slot, long delta) {
+      return this.table.longColumns[this.position][slot] += delta;
+    }
+  }
+
+  /** Typed handle to a float column, like {@link IntColumn}. */
+  public static final class FloatColumn {
+    private final PocketTable table;
+    private final int position;
+
+    private FloatColumn(PocketTable table, int position) {
+      this.table = table;
+      this.position = position;
+    }
+
+    public float get(int slot) {
+      return this.table.floatColumns[this.position][slot];
+    }
+
+    public void set(int slot, float value) {
+      this.table.floatColumns[this.position][slot] = value;
+    }
+  }
+
+  /** Typed handle to a double column, like {@link IntColumn}. */
+  public static final class DoubleColumn {
+    private final PocketTable table;
+    private final int position;
+
+    private DoubleColumn(PocketTable table, int position) {
+      this.table = table;
+      this.position = position;
+    }
+
+    public double get(int slot) {
+      return this.table.doubleColumns[this.position][slot];
+    }
+
+    public void set(int slot, double value) {
+      this.table.doubleColumns[this.position][slot] = value;
+    }
+  }
+
+  public static class StringWrapper {
+    protected final PocketTable inner;
+    protected final Charset charset;
+
+    protected StringWrapper(final PocketTable inner, final Charset charset) {
+      this.inner = inner;
+      this.charset = charset;
+    }
+
+    public int size() {
+      return inner.size();
+    }
+
+    public boolean isEmpty() {
+      return inner.isEmpty();
+    }
+
+    public int column(String name) {
+      return inner.column(name);
+    }
+
+    public IntColumn intColumn(String name) {
+      return inner.intColumn(name);
+    }
+
+    public LongColumn longColumn(String name) {
+      return inner.longColumn(name);
+    }
+
+    public FloatColumn floatColumn(String name) {
+      return inner.floatColumn(name);
+    }
+
+    public DoubleColumn doubleColumn(String name) {
+      return inner.doubleColumn(name);
+    }
+
+    public int slotOf(String key) {
+      return inner.slotOf(key.getBytes(this.charset));
+    }
+
+    public int slotFor(String key) {
+      return inner.slotFor(key.getBytes(this.charset));
+    }
+
+    public boolean containsKey(String key) {
+      return inner.containsKey(key.getBytes(this.charset));
+    }
+
+    public boolean remove(String key) {
+      return inner.remove(key.getBytes(this.charset));
+    }
+
+    public void clear() {
+      inner.clear();
+    }
+
+    public void forEach(ObjIntConsumer<? super String> action) {
+      Objects.requireNonNull(action);
+      inner.forEach((k, slot) -> action.accept(new String(k, this.charset), slot));
+    }
+
+    public int getInt(int slot, int column) {
+      return inner.getInt(slot, column);
+    }
+
+    public void setInt(int slot, int column, int value) {
+      inner.setInt(slot, column, value);
+    }
+
+    public int addInt(int slot, int column, int delta) {
+      return inner.addInt(slot, column, delta);
+    }
+
+    public long getLong(int slot, int column) {
+      return inner.getLong(slot, column);
+    }
+
+    public void setLong(int slot, int column, long value) {
+      inner.setLong(slot, column, value);
+    }
+
+    public long addLong(int slot, int column, long delta) {
+      return inner.addLong(slot, column, delta);
+    }
+
+    public float getFloat(int slot, int column) {
+      return inner.getFloat(slot, column);
+    }
+
+    public void setFloat(int slot, int column, float value) {
+      inner.setFloat(slot, column, value);
+    }
+
+    public double getDouble(int slot, int column) {
+      return inner.getDouble(slot, column);
+    }
+
+    public void setDouble(int slot, int column, double value) {
+      inner.setDouble(slot, column, value);
+    }
+  }
+}
@@ -0,0 +1,497 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and writes the binary snapshot format shared by the maps.
+ *
+ * <pre>
+ * file   = MAGIC header-block keys-block values-block storage-block*
+ * delta  = DELTA_MAGIC header-block dirty-block (keys-block values-block)* storage-block*
+ * block  = u64 length, data[length], zero padding to a multiple of 8, u32 crc32c(data), u32 0
+ * header = u32 version, u32 value type, u32 capacity, u32 size, u32 tombstoneCount, u32 bufferCount
+ * </pre>
+ *
+ * All numbers are little-endian, and every block starts at a multiple of 8 bytes from the
+ * beginning of the file. The keys and values blocks are the raw arrays, and each storage block
+ * is the used part of one key storage buffer.
+ *
+ * A delta describes the changes since the previous snapshot or delta. Its dirty block holds the
+ * end of the key storage at that point, followed by a bitset of the changed pages of the table.
+ * Each changed page has a keys block and a values block, and the storage blocks hold the keys
+ * appended since.
+ */
+/* package-private */ final class SnapshotIO {
+  static final long MAGIC = 0x3170616d746b70L;  // "pktmap1\0" in little-endian order
+  static final long DELTA_MAGIC = 0x31746c64746b70L;  // "pktdlt1\0" in little-endian order
+  static final int VERSION = 1;
+  static final int HEADER_LENGTH = 24;
+  static final int BLOCK_OVERHEAD = 16;
+
+  static final int TYPE_BOOLEAN = 1;
+  static final int TYPE_BYTE = 2;
+  static final int TYPE_SHORT = 3;
+  static final int TYPE_INT = 4;
+  static final int TYPE_LONG = 5;
+  static final int TYPE_FLOAT = 6;
+  static final int TYPE_DOUBLE = 7;
+
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private SnapshotIO() {}
+
+  static class Header {
+    final int valueType;
+    final int capacity;
+    final int size;
+    final int tombstoneCount;
+    final int bufferCount;
+
+    Header(int valueType, int capacity, int size, int tombstoneCount, int bufferCount) {
+      this.valueType = valueType;
+      this.capacity = capacity;
+      this.size = size;
+      this.tombstoneCount = tombstoneCount;
+      this.bufferCount = bufferCount;
+    }
+  }
+
+  static void writeHeader(WritableByteChannel ch, Header header) throws IOException {
+    writeHeader(ch, MAGIC, header);
+  }
+
+  static void writeDeltaHeader(WritableByteChannel ch, Header header) throws IOException {
+    writeHeader(ch, DELTA_MAGIC, header);
+  }
+
+  private static void writeHeader(WritableByteChannel ch, long magic, Header header) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(8 + 8 + HEADER_LENGTH + 8).order(ByteOrder.LITTLE_ENDIAN);
+    buf.putLong(magic);
+    buf.putLong(HEADER_LENGTH);
+    int dataStart = buf.position();
+    buf.putInt(VERSION);
+    buf.putInt(header.valueType);
+    buf.putInt(header.capacity);
+    buf.putInt(header.size);
+    buf.putInt(header.tombstoneCount);
+    buf.putInt(header.bufferCount);
+    CRC32C crc = new CRC32C();
+    crc.update(buf.array(), dataStart, HEADER_LENGTH);
+    buf.putInt((int) crc.getValue());
+    buf.putInt(0);
+    buf.flip();
+    writeFully(ch, buf);
+  }
+
+  static Header readHeader(ReadableByteChannel ch, int expectedValueType) throws IOException {
+    return checkValueType(readHeader(ch, MAGIC), expectedValueType);
+  }
+
+  static Header readDeltaHeader(ReadableByteChannel ch, int expectedValueType) throws IOException {
+    return checkValueType(readHeader(ch, DELTA_MAGIC), expectedValueType);
+  }
+
+  static Header readHeader(ReadableByteChannel ch) throws IOException {
+    return readHeader(ch, MAGIC);
+  }
+
+  private static Header checkValueType(Header header, int expectedValueType) throws IOException {
+    if (header.valueType != expectedValueType) {
+      throw new IOException("snapshot has " + typeName(header.valueType) + " values, expected " + typeName(expectedValueType));
+    }
+    return header;
+  }
+
+  private static Header readHeader(ReadableByteChannel ch, long magic) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(8 + 8 + HEADER_LENGTH + 8).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(ch, buf);
+    buf.flip();
+    if (buf.getLong() != magic) {
+      throw new IOException(magic == MAGIC ? "not a pocketmap snapshot" : "not a pocketmap delta");
+    }
+    if (buf.getLong() != HEADER_LENGTH) {
+      throw new IOException("unexpected snapshot header length");
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(buf.array(), buf.position(), HEADER_LENGTH);
+    int version = buf.getInt();
+    int valueType = buf.getInt();
+    int capacity = buf.getInt();
+    int size = buf.getInt();
+    int tombstoneCount = buf.getInt();
+    int bufferCount = buf.getInt();
+    if (buf.getInt() != (int) crc.getValue()) {
+      throw new IOException("snapshot header checksum mismatch");
+    }
+    if (version != VERSION) {
+      throw new IOException("unsupported snapshot version " + version);
+    }
+    if (valueType < TYPE_BOOLEAN || valueType > TYPE_DOUBLE) {
+      throw new IOException("unknown snapshot value type " + valueType);
+    }
+    if (capacity < 8 || Integer.bitCount(capacity) != 1 || size < 0 || tombstoneCount < 0
+        || (long) size + tombstoneCount > capacity || bufferCount < 1 || bufferCount > KeyStorage.BUFNR_LIMIT) {
+      throw new IOException("invalid snapshot header");
+    }
+    return new Header(valueType, capacity, size, tombstoneCount, bufferCount);
+  }
+
+  static String typeName(int valueType) {
+    switch (valueType) {
+      case TYPE_BOOLEAN: return "boolean";
+      case TYPE_BYTE: return "byte";
+      case TYPE_SHORT: return "short";
+      case TYPE_INT: return "int";
+      case TYPE_LONG: return "long";
+      case TYPE_FLOAT: return "float";
+      case TYPE_DOUBLE: return "double";
+      default: return "unknown";
+    }
+  }
+
+  /** Returns the size in bytes of one value of the given type. */
+  static int typeWidth(int valueType) {
+    switch (valueType) {
+      case TYPE_SHORT: return Short.BYTES;
+      case TYPE_INT: case TYPE_FLOAT: return Integer.BYTES;
+      case TYPE_LONG: case TYPE_DOUBLE: return Long.BYTES;
+      default: return 1;
+    }
+  }
+
+  static void writeArray(WritableByteChannel ch, long[] arr) throws IOException {
+    writeArray(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, long[] arr, int from, int to) throws IOException {
+    BlockWriter w = new BlockWriter(ch, (long) (to - from) * Long.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Long.BYTES);
+      w.chunk.asLongBuffer().put(arr, i, n);
+      w.flush(n * Long.BYTES);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void writeArray(WritableByteChannel ch, int[] arr) throws IOException {
+    writeArray(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, int[] arr, int from, int to) throws IOException {
+    BlockWriter w = new BlockWriter(ch, (long) (to - from) * Integer.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Integer.BYTES);
+      w.chunk.asIntBuffer().put(arr, i, n);
+      w.flush(n * Integer.BYTES);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void writeArray(WritableByteChannel ch, short[] arr) throws IOException {
+    writeArray(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, short[] arr, int from, int to) throws IOException {
+    BlockWriter w = new BlockWriter(ch, (long) (to - from) * Short.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Short.BYTES);
+      w.chunk.asShortBuffer().put(arr, i, n);
+      w.flush(n * Short.BYTES);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void writeArray(WritableByteChannel ch, float[] arr) throws IOException {
+    writeArray(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, float[] arr, int from, int to) throws IOException {
+    BlockWriter w = new BlockWriter(ch, (long) (to - from) * Float.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Float.BYTES);
+      w.chunk.asFloatBuffer().put(arr, i, n);
+      w.flush(n * Float.BYTES);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void writeArray(WritableByteChannel ch, double[] arr) throws IOException {
+    writeArray(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, double[] arr, int from, int to) throws IOException {
+    BlockWriter w = new BlockWriter(ch, (long) (to - from) * Double.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Double.BYTES);
+      w.chunk.asDoubleBuffer().put(arr, i, n);
+      w.flush(n * Double.BYTES);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void writeArray(WritableByteChannel ch, boolean[] arr) throws IOException {
+    writeArray(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, boolean[] arr, int from, int to) throws IOException {
+    BlockWriter w = new BlockWriter(ch, to - from);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE);
+      for (int j = 0; j < n; j++) {
+        w.chunk.put(j, arr[i + j] ? (byte) 1 : (byte) 0);
+      }
+      w.flush(n);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void writeArray(WritableByteChannel ch, byte[] arr) throws IOException {
+    writeBytes(ch, arr, 0, arr.length);
+  }
+
+  static void writeArray(WritableByteChannel ch, byte[] arr, int from, int to) throws IOException {
+    writeBytes(ch, arr, from, to - from);
+  }
+
+  static void writeBytes(WritableByteChannel ch, byte[] arr, int offset, int length) throws IOException {
+    BlockWriter w = new BlockWriter(ch, length);
+    for (int i = 0; i < length; ) {
+      int n = Math.min(length - i, CHUNK_SIZE);
+      w.chunk.put(arr, offset + i, n);
+      w.chunk.position(0);
+      w.flush(n);
+      i += n;
+    }
+    w.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, long[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, long[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, (long) (to - from) * Long.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Long.BYTES);
+      r.fill(n * Long.BYTES).asLongBuffer().get(arr, i, n);
+      i += n;
+    }
+    r.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, int[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, int[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, (long) (to - from) * Integer.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Integer.BYTES);
+      r.fill(n * Integer.BYTES).asIntBuffer().get(arr, i, n);
+      i += n;
+    }
+    r.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, short[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, short[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, (long) (to - from) * Short.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Short.BYTES);
+      r.fill(n * Short.BYTES).asShortBuffer().get(arr, i, n);
+      i += n;
+    }
+    r.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, float[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, float[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, (long) (to - from) * Float.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Float.BYTES);
+      r.fill(n * Float.BYTES).asFloatBuffer().get(arr, i, n);
+      i += n;
+    }
+    r.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, double[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, double[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, (long) (to - from) * Double.BYTES);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE / Double.BYTES);
+      r.fill(n * Double.BYTES).asDoubleBuffer().get(arr, i, n);
+      i += n;
+    }
+    r.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, boolean[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, boolean[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, to - from);
+    for (int i = from; i < to; ) {
+      int n = Math.min(to - i, CHUNK_SIZE);
+      ByteBuffer chunk = r.fill(n);
+      for (int j = 0; j < n; j++) {
+        arr[i + j] = chunk.get(j) != 0;
+      }
+      i += n;
+    }
+    r.finish();
+  }
+
+  static void readArray(ReadableByteChannel ch, byte[] arr) throws IOException {
+    readArray(ch, arr, 0, arr.length);
+  }
+
+  static void readArray(ReadableByteChannel ch, byte[] arr, int from, int to) throws IOException {
+    BlockReader r = new BlockReader(ch, to - from);
+    r.readInto(arr, from, to - from);
+    r.finish();
+  }
+
+  /**
+   * Reads a block of unknown length, up to {@code maxLength} bytes, into {@code dest}. Returns
+   * the length.
+   */
+  static int readBytes(ReadableByteChannel ch, byte[] dest, int maxLength) throws IOException {
+    return readBytes(ch, dest, 0, maxLength);
+  }
+
+  static int readBytes(ReadableByteChannel ch, byte[] dest, int offset, int maxLength) throws IOException {
+    BlockReader r = new BlockReader(ch, -1L);
+    if (r.length > maxLength) {
+      throw new IOException("snapshot block is too long");
+    }
+    r.readInto(dest, offset, (int) r.length);
+    r.finish();
+    return (int) r.length;
+  }
+
+  static int padding(long length) {
+    return (int) (-length & 7);
+  }
+
+  static void writeFully(WritableByteChannel ch, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      ch.write(buf);
+    }
+  }
+
+  static void readFully(ReadableByteChannel ch, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      if (ch.read(buf) < 0) {
+        throw new IOException("unexpected end of snapshot");
+      }
+    }
+  }
+
+  private static class BlockWriter {
+    final WritableByteChannel ch;
+    final long length;
+    final ByteBuffer chunk;
+    final CRC32C crc;
+    long written;
+
+    BlockWriter(WritableByteChannel ch, long length) throws IOException {
+      this.ch = ch;
+      this.length = length;
+      this.chunk = ByteBuffer.allocateDirect((int) Math.min(CHUNK_SIZE, Math.max(length, 8)))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      this.crc = new CRC32C();
+      this.written = 0;
+      this.chunk.putLong(0, length);
+      this.chunk.limit(8);
+      writeFully(ch, this.chunk);
+      this.chunk.clear();
+    }
+
+    // writes the first n bytes of chunk, which were filled with absolute puts or views
+    void flush(int n) throws IOException {
+      this.chunk.position(0).limit(n);
+      this.crc.update(this.chunk);
+      this.chunk.position(0);
+      writeFully(this.ch, this.chunk);
+      this.chunk.clear();
+      this.written += n;
+    }
+
+    void finish() throws IOException {
+      assert this.written == this.length;
+      ByteBuffer trailer = ByteBuffer.allocate(padding(this.length) + 8).order(ByteOrder.LITTLE_ENDIAN);
+      trailer.position(padding(this.length));
+      trailer.putInt((int) this.crc.getValue());
+      trailer.putInt(0);
+      trailer.flip();
+      writeFully(this.ch, trailer);
+    }
+  }
+
+  private static class BlockReader {
+    final ReadableByteChannel ch;
+    final long length;
+    final ByteBuffer chunk;
+    final CRC32C crc;
+
+    // expectedLength < 0 accepts any length
+    BlockReader(ReadableByteChannel ch, long expectedLength) throws IOException {
+      this.ch = ch;
+      ByteBuffer lengthBuf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(ch, lengthBuf);
+      this.length = lengthBuf.getLong(0);
+      if (this.length < 0 || (expectedLength >= 0 && this.length != expectedLength)) {
+        throw new IOException("unexpected snapshot block length " + this.length);
+      }
+      this.chunk = ByteBuffer.allocateDirect((int) Math.min(CHUNK_SIZE, Math.max(this.length, 8)))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      this.crc = new CRC32C();
+    }
+
+    // reads the next n bytes of the block, returning them at the start of chunk
+    ByteBuffer fill(int n) throws IOException {
+      this.chunk.clear().limit(n);
+      readFully(this.ch, this.chunk);
+      this.chunk.flip();
+      this.crc.update(this.chunk);
+      this.chunk.flip();
+      return this.chunk;
+    }
+
+    void readInto(byte[] dest, int offset, int n) throws IOException {
+      ByteBuffer buf = ByteBuffer.wrap(dest, offset, n);
+      readFully(this.ch, buf);
+      this.crc.update(dest, offset, n);
+    }
+
+    void finish() throws IOException {
+      ByteBuffer trailer = ByteBuffer.allocate(padding(this.length) + 8).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(this.ch, trailer);
+      if (trailer.getInt(padding(this.length)) != (int) this.crc.getValue()) {
+        throw new IOException("snapshot block checksum mismatch");
+      }
+    }
+  }
+}
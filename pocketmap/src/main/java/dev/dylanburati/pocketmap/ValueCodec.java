@@ -0,0 +1,35 @@
+package dev.dylanburati.pocketmap;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Converts values to and from bytes for {@link CodecPocketMap}. Encodings must be shorter than
+ * 1048576 bytes.
+ */
+public interface ValueCodec<V> {
+  byte[] encode(V value);
+
+  V decode(byte[] src, int offset, int length);
+
+  /** Returns a codec which stores strings in {@code charset}. */
+  static ValueCodec<String> ofStrings(final Charset charset) {
+    Objects.requireNonNull(charset);
+    return new ValueCodec<String>() {
+      @Override
+      public byte[] encode(String value) {
+        return value.getBytes(charset);
+      }
+
+      @Override
+      public String decode(byte[] src, int offset, int length) {
+        return new String(src, offset, length, charset);
+      }
+    };
+  }
+
+  static ValueCodec<String> utf8() {
+    return ofStrings(StandardCharsets.UTF_8);
+  }
+}
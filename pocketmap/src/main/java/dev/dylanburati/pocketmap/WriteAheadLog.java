@@ -0,0 +1,214 @@
+package dev.dylanburati.pocketmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of map mutations, for {@link DurableLongPocketMap}.
+ *
+ * <pre>
+ * file   = MAGIC frame*
+ * frame  = u32 payload length, u32 crc32c(payload), record*
+ * record = u8 PUT, varint key length, key, zigzag varint value
+ *        | u8 REMOVE, varint key length, key
+ * </pre>
+ *
+ * Records are buffered and written a frame at a time. A frame which was only partially written
+ * before a crash fails its checksum, and it's dropped along with anything after it. Records hold
+ * the state of a key after the mutation rather than the mutation itself, so replaying a record
+ * twice has no effect.
+ */
+/* package-private */ class WriteAheadLog implements AutoCloseable {
+  static final long MAGIC = 0x316c6177746b70L;  // "pktwal1\0" in little-endian order
+  static final byte PUT = 1;
+  static final byte REMOVE = 2;
+
+  private static final int FRAME_HEADER = 8;
+  private static final int FRAME_SIZE = 1 << 20;
+  // largest record: op, 3-byte key length, key, 10-byte value
+  private static final int MAX_RECORD = 1 + 3 + KeyStorage.KEY_LEN_LIMIT + 10;
+
+  interface Visitor {
+    void put(byte[] key, long value);
+    void remove(byte[] key);
+  }
+
+  private final FileChannel ch;
+  // guarded by this
+  private final ByteBuffer frame;
+  private final CRC32C crc;
+
+  private WriteAheadLog(FileChannel ch) {
+    this.ch = ch;
+    this.frame = ByteBuffer.allocateDirect(FRAME_HEADER + FRAME_SIZE + MAX_RECORD).order(ByteOrder.LITTLE_ENDIAN);
+    this.frame.position(FRAME_HEADER);
+    this.crc = new CRC32C();
+  }
+
+  /**
+   * Opens the log at {@code path}, creating it if needed, and passes each complete record to
+   * {@code visitor}. A torn frame at the end of the log is truncated, so that new records are
+   * appended after the last complete one.
+   */
+  static WriteAheadLog open(Path path, Visitor visitor) throws IOException {
+    FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      if (ch.size() < 8) {
+        ch.truncate(0);
+        magic.putLong(0, MAGIC);
+        SnapshotIO.writeFully(ch, magic);
+        ch.force(true);
+      } else {
+        SnapshotIO.readFully(ch, magic);
+        if (magic.getLong(0) != MAGIC) {
+          throw new IOException("not a pocketmap log");
+        }
+        long end = replay(ch, visitor);
+        ch.truncate(end);
+      }
+      ch.position(ch.size());
+      return new WriteAheadLog(ch);
+    } catch (IOException | RuntimeException e) {
+      ch.close();
+      throw e;
+    }
+  }
+
+  // returns the end of the last complete frame
+  private static long replay(FileChannel ch, Visitor visitor) throws IOException {
+    long pos = ch.position();
+    long size = ch.size();
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer payload = ByteBuffer.allocate(0);
+    CRC32C crc = new CRC32C();
+    while (size - pos >= FRAME_HEADER) {
+      header.clear();
+      SnapshotIO.readFully(ch, header);
+      int length = header.getInt(0);
+      if (length < 0 || length > size - pos - FRAME_HEADER || length > FRAME_SIZE + MAX_RECORD) {
+        break;
+      }
+      if (payload.capacity() < length) {
+        payload = ByteBuffer.allocate(length);
+      }
+      payload.clear().limit(length);
+      SnapshotIO.readFully(ch, payload);
+      crc.reset();
+      crc.update(payload.array(), 0, length);
+      if (header.getInt(4) != (int) crc.getValue()) {
+        break;
+      }
+      payload.flip();
+      while (payload.hasRemaining()) {
+        byte op = payload.get();
+        byte[] key = new byte[(int) readVarint(payload)];
+        payload.get(key);
+        if (op == PUT) {
+          long zigzag = readVarint(payload);
+          visitor.put(key, (zigzag >>> 1) ^ -(zigzag & 1));
+        } else if (op == REMOVE) {
+          visitor.remove(key);
+        } else {
+          throw new IOException("unknown log record type " + op);
+        }
+      }
+      pos += FRAME_HEADER + length;
+    }
+    return pos;
+  }
+
+  synchronized void appendPut(byte[] key, long value) {
+    this.frame.put(PUT);
+    writeVarint(this.frame, key.length);
+    this.frame.put(key);
+    writeVarint(this.frame, (value << 1) ^ (value >> 63));
+    this.maybeFlush();
+  }
+
+  synchronized void appendRemove(byte[] key) {
+    this.frame.put(REMOVE);
+    writeVarint(this.frame, key.length);
+    this.frame.put(key);
+    this.maybeFlush();
+  }
+
+  private void maybeFlush() {
+    if (this.frame.position() >= FRAME_HEADER + FRAME_SIZE) {
+      try {
+        this.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // writes buffered records to the file, without forcing them to the device
+  private synchronized void flush() throws IOException {
+    int length = this.frame.position() - FRAME_HEADER;
+    if (length == 0) {
+      return;
+    }
+    this.frame.flip();
+    this.frame.position(FRAME_HEADER);
+    this.crc.reset();
+    this.crc.update(this.frame);
+    this.frame.putInt(0, length);
+    this.frame.putInt(4, (int) this.crc.getValue());
+    this.frame.position(0);
+    SnapshotIO.writeFully(this.ch, this.frame);
+    this.frame.clear();
+    this.frame.position(FRAME_HEADER);
+  }
+
+  /** Writes buffered records and forces them to the device. */
+  void sync() throws IOException {
+    this.flush();
+    // outside the lock, so appends can continue while the device catches up
+    this.ch.force(false);
+  }
+
+  /** Discards every record, after the state they describe has been saved elsewhere. */
+  synchronized void reset() throws IOException {
+    this.frame.clear();
+    this.frame.position(FRAME_HEADER);
+    this.ch.truncate(8);
+    this.ch.position(8);
+    this.ch.force(true);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      this.sync();
+    } finally {
+      this.ch.close();
+    }
+  }
+
+  private static void writeVarint(ByteBuffer buf, long v) {
+    while ((v & ~0x7fL) != 0) {
+      buf.put((byte) ((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    buf.put((byte) v);
+  }
+
+  private static long readVarint(ByteBuffer buf) throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buf.get();
+      result |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    throw new IOException("malformed varint in log");
+  }
+}
@@ -0,0 +1,120 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+class CodecPocketMapTest {
+  static final class Point {
+    final int x;
+    final int y;
+
+    Point(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Point && ((Point) o).x == this.x && ((Point) o).y == this.y;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * this.x + this.y;
+    }
+  }
+
+  static final ValueCodec<Point> POINTS = new ValueCodec<Point>() {
+    @Override
+    public byte[] encode(Point value) {
+      return ByteBuffer.allocate(8).putInt(value.x).putInt(value.y).array();
+    }
+
+    @Override
+    public Point decode(byte[] src, int offset, int length) {
+      ByteBuffer buf = ByteBuffer.wrap(src, offset, length);
+      return new Point(buf.getInt(), buf.getInt());
+    }
+  };
+
+  @Test void testStrings() {
+    CodecPocketMap.StringWrapper<String> m = CodecPocketMap.newUtf8(ValueCodec.utf8(), 8);
+    assertNull(m.get("a"));
+    m.put("a", "hello");
+    m.put("b", "");
+    assertEquals(2, m.size());
+    assertEquals("hello", m.get("a"));
+    assertEquals("", m.get("b"));
+    assertEquals("x", m.getOrDefault("c", "x"));
+
+    // shorter and equal-length values are written in place, longer ones are appended
+    m.put("a", "hi");
+    assertEquals("hi", m.get("a"));
+    m.put("a", "yo");
+    assertEquals("yo", m.get("a"));
+    m.put("a", "hello, world");
+    assertEquals("hello, world", m.get("a"));
+    assertEquals("", m.get("b"));
+    m.put("b", "café");
+    assertEquals("café", m.get("b"));
+
+    assertTrue(m.remove("a"));
+    assertFalse(m.containsKey("a"));
+    assertThrows(NullPointerException.class, () -> m.put("a", null));
+  }
+
+  @Test void testAlternatingLengthsReuseSpace() {
+    CodecPocketMap.StringWrapper<String> m = CodecPocketMap.newUtf8(ValueCodec.utf8(), 8);
+    m.put("a", "hello");
+    m.put("a", "hi");
+    long end = m.inner.valueStorageEnd();
+    // the slot keeps the 5 bytes first stored, even after a shorter value is written over them
+    for (int i = 0; i < 1000; i++) {
+      String value = i % 2 == 0 ? "hello" : "hi";
+      m.put("a", value);
+      assertEquals(value, m.get("a"));
+    }
+    assertEquals(end, m.inner.valueStorageEnd());
+    m.put("a", "hello!");
+    assertEquals("hello!", m.get("a"));
+    assertNotEquals(end, m.inner.valueStorageEnd());
+  }
+
+  @Test void testValueTooLong() {
+    CodecPocketMap.StringWrapper<String> m = CodecPocketMap.newUtf8(ValueCodec.utf8(), 8);
+    String tooLong = "x".repeat(KeyStorage.KEY_LEN_LIMIT);
+    m.put("a", "hello");
+    assertThrows(IllegalArgumentException.class, () -> m.put("a", tooLong));
+    assertThrows(IllegalArgumentException.class, () -> m.put("b", tooLong));
+    // neither put changed the map
+    assertEquals(1, m.size());
+    assertEquals("hello", m.get("a"));
+    assertFalse(m.containsKey("b"));
+    m.put("b", "x".repeat(KeyStorage.KEY_LEN_LIMIT - 1));
+    assertEquals(KeyStorage.KEY_LEN_LIMIT - 1, m.get("b").length());
+  }
+
+  @Test void testRecordsWithResize() {
+    CodecPocketMap.StringWrapper<Point> m = CodecPocketMap.newUtf8(POINTS, 8);
+    Map<String, Point> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 20_000);
+      Point p = new Point(i, -i);
+      m.put(key, p);
+      expected.put(key, p);
+      if (i % 5 == 0) {
+        m.remove(Integer.toString(i / 5));
+        expected.remove(Integer.toString(i / 5));
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    Map<String, Point> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,60 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class CompactLongPocketMapTest {
+  @Test void testValues() {
+    CompactLongPocketMap.StringWrapper m = CompactLongPocketMap.newUtf8(8);
+    long[] values = { 0, 1, -1, 127, -127, -128, 128, 32767, -32768, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+    for (int i = 0; i < values.length; i++) {
+      m.put("k" + i, values[i]);
+    }
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], m.get("k" + i, 42L));
+    }
+    assertEquals(42L, m.get("missing", 42L));
+    assertEquals(values.length, m.size());
+    assertEquals(3L, m.add("k1", 2L));
+    assertEquals(5L, m.add("new", 5L));
+    assertTrue(m.remove("new"));
+    assertFalse(m.containsKey("new"));
+    assertEquals(7L, m.add("new", 7L));
+  }
+
+  @Test void testWidening() {
+    CompactLongPocketMap.StringWrapper m = CompactLongPocketMap.newUtf8(8);
+    Map<String, Long> expected = new HashMap<>();
+    for (int i = 0; i < 100_000; i++) {
+      String key = Integer.toString(i);
+      // mostly small values, with one large value in every 1000
+      long value = i % 1000 == 0 ? 1L << 40 : i % 100;
+      m.put(key, value);
+      expected.put(key, value);
+    }
+    // the few large values stay in the side table
+    assertEquals(1, m.valueWidth());
+    for (int i = 0; i < 100_000; i += 5) {
+      String key = Integer.toString(i);
+      m.add(key, 1000L);
+      expected.merge(key, 1000L, Long::sum);
+    }
+    assertEquals(2, m.valueWidth());
+    Map<String, Long> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+
+    for (int i = 0; i < 100_000; i += 3) {
+      m.put(Integer.toString(i), Long.MIN_VALUE + i);
+      expected.put(Integer.toString(i), Long.MIN_VALUE + i);
+    }
+    assertEquals(8, m.valueWidth());
+    actual.clear();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,61 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+class CompressedChannelsTest {
+  private static byte[] compressedSnapshot(IntPocketMap.StringWrapper m) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (WritableByteChannel ch = CompressedChannels.compressing(Channels.newChannel(out), BlockCodec.deflate())) {
+      m.writeTo(ch);
+    }
+    return out.toByteArray();
+  }
+
+  @Test void testRoundTrip() throws IOException {
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8();
+    for (int i = 0; i < 500_000; i++) {
+      m.put("key" + i, i);
+    }
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    m.writeTo(Channels.newChannel(raw));
+    byte[] compressed = compressedSnapshot(m);
+    assertTrue(compressed.length < raw.size() / 2);
+
+    ForkJoinPool pool = new ForkJoinPool(3);
+    try (ReadableByteChannel ch = CompressedChannels.decompressing(
+        Channels.newChannel(new ByteArrayInputStream(compressed)), BlockCodec.deflate(), pool)) {
+      assertEquals(m, IntPocketMap.readUtf8(ch));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test void testCorruption() throws IOException {
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    m.put("a", 1);
+    byte[] compressed = compressedSnapshot(m);
+
+    byte[] truncated = Arrays.copyOf(compressed, compressed.length - 16);
+    assertThrows(IOException.class, () -> IntPocketMap.readFrom(CompressedChannels.decompressing(
+        Channels.newChannel(new ByteArrayInputStream(truncated)), BlockCodec.deflate())));
+
+    byte[] corrupted = compressed.clone();
+    corrupted[8 + 8] ^= 1;  // the checksum of the first block
+    assertThrows(IOException.class, () -> IntPocketMap.readFrom(CompressedChannels.decompressing(
+        Channels.newChannel(new ByteArrayInputStream(corrupted)), BlockCodec.deflate())));
+
+    assertThrows(IOException.class, () -> CompressedChannels.decompressing(
+        Channels.newChannel(new ByteArrayInputStream(new byte[8])), BlockCodec.deflate()));
+  }
+}
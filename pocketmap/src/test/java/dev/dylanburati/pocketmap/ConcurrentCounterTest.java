@@ -0,0 +1,72 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class ConcurrentCounterTest {
+  @Test void testIncrement() {
+    ConcurrentCounter.StringWrapper c = ConcurrentCounter.newUtf8(8);
+    assertEquals(0, c.size());
+    assertEquals(0L, c.get("a"));
+    assertFalse(c.containsKey("a"));
+    c.increment("a");
+    c.add("b", 5L);
+    c.add("a", 2L);
+    assertEquals(2, c.size());
+    assertEquals(3L, c.get("a"));
+    assertEquals(5L, c.get("b"));
+    assertTrue(c.containsKey("b"));
+  }
+
+  @Test void testSnapshot() {
+    ConcurrentCounter.StringWrapper c = ConcurrentCounter.newUtf8(8);
+    for (int i = 0; i < 10000; i++) {
+      c.add(Integer.toString(i % 5000), i);
+    }
+    Map<String, Long> snapshot = c.snapshot();
+    assertEquals(5000, snapshot.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals((long) (2 * i + 5000), snapshot.get(Integer.toString(i)));
+    }
+  }
+
+  @Test void testConcurrentHotKeys() throws Exception {
+    ConcurrentCounter.StringWrapper c = ConcurrentCounter.newUtf8(8);
+    int threads = 8;
+    int perThread = 200_000;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        long seed = t;
+        futures.add(pool.submit(() -> {
+          Random r = new Random(seed);
+          for (int i = 0; i < perThread; i++) {
+            // half of the updates go to one key, the rest are spread out
+            int k = r.nextBoolean() ? 0 : r.nextInt(20_000);
+            c.increment(Integer.toString(k));
+          }
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    long[] total = new long[1];
+    c.forEach((k, count) -> total[0] += count);
+    assertEquals((long) threads * perThread, total[0]);
+    assertTrue(c.get("0") > (long) threads * perThread / 2 - 1000);
+  }
+}
@@ -0,0 +1,66 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class DelimitedLoaderTest {
+  @TempDir Path dir;
+
+  private Path write(String content) throws IOException {
+    Path path = this.dir.resolve("data.tsv");
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  @Test void testLoadInts() throws IOException {
+    Path path = write("a\t1\r\n\nb\t-2\nc\td\t+3\nmin\t-2147483648\na\t4\ncafé\t5");
+    IntPocketMap.StringWrapper m = DelimitedLoader.loadInts(path, (byte) '\t').asUtf8();
+    assertEquals(5, m.size());
+    assertEquals(4, m.get("a"));
+    assertEquals(-2, m.get("b"));
+    assertEquals(3, m.get("c\td"));
+    assertEquals(Integer.MIN_VALUE, m.get("min"));
+    assertEquals(5, m.get("café"));
+  }
+
+  @Test void testLoadLongsAndDoubles() throws IOException {
+    Path path = write("x,9223372036854775807\ny,-9223372036854775808\n");
+    LongPocketMap.StringWrapper longs = DelimitedLoader.loadLongs(path, (byte) ',').asUtf8();
+    assertEquals(Long.MAX_VALUE, longs.get("x"));
+    assertEquals(Long.MIN_VALUE, longs.get("y"));
+
+    path = write("x,0.5\ny,-1e300\nz,NaN\n");
+    DoublePocketMap.StringWrapper doubles = DelimitedLoader.loadDoubles(path, (byte) ',').asUtf8();
+    assertEquals(0.5, doubles.get("x"));
+    assertEquals(-1e300, doubles.get("y"));
+    assertTrue(Double.isNaN(doubles.get("z")));
+  }
+
+  @Test void testMalformed() throws IOException {
+    assertThrows(IOException.class, () -> DelimitedLoader.loadInts(write("a\t1\nb\n"), (byte) '\t'));
+    assertThrows(IOException.class, () -> DelimitedLoader.loadInts(write("a\t\n"), (byte) '\t'));
+    assertThrows(IOException.class, () -> DelimitedLoader.loadInts(write("a\t1x\n"), (byte) '\t'));
+    assertThrows(IOException.class, () -> DelimitedLoader.loadInts(write("a\t2147483648\n"), (byte) '\t'));
+    assertThrows(IOException.class, () -> DelimitedLoader.loadDoubles(write("a\tone\n"), (byte) '\t'));
+    assertEquals(0, DelimitedLoader.loadInts(write(""), (byte) '\t').size());
+  }
+
+  @Test void testLargeFile() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200_000; i++) {
+      sb.append("key").append(i).append('\t').append(i * 7L).append('\n');
+    }
+    LongPocketMap.StringWrapper m = DelimitedLoader.loadLongs(write(sb.toString()), (byte) '\t').asUtf8();
+    assertEquals(200_000, m.size());
+    for (int i = 0; i < 200_000; i++) {
+      assertEquals(i * 7L, m.get("key" + i));
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+class DurableLongPocketMapTest {
+  @TempDir Path dir;
+
+  @Test void testReplayLog() throws IOException {
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir)) {
+      for (int i = 0; i < 10_000; i++) {
+        m.merge(Integer.toString(i % 1000), i, Long::sum);
+      }
+      m.put("negative", -123456789L);
+      assertTrue(m.remove("999"));
+      assertFalse(m.remove("999"));
+    }
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir)) {
+      assertEquals(1000, m.size());
+      for (int i = 0; i < 999; i++) {
+        assertEquals(10 * i + 45 * 1000, m.get(Integer.toString(i), -1L));
+      }
+      assertFalse(m.containsKey("999"));
+      assertEquals(-123456789L, m.get("negative", 0L));
+    }
+  }
+
+  @Test void testCheckpoint() throws IOException {
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir, Duration.ZERO)) {
+      m.put("a", 1L);
+      m.put("b", 2L);
+      m.checkpoint();
+      m.put("c", 3L);
+      m.remove("a");
+    }
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir)) {
+      assertEquals(2, m.size());
+      assertFalse(m.containsKey("a"));
+      assertEquals(2L, m.get("b", 0L));
+      assertEquals(3L, m.get("c", 0L));
+    }
+  }
+
+  @Test void testRejectedWriteIsNotLogged() throws IOException {
+    byte[] longKey = new byte[KeyStorage.KEY_LEN_LIMIT];
+    try (DurableLongPocketMap m = DurableLongPocketMap.open(dir)) {
+      m.put("a".getBytes(StandardCharsets.UTF_8), 1L);
+      assertThrows(IllegalArgumentException.class, () -> m.put(longKey, 2L));
+      assertThrows(IllegalArgumentException.class, () -> m.merge(longKey, 2L, Long::sum));
+      assertThrows(ArithmeticException.class, () -> m.merge("a".getBytes(StandardCharsets.UTF_8), 0L, (v1, v2) -> v1 / v2));
+      assertEquals(1, m.size());
+    }
+    try (DurableLongPocketMap m = DurableLongPocketMap.open(dir)) {
+      assertEquals(1, m.size());
+      assertEquals(1L, m.get("a".getBytes(StandardCharsets.UTF_8), 0L));
+    }
+  }
+
+  @Test void testTornTail() throws IOException {
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir)) {
+      m.put("a", 1L);
+      m.sync();
+      m.put("b", 2L);
+    }
+    // simulate a frame which was cut off by a crash
+    try (FileChannel ch = FileChannel.open(dir.resolve(DurableLongPocketMap.LOG_FILE), StandardOpenOption.WRITE)) {
+      ch.position(ch.size());
+      ch.write(ByteBuffer.wrap(new byte[] { 100, 0, 0, 0, 1, 2, 3, 4, 1, 1 }));
+    }
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir)) {
+      assertEquals(2, m.size());
+      m.put("c", 3L);
+    }
+    try (DurableLongPocketMap.StringWrapper m = DurableLongPocketMap.openUtf8(dir)) {
+      assertEquals(3, m.size());
+      assertEquals(3L, m.get("c", 0L));
+    }
+  }
+}
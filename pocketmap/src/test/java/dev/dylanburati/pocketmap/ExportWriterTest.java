@@ -0,0 +1,71 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+class ExportWriterTest {
+  private static List<String> export(IntPocketMap.StringWrapper m, ExportFormat format) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    m.exportTo(Channels.newChannel(out), format);
+    String text = out.toString(StandardCharsets.UTF_8);
+    assertTrue(text.endsWith("\n"));
+    return Arrays.stream(text.split("\n")).sorted().collect(Collectors.toList());
+  }
+
+  @Test void testFormats() throws IOException {
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    m.put("plain", 12);
+    m.put("tab\there", -3);
+    m.put("a,\"b\"", Integer.MIN_VALUE);
+    m.put("café", 0);
+
+    assertEquals(List.of("a,\"b\"\t-2147483648", "café\t0", "plain\t12", "tab\\there\t-3"),
+        export(m, ExportFormat.TSV));
+    assertEquals(List.of("\"a,\"\"b\"\"\",-2147483648", "café,0", "plain,12", "tab\there,-3"),
+        export(m, ExportFormat.CSV));
+    assertEquals(List.of(
+        "{\"key\":\"a,\\\"b\\\"\",\"value\":-2147483648}",
+        "{\"key\":\"café\",\"value\":0}",
+        "{\"key\":\"plain\",\"value\":12}",
+        "{\"key\":\"tab\\u0009here\",\"value\":-3}"),
+        export(m, ExportFormat.NDJSON));
+  }
+
+  @Test void testOtherValueTypes() throws IOException {
+    DoublePocketMap.StringWrapper doubles = DoublePocketMap.newUtf8(8);
+    doubles.put("x", 0.5);
+    doubles.put("nan", Double.NaN);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    doubles.exportTo(Channels.newChannel(out), ExportFormat.NDJSON);
+    List<String> lines = Arrays.stream(out.toString(StandardCharsets.UTF_8).split("\n")).sorted().collect(Collectors.toList());
+    assertEquals(List.of("{\"key\":\"nan\",\"value\":null}", "{\"key\":\"x\",\"value\":0.5}"), lines);
+
+    BooleanPocketMap.StringWrapper booleans = BooleanPocketMap.newUtf8(8);
+    booleans.put("t", true);
+    out.reset();
+    booleans.exportTo(Channels.newChannel(out), ExportFormat.CSV);
+    assertEquals("t,true\n", out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test void testLargeExport() throws IOException {
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8();
+    for (int i = 0; i < 100_000; i++) {
+      m.put("key" + i, i);
+    }
+    List<String> lines = export(m, ExportFormat.TSV);
+    assertEquals(100_000, lines.size());
+    for (String line : lines) {
+      String[] parts = line.split("\t");
+      assertEquals("key" + parts[1], parts[0]);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+class FrontCodedKeysTest {
+  @Test void testSmallPages() {
+    KeyStorage storage = new KeyStorage(DefaultHasher.instance());
+    int n = 5000;
+    long[] refs = new long[n];
+    String[] sorted = new String[n];
+    for (int i = 0; i < n; i++) {
+      // shuffled, and long enough that a block doesn't always fit in what's left of a page
+      String key = String.format("key%05d-%s", (i * 7919) % n, "x".repeat(i % 40));
+      sorted[i] = key;
+      refs[i] = storage.store(key.getBytes(StandardCharsets.UTF_8));
+    }
+    Arrays.sort(sorted);
+    int[] order = new int[n];
+    FrontCodedKeys keys = FrontCodedKeys.build(storage, refs, order, 256);
+    assertEquals(n, keys.size());
+
+    FrontCodedKeys.Cursor c = keys.cursor(0);
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, c.next());
+      assertEquals(sorted[i], c.key(StandardCharsets.UTF_8));
+      assertEquals(i, keys.search(sorted[i].getBytes(StandardCharsets.UTF_8)));
+    }
+    assertEquals(-1, keys.search("a".getBytes(StandardCharsets.UTF_8)));
+    assertEquals(-n - 1, keys.search("z".getBytes(StandardCharsets.UTF_8)));
+    FrontCodedKeys.Cursor mid = keys.cursor(1234);
+    assertEquals(1234, mid.next());
+    assertEquals(sorted[1234], mid.key(StandardCharsets.UTF_8));
+  }
+}
@@ -6,10 +6,35 @@ import org.junit.jupiter.params.provider.ValueSource;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+/* template_if! .val.object | not */
+import java.io.IOException;
+/* template_endif! */
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+/* template_if! .val.object | not */
+import java.nio.channels.Channels;
+/* template_endif! */
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+/* template_if! .val.object | not */
+import java.util.Arrays;
+/* template_endif! */
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+/* template_if! .atomic */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+/* template_endif! */
+import java.util.concurrent.ForkJoinPool;
+/* template_if! .atomic */
+import java.util.concurrent.Future;
+/* template_endif! */
 import java.util.function.BiFunction;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
@@ -135,6 +160,374 @@ class IntPocketMapTest {
     }
   }
 
+  @Test void testParallelRehash() {
+    /* template! \(.val.disp)PocketMap\(.val.generic//"") m = new \(.val.disp)PocketMap\(.val.generic_infer//"")(8); */
+    IntPocketMap m = new IntPocketMap(8);
+    m.setRehashPool(ForkJoinPool.commonPool());
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    int count = 300_000;
+    for (int i = 0; i < count; i++) {
+      assertNull(m.put(Integer.toString(i).getBytes(StandardCharsets.UTF_8), toValue.apply(i)));
+    }
+    assertEquals(count, m.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(toValue.apply(i), m.get(Integer.toString(i).getBytes(StandardCharsets.UTF_8)));
+    }
+    assertNull(m.get(Integer.toString(count).getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /* template_if! .atomic */
+  @Test void testAtomicValueUpdates() {
+    /* template! \(.val.disp)PocketMap.StringWrapper m = \(.val.disp)PocketMap.newUtf8(); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8();
+    assertFalse(m.compareAndSetValue("a", 505, 606));
+    assertThrows(NoSuchElementException.class, () -> m.getAndAddValue("a", 1));
+    assertThrows(NoSuchElementException.class, () -> m.accumulate("a", 1, Math::max));
+    assertFalse(m.containsKey("a"));
+
+    m.put("a", 505);
+    assertFalse(m.compareAndSetValue("a", 606, 707));
+    assertEquals(505, m.get("a"));
+    assertTrue(m.compareAndSetValue("a", 505, 606));
+    assertEquals(606, m.get("a"));
+    assertEquals(606, m.getAndAddValue("a", 1));
+    assertEquals(606 + 1, m.get("a"));
+    assertEquals(808, m.accumulate("a", 808, Math::max));
+    assertEquals(808, m.accumulate("a", 505, Math::max));
+    assertEquals(808, m.get("a"));
+  }
+
+  @Test void testConcurrentGetAndAdd() throws Exception {
+    /* template! \(.val.disp)PocketMap.StringWrapper m = \(.val.disp)PocketMap.newUtf8(); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8();
+    m.put("a", 505);
+    m.put("b", 505);
+    int threads = 4;
+    int perThread = 10_000;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(pool.submit(() -> {
+          for (int i = 0; i < perThread; i++) {
+            m.getAndAddValue("a", 1);
+            m.accumulate("b", 1, (x, y) -> x + y);
+          }
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(505 + threads * perThread, m.get("a"));
+    assertEquals(505 + threads * perThread, m.get("b"));
+  }
+  /* template_endif! */
+
+  @Test void testStorageOrderIterator() {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    int count = 10_000;
+    for (int i = count - 1; i >= 0; i--) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    // removed and put again, so it moves to the end
+    m.remove(Integer.toString(count - 1));
+    m.put(Integer.toString(count - 1), toValue.apply(0));
+    m.remove(Integer.toString(0));
+
+    List<String> expected = new ArrayList<>();
+    for (int i = count - 2; i >= 1; i--) {
+      expected.add(Integer.toString(i));
+    }
+    expected.add(Integer.toString(count - 1));
+    /* template! Iterator<Map.Entry<String, \(.val.view)>> it = m.storageOrderIterator(); */
+    Iterator<Map.Entry<String, Integer>> it = m.storageOrderIterator();
+    List<String> actual = new ArrayList<>();
+    while (it.hasNext()) {
+      /* template! Map.Entry<String, \(.val.view)> e = it.next(); */
+      Map.Entry<String, Integer> e = it.next();
+      actual.add(e.getKey());
+      if (!e.getKey().equals(Integer.toString(count - 1))) {
+        assertEquals(toValue.apply(Integer.parseInt(e.getKey())), e.getValue());
+      }
+      if (e.getKey().equals(Integer.toString(1))) {
+        it.remove();
+      }
+    }
+    assertEquals(expected, actual);
+    assertFalse(m.containsKey(Integer.toString(1)));
+
+    /* template! \(.val.disp)PocketMap\(.val.generic//"") copy = m.inner.clone(); */
+    IntPocketMap copy = m.inner.clone();
+    List<String> copied = new ArrayList<>();
+    copy.asUtf8().storageOrderIterator().forEachRemaining(e -> copied.add(e.getKey()));
+    expected.remove(Integer.toString(1));
+    assertEquals(expected, copied);
+  }
+
+  @Test void testFreezePerfect() {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    int count = 100_000;
+    for (int i = 0; i < count; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    // DefaultHasher gives these equal hashes, so they can't be separated by the levels
+    m.put("aA", toValue.apply(1));
+    m.put("BB", toValue.apply(2));
+    m.remove(Integer.toString(5));
+
+    /* template! \(.val.disp)PocketMap.FrozenStringWrapper\(.val.generic//"") frozen = m.freezePerfect(); */
+    IntPocketMap.FrozenStringWrapper frozen = m.freezePerfect();
+    assertEquals(m.size(), frozen.size());
+    /* template! for (Map.Entry<String, \(.val.view)> e : m.entrySet()) { */
+    for (Map.Entry<String, Integer> e : m.entrySet()) {
+      assertTrue(frozen.containsKey(e.getKey()));
+      assertEquals(e.getValue(), frozen.get(e.getKey(), toValue.apply(-1)));
+    }
+    assertFalse(frozen.containsKey(Integer.toString(5)));
+    assertFalse(frozen.containsKey(Integer.toString(count)));
+    assertEquals(toValue.apply(-1), frozen.get(Integer.toString(count), toValue.apply(-1)));
+    /* template! Map<String, \(.val.view)> copied = new HashMap<>(); */
+    Map<String, Integer> copied = new HashMap<>();
+    frozen.forEach(copied::put);
+    assertEquals(m, copied);
+
+    // not affected by later changes to the map
+    m.put(Integer.toString(count), toValue.apply(0));
+    assertFalse(frozen.containsKey(Integer.toString(count)));
+    /* template! assertTrue(\(.val.disp)PocketMap.newUtf8().freezePerfect().isEmpty()); */
+    assertTrue(IntPocketMap.newUtf8().freezePerfect().isEmpty());
+  }
+
+  @Test void testFreezeSorted() {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    int count = 20_000;
+    for (int i = 0; i < count; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    m.put("", toValue.apply(-1));
+    m.put("\u00e9t\u00e9", toValue.apply(-2));
+    List<String> sorted = new ArrayList<>(m.keySet());
+    sorted.sort(null);
+
+    /* template! \(.val.disp)PocketMap.SortedStringWrapper\(.val.generic//"") frozen = m.freezeSorted(); */
+    IntPocketMap.SortedStringWrapper frozen = m.freezeSorted();
+    assertEquals(m.size(), frozen.size());
+    /* template! for (Map.Entry<String, \(.val.view)> e : m.entrySet()) { */
+    for (Map.Entry<String, Integer> e : m.entrySet()) {
+      assertEquals(e.getValue(), frozen.get(e.getKey(), toValue.apply(-3)));
+    }
+    for (String absent : List.of("00", "1999a", "20000", "9999\u0000", "a", "\u00ff")) {
+      assertFalse(frozen.containsKey(absent));
+    }
+
+    List<String> all = new ArrayList<>();
+    frozen.range(null, null).forEachRemaining(e -> all.add(e.getKey()));
+    assertEquals(sorted, all);
+
+    List<String> ranged = new ArrayList<>();
+    frozen.range("1234", "124").forEachRemaining(e -> ranged.add(e.getKey()));
+    assertEquals(List.of("1234", "12340", "12341", "12342", "12343", "12344", "12345", "12346", "12347", "12348", "12349", "1235", "12350"), ranged.subList(0, 13));
+    assertEquals("12399", ranged.get(ranged.size() - 1));
+    assertFalse(frozen.range("5", "4").hasNext());
+
+    List<String> prefixed = new ArrayList<>();
+    String prefix = "19";
+    /* template! Iterator<Map.Entry<String, \(.val.view)>> it = frozen.prefixScan(prefix); */
+    Iterator<Map.Entry<String, Integer>> it = frozen.prefixScan(prefix);
+    while (it.hasNext()) {
+      /* template! Map.Entry<String, \(.val.view)> e = it.next(); */
+      Map.Entry<String, Integer> e = it.next();
+      prefixed.add(e.getKey());
+      assertEquals(toValue.apply(Integer.parseInt(e.getKey())), e.getValue());
+    }
+    assertEquals(sorted.stream().filter(k -> k.startsWith("19")).collect(Collectors.toList()), prefixed);
+    assertThrows(NoSuchElementException.class, it::next);
+    assertFalse(frozen.prefixScan("x").hasNext());
+    assertEquals("\u00e9t\u00e9", frozen.prefixScan("\u00e9").next().getKey());
+  }
+
+  @Test void testMembershipFilter() {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    m.put("before", toValue.apply(0));
+    m.setMembershipFilter(true);
+    assertTrue(m.containsKey("before"));
+    int count = 50_000;
+    for (int i = 0; i < count; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+      if (i % 1000 == 0) {
+        assertEquals(toValue.apply(i), m.get(Integer.toString(i)));
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals(toValue.apply(i), m.get(Integer.toString(i)));
+      assertNull(m.get(Integer.toString(-1 - i)));
+    }
+    m.remove("before");
+    assertFalse(m.containsKey("before"));
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") copy = m.clone(); */
+    IntPocketMap.StringWrapper copy = m.clone();
+    assertEquals(m, copy);
+    m.clear();
+    assertFalse(m.containsKey("0"));
+    m.put("after", toValue.apply(1));
+    assertTrue(m.containsKey("after"));
+    m.setMembershipFilter(false);
+    assertTrue(m.containsKey("after"));
+  }
+
+  /* template_if! .val.object | not */
+  @Test void testBuild() {
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    int count = 50_000;
+    String[] keys = new String[count + 1];
+    /* template! \(.val.t)[] values = new \(.val.t)[count + 1]; */
+    int[] values = new int[count + 1];
+    for (int i = 0; i < count; i++) {
+      keys[i] = Integer.toString(i);
+      values[i] = toValue.apply(i);
+    }
+    // a duplicate key, which should replace the earlier value
+    keys[count] = Integer.toString(7);
+    values[count] = toValue.apply(8);
+    /* template! \(.val.disp)PocketMap.StringWrapper m = \(.val.disp)PocketMap.buildUtf8(keys, values); */
+    IntPocketMap.StringWrapper m = IntPocketMap.buildUtf8(keys, values);
+    assertEquals(count, m.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(toValue.apply(i == 7 ? 8 : i), m.get(Integer.toString(i)));
+    }
+    m.put(Integer.toString(count), toValue.apply(count));
+    assertEquals(count + 1, m.size());
+    /* template! assertEquals(0, \(.val.disp)PocketMap.build(new byte[0][], new \(.val.t)[0]).size()); */
+    assertEquals(0, IntPocketMap.build(new byte[0][], new int[0]).size());
+    /* template! assertThrows(IllegalArgumentException.class, () -> \(.val.disp)PocketMap.build(new byte[1][], new \(.val.t)[0])); */
+    assertThrows(IllegalArgumentException.class, () -> IntPocketMap.build(new byte[1][], new int[0]));
+  }
+  /* template_endif! */
+
+  /* template_if! .val.object | not */
+  @Test void testSnapshotRoundTrip() throws IOException {
+    /* template! \(.val.disp)PocketMap.StringWrapper m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    int count = 20_000;
+    for (int i = 0; i < count; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    for (int i = 0; i < count; i += 3) {
+      m.remove(Integer.toString(i));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    m.writeTo(Channels.newChannel(out));
+    byte[] snapshot = out.toByteArray();
+    assertEquals(0, snapshot.length % 8);
+
+    /* template! \(.val.disp)PocketMap.StringWrapper loaded = \(.val.disp)PocketMap.readUtf8(Channels.newChannel(new ByteArrayInputStream(snapshot))); */
+    IntPocketMap.StringWrapper loaded = IntPocketMap.readUtf8(Channels.newChannel(new ByteArrayInputStream(snapshot)));
+    assertEquals(m, loaded);
+    assertNull(loaded.get("0"));
+    // the loaded map is fully usable, including tombstone reuse and resizing
+    for (int i = 0; i < 2 * count; i++) {
+      loaded.put(Integer.toString(i), toValue.apply(i));
+    }
+    assertEquals(2 * count, loaded.size());
+    assertEquals(toValue.apply(count - 1), loaded.get(Integer.toString(count - 1)));
+
+    byte[] corrupted = snapshot.clone();
+    corrupted[corrupted.length / 2] ^= 1;
+    /* template! assertThrows(IOException.class, () -> \(.val.disp)PocketMap.readFrom(Channels.newChannel(new ByteArrayInputStream(corrupted)))); */
+    assertThrows(IOException.class, () -> IntPocketMap.readFrom(Channels.newChannel(new ByteArrayInputStream(corrupted))));
+    byte[] truncated = Arrays.copyOf(snapshot, snapshot.length - 8);
+    /* template! assertThrows(IOException.class, () -> \(.val.disp)PocketMap.readFrom(Channels.newChannel(new ByteArrayInputStream(truncated)))); */
+    assertThrows(IOException.class, () -> IntPocketMap.readFrom(Channels.newChannel(new ByteArrayInputStream(truncated))));
+  }
+
+  @Test void testDeltaSnapshots() throws IOException {
+    /* template! \(.val.disp)PocketMap.StringWrapper m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    assertThrows(IllegalStateException.class, () -> m.writeDeltaTo(Channels.newChannel(new ByteArrayOutputStream())));
+    int count = 100_000;
+    for (int i = 0; i < count; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    ByteArrayOutputStream base = new ByteArrayOutputStream();
+    m.writeTo(Channels.newChannel(base));
+
+    m.put("1", toValue.apply(7));
+    m.remove("2");
+    m.put("new", toValue.apply(8));
+    ByteArrayOutputStream delta1 = new ByteArrayOutputStream();
+    m.writeDeltaTo(Channels.newChannel(delta1));
+    assertTrue(delta1.size() < base.size() / 4);
+
+    // enough inserts to resize the table
+    for (int i = count; i < 2 * count; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    ByteArrayOutputStream delta2 = new ByteArrayOutputStream();
+    m.writeDeltaTo(Channels.newChannel(delta2));
+
+    /* template! \(.val.disp)PocketMap.StringWrapper restored = \(.val.disp)PocketMap.readUtf8(Channels.newChannel(new ByteArrayInputStream(base.toByteArray()))); */
+    IntPocketMap.StringWrapper restored = IntPocketMap.readUtf8(Channels.newChannel(new ByteArrayInputStream(base.toByteArray())));
+    assertThrows(IOException.class, () -> restored.readDeltaFrom(Channels.newChannel(new ByteArrayInputStream(delta2.toByteArray()))));
+    restored.readDeltaFrom(Channels.newChannel(new ByteArrayInputStream(delta1.toByteArray())));
+    assertFalse(restored.containsKey("2"));
+    assertEquals(toValue.apply(8), restored.get("new"));
+    restored.readDeltaFrom(Channels.newChannel(new ByteArrayInputStream(delta2.toByteArray())));
+    assertEquals(m, restored);
+    restored.put("after", toValue.apply(9));
+    assertEquals(toValue.apply(9), restored.get("after"));
+  }
+  /* template_endif! */
+
+  @SuppressWarnings("unchecked")
+  @Test void testJavaSerialization() throws Exception {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    for (int i = 0; i < 10_000; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+    m.remove("5");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+      oos.writeObject(m);
+      oos.writeObject(m.inner);
+    }
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") loaded = (\(.val.disp)PocketMap.StringWrapper\(.val.generic//"")) ois.readObject(); */
+      IntPocketMap.StringWrapper loaded = (IntPocketMap.StringWrapper) ois.readObject();
+      assertEquals(m, loaded);
+      assertFalse(loaded.containsKey("5"));
+      /* template! \(.val.disp)PocketMap\(.val.generic//"") loadedInner = (\(.val.disp)PocketMap\(.val.generic//"")) ois.readObject(); */
+      IntPocketMap loadedInner = (IntPocketMap) ois.readObject();
+      assertEquals(m.size(), loadedInner.size());
+      assertEquals(toValue.apply(9), loadedInner.get("9".getBytes(StandardCharsets.UTF_8)));
+      loaded.put("5", toValue.apply(5));
+      assertEquals(m.size() + 1, loaded.size());
+    }
+  }
+
   @Test void testInsertOverwrite() {
     /* template! Map<String, \(.val.view)> m = \(.val.disp)PocketMap.newUtf8(); */
     Map<String, Integer> m = IntPocketMap.newUtf8();
@@ -282,6 +675,66 @@ class IntPocketMapTest {
     assertEquals(0xAAAA_AAAAL, observed);
   }
 
+  @Test void testWeakEntryIteratorDuringResize() {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(8); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(8);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    for (int i = 0; i < 32; i++) {
+      assertNull(m.put(Integer.toString(i), toValue.apply(i)));
+    }
+
+    long observed = 0;
+    int inserted = 32;
+    /* template! for (Iterator<Entry<String, \(.val.view)>> it = m.weakEntryIterator(); it.hasNext(); ) { */
+    for (Iterator<Entry<String, Integer>> it = m.weakEntryIterator(); it.hasNext(); ) {
+      /* template! Entry<String, \(.val.view)> e = it.next(); */
+      Entry<String, Integer> e = it.next();
+      int k = Integer.valueOf(e.getKey());
+      assertEquals(toValue.apply(k), e.getValue());
+      // keys inserted before the first resize may or may not be seen
+      if (k < 32) {
+        long mask = 1L << k;
+        assertEquals(0L, observed & mask, String.format("unexpected second occurence of %s", e.getKey()));
+        observed |= mask;
+        if (k % 2 == 0) {
+          it.remove();
+        }
+      }
+      // force several resizes while iterating
+      for (int j = 0; j < 100; j++, inserted++) {
+        m.put(Integer.toString(inserted), toValue.apply(inserted));
+      }
+    }
+
+    assertEquals(0xFFFF_FFFFL, observed);
+    assertEquals(inserted - 16, m.size());
+    for (int i = 0; i < 32; i++) {
+      assertEquals(i % 2 != 0, m.containsKey(Integer.toString(i)));
+    }
+  }
+
+  @Test void testWeakEntryIteratorRemoveAll() {
+    /* template! \(.val.disp)PocketMap.StringWrapper\(.val.generic//"") m = \(.val.disp)PocketMap.newUtf8(1024); */
+    IntPocketMap.StringWrapper m = IntPocketMap.newUtf8(1024);
+    /* template! IntFunction<\(.val.view)> toValue = \(.intLambda); */
+    IntFunction<Integer> toValue = (v) -> v;
+    for (int i = 0; i < 800; i++) {
+      m.put(Integer.toString(i), toValue.apply(i));
+    }
+
+    // each removal leaves a tombstone, which later probes have to step over
+    int removed = 0;
+    /* template! for (Iterator<Entry<String, \(.val.view)>> it = m.weakEntryIterator(); it.hasNext(); ) { */
+    for (Iterator<Entry<String, Integer>> it = m.weakEntryIterator(); it.hasNext(); ) {
+      it.next();
+      it.remove();
+      removed++;
+    }
+    assertEquals(800, removed);
+    assertEquals(0, m.size());
+  }
+
   @Test void testReplaceAll() {
     /* template! Map<String, \(.val.view)> m = \(.val.disp)PocketMap.newUtf8(8); */
     Map<String, Integer> m = IntPocketMap.newUtf8(8);
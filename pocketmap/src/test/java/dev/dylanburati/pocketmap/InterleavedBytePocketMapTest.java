@@ -0,0 +1,48 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class InterleavedBytePocketMapTest {
+  @Test void testValues() {
+    InterleavedBytePocketMap.StringWrapper m = InterleavedBytePocketMap.newUtf8(8);
+    m.put("a", (byte) -1);
+    m.put("b", Byte.MIN_VALUE);
+    m.put("c", Byte.MAX_VALUE);
+    assertEquals(3, m.size());
+    assertEquals(-1, m.get("a", (byte) 0));
+    assertEquals(Byte.MIN_VALUE, m.get("b", (byte) 0));
+    assertEquals(Byte.MAX_VALUE, m.get("c", (byte) 0));
+    assertEquals(7, m.get("d", (byte) 7));
+    assertEquals(1, m.add("a", (byte) 2));
+    assertEquals(5, m.add("d", (byte) 5));
+    assertTrue(m.remove("d"));
+    assertFalse(m.containsKey("d"));
+    assertEquals(3, m.size());
+    // the old value doesn't leak into a reused slot
+    assertEquals(4, m.add("d", (byte) 4));
+  }
+
+  @Test void testResize() {
+    InterleavedBytePocketMap.StringWrapper m = InterleavedBytePocketMap.newUtf8(8);
+    Map<String, Byte> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 20_000);
+      byte value = (byte) i;
+      m.add(key, value);
+      expected.merge(key, value, (a, b) -> (byte) (a + b));
+      if (i % 5 == 0) {
+        m.remove(Integer.toString(i / 5));
+        expected.remove(Integer.toString(i / 5));
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    Map<String, Byte> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,48 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class InterleavedFloatPocketMapTest {
+  @Test void testValues() {
+    InterleavedFloatPocketMap.StringWrapper m = InterleavedFloatPocketMap.newUtf8(8);
+    m.put("a", -1);
+    m.put("b", Float.MIN_VALUE);
+    m.put("c", Float.MAX_VALUE);
+    assertEquals(3, m.size());
+    assertEquals(-1, m.get("a", 0));
+    assertEquals(Float.MIN_VALUE, m.get("b", 0));
+    assertEquals(Float.MAX_VALUE, m.get("c", 0));
+    assertEquals(7, m.get("d", 7));
+    assertEquals(1, m.add("a", 2));
+    assertEquals(5, m.add("d", 5));
+    assertTrue(m.remove("d"));
+    assertFalse(m.containsKey("d"));
+    assertEquals(3, m.size());
+    // the old value doesn't leak into a reused slot
+    assertEquals(4, m.add("d", 4));
+  }
+
+  @Test void testResize() {
+    InterleavedFloatPocketMap.StringWrapper m = InterleavedFloatPocketMap.newUtf8(8);
+    Map<String, Float> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 20_000);
+      float value = (float) i;
+      m.add(key, value);
+      expected.merge(key, value, Float::sum);
+      if (i % 5 == 0) {
+        m.remove(Integer.toString(i / 5));
+        expected.remove(Integer.toString(i / 5));
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    Map<String, Float> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,65 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* template! class Interleaved\(.val.disp)PocketMapTest { */
+class InterleavedIntPocketMapTest {
+  @Test void testValues() {
+    /* template! Interleaved\(.val.disp)PocketMap.StringWrapper m = Interleaved\(.val.disp)PocketMap.newUtf8(8); */
+    InterleavedIntPocketMap.StringWrapper m = InterleavedIntPocketMap.newUtf8(8);
+    /* template! m.put(\"a\", \(.demote//"")-1); */
+    m.put("a", -1);
+    /* template! m.put(\"b\", \(.val.view).MIN_VALUE); */
+    m.put("b", Integer.MIN_VALUE);
+    /* template! m.put(\"c\", \(.val.view).MAX_VALUE); */
+    m.put("c", Integer.MAX_VALUE);
+    assertEquals(3, m.size());
+    /* template! assertEquals(-1, m.get(\"a\", \(.demote//"")0)); */
+    assertEquals(-1, m.get("a", 0));
+    /* template! assertEquals(\(.val.view).MIN_VALUE, m.get(\"b\", \(.demote//"")0)); */
+    assertEquals(Integer.MIN_VALUE, m.get("b", 0));
+    /* template! assertEquals(\(.val.view).MAX_VALUE, m.get(\"c\", \(.demote//"")0)); */
+    assertEquals(Integer.MAX_VALUE, m.get("c", 0));
+    /* template! assertEquals(7, m.get(\"d\", \(.demote//"")7)); */
+    assertEquals(7, m.get("d", 7));
+    /* template! assertEquals(1, m.add(\"a\", \(.demote//"")2)); */
+    assertEquals(1, m.add("a", 2));
+    /* template! assertEquals(5, m.add(\"d\", \(.demote//"")5)); */
+    assertEquals(5, m.add("d", 5));
+    assertTrue(m.remove("d"));
+    assertFalse(m.containsKey("d"));
+    assertEquals(3, m.size());
+    // the old value doesn't leak into a reused slot
+    /* template! assertEquals(4, m.add(\"d\", \(.demote//"")4)); */
+    assertEquals(4, m.add("d", 4));
+  }
+
+  @Test void testResize() {
+    /* template! Interleaved\(.val.disp)PocketMap.StringWrapper m = Interleaved\(.val.disp)PocketMap.newUtf8(8); */
+    InterleavedIntPocketMap.StringWrapper m = InterleavedIntPocketMap.newUtf8(8);
+    /* template! Map<String, \(.val.view)> expected = new HashMap<>(); */
+    Map<String, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 20_000);
+      /* template! \(.val.t) value = \(if .val.t == "int" then "" else "(\(.val.t)) " end)i; */
+      int value = i;
+      m.add(key, value);
+      /* template! expected.merge(key, value, \(if .demote then "(a, b) -> \(.demote)(a + b)" else "\(.val.view)::sum" end)); */
+      expected.merge(key, value, Integer::sum);
+      if (i % 5 == 0) {
+        m.remove(Integer.toString(i / 5));
+        expected.remove(Integer.toString(i / 5));
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    /* template! Map<String, \(.val.view)> actual = new HashMap<>(); */
+    Map<String, Integer> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
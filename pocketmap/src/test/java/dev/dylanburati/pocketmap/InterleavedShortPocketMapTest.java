@@ -0,0 +1,48 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class InterleavedShortPocketMapTest {
+  @Test void testValues() {
+    InterleavedShortPocketMap.StringWrapper m = InterleavedShortPocketMap.newUtf8(8);
+    m.put("a", (short) -1);
+    m.put("b", Short.MIN_VALUE);
+    m.put("c", Short.MAX_VALUE);
+    assertEquals(3, m.size());
+    assertEquals(-1, m.get("a", (short) 0));
+    assertEquals(Short.MIN_VALUE, m.get("b", (short) 0));
+    assertEquals(Short.MAX_VALUE, m.get("c", (short) 0));
+    assertEquals(7, m.get("d", (short) 7));
+    assertEquals(1, m.add("a", (short) 2));
+    assertEquals(5, m.add("d", (short) 5));
+    assertTrue(m.remove("d"));
+    assertFalse(m.containsKey("d"));
+    assertEquals(3, m.size());
+    // the old value doesn't leak into a reused slot
+    assertEquals(4, m.add("d", (short) 4));
+  }
+
+  @Test void testResize() {
+    InterleavedShortPocketMap.StringWrapper m = InterleavedShortPocketMap.newUtf8(8);
+    Map<String, Short> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 20_000);
+      short value = (short) i;
+      m.add(key, value);
+      expected.merge(key, value, (a, b) -> (short) (a + b));
+      if (i % 5 == 0) {
+        m.remove(Integer.toString(i / 5));
+        expected.remove(Integer.toString(i / 5));
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    Map<String, Short> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,41 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+class KeyDictionaryTest {
+  @Test void testIntern() {
+    KeyDictionary.StringWrapper d = KeyDictionary.newUtf8(8);
+    assertTrue(d.isEmpty());
+    assertEquals(-1, d.ordinalOf("a"));
+    assertEquals(0, d.intern("a"));
+    assertEquals(1, d.intern("b"));
+    assertEquals(0, d.intern("a"));
+    assertEquals(2, d.intern(""));
+    assertEquals(3, d.size());
+    assertEquals(1, d.ordinalOf("b"));
+    assertTrue(d.containsKey(""));
+    assertFalse(d.containsKey("c"));
+    assertEquals("a", d.keyAt(0));
+    assertEquals("", d.keyAt(2));
+    assertThrows(IndexOutOfBoundsException.class, () -> d.keyAt(3));
+    assertThrows(IndexOutOfBoundsException.class, () -> d.keyAt(-1));
+  }
+
+  @Test void testDenseOrdinals() {
+    KeyDictionary d = new KeyDictionary(8);
+    for (int i = 0; i < 100_000; i++) {
+      assertEquals(i, d.intern(("key" + i).getBytes(StandardCharsets.UTF_8)));
+      assertEquals(i / 2, d.intern(("key" + (i / 2)).getBytes(StandardCharsets.UTF_8)));
+    }
+    assertEquals(100_000, d.size());
+    for (int i = 0; i < 100_000; i++) {
+      byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+      assertEquals(i, d.ordinalOf(key));
+      assertArrayEquals(key, d.keyAt(i));
+    }
+  }
+}
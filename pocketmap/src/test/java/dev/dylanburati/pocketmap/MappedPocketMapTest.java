@@ -0,0 +1,78 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class MappedPocketMapTest {
+  @TempDir Path dir;
+
+  private Path write(String name, LongPocketMap.StringWrapper m) throws IOException {
+    Path path = dir.resolve(name);
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      m.writeTo(ch);
+    }
+    return path;
+  }
+
+  @Test void testLookups() throws IOException {
+    LongPocketMap.StringWrapper m = LongPocketMap.newUtf8(8);
+    for (int i = 0; i < 50_000; i++) {
+      m.put("key" + i, 1000L * i);
+    }
+    for (int i = 0; i < 50_000; i += 7) {
+      m.remove("key" + i);
+    }
+    MappedPocketMap.StringWrapper mapped = MappedPocketMap.openUtf8(write("a.snap", m));
+    assertEquals(m.size(), mapped.size());
+    for (int i = 0; i < 50_000; i++) {
+      if (i % 7 == 0) {
+        assertFalse(mapped.containsKey("key" + i));
+        assertEquals(-1L, mapped.getLong("key" + i, -1L));
+      } else {
+        assertEquals(1000L * i, mapped.getLong("key" + i, -1L));
+      }
+    }
+    assertFalse(mapped.containsKey("key50000"));
+    assertFalse(mapped.containsKey(""));
+  }
+
+  @Test void testEmpty() throws IOException {
+    MappedPocketMap.StringWrapper mapped = MappedPocketMap.openUtf8(write("empty.snap", LongPocketMap.newUtf8(0)));
+    assertTrue(mapped.isEmpty());
+    assertEquals(5L, mapped.getLong("a", 5L));
+  }
+
+  @Test void testOtherValueTypes() throws IOException {
+    FloatPocketMap.StringWrapper floats = FloatPocketMap.newUtf8();
+    floats.put("pi", 3.14f);
+    Path path = dir.resolve("f.snap");
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      floats.writeTo(ch);
+    }
+    MappedPocketMap.StringWrapper mapped = MappedPocketMap.openUtf8(path);
+    assertEquals(3.14f, mapped.getFloat("pi", 0f));
+    assertThrows(IllegalStateException.class, () -> mapped.getInt("pi", 0));
+  }
+
+  @Test void testInvalidFile() throws IOException {
+    Path path = dir.resolve("bad.snap");
+    Files.write(path, new byte[100]);
+    assertThrows(IOException.class, () -> MappedPocketMap.open(path));
+
+    LongPocketMap.StringWrapper m = LongPocketMap.newUtf8(8);
+    m.put("a", 1L);
+    Path truncated = write("truncated.snap", m);
+    try (FileChannel ch = FileChannel.open(truncated, StandardOpenOption.WRITE)) {
+      ch.truncate(ch.size() - 16);
+    }
+    assertThrows(IOException.class, () -> MappedPocketMap.open(truncated));
+  }
+}
@@ -0,0 +1,54 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class PackedBooleanPocketMapTest {
+  @Test void testValues() {
+    PackedBooleanPocketMap.StringWrapper m = PackedBooleanPocketMap.newUtf8(8);
+    assertTrue(m.isEmpty());
+    m.put("a", false);
+    m.put("b", true);
+    assertEquals(2, m.size());
+    assertFalse(m.get("a", true));
+    assertTrue(m.get("b", false));
+    assertTrue(m.get("c", true));
+    assertTrue(m.containsKey("a"));
+    m.put("a", true);
+    assertTrue(m.get("a", false));
+    assertFalse(m.toggle("a"));
+    assertFalse(m.get("a", true));
+    assertTrue(m.toggle("c"));
+    assertEquals(3, m.size());
+
+    // a removed false key is a tombstone, not an empty slot
+    assertTrue(m.remove("a"));
+    assertFalse(m.remove("a"));
+    assertFalse(m.containsKey("a"));
+    assertTrue(m.get("b", false));
+    assertEquals(2, m.size());
+  }
+
+  @Test void testResize() {
+    PackedBooleanPocketMap.StringWrapper m = PackedBooleanPocketMap.newUtf8(8);
+    Map<String, Boolean> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 20_000);
+      boolean value = i % 3 == 0;
+      m.put(key, value);
+      expected.put(key, value);
+      if (i % 5 == 0) {
+        m.remove(Integer.toString(i / 5));
+        expected.remove(Integer.toString(i / 5));
+      }
+    }
+    assertEquals(expected.size(), m.size());
+    Map<String, Boolean> actual = new HashMap<>();
+    m.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,133 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+class PocketSetTest {
+  @Test void testAddRemove() {
+    PocketSet.StringWrapper s = PocketSet.newUtf8(8);
+    assertTrue(s.isEmpty());
+    assertTrue(s.add("a"));
+    assertTrue(s.add("b"));
+    assertFalse(s.add("a"));
+    assertEquals(2, s.size());
+    assertTrue(s.contains("a"));
+    assertFalse(s.contains("c"));
+    assertFalse(s.contains(1));
+    assertTrue(s.remove("a"));
+    assertFalse(s.remove("a"));
+    assertFalse(s.contains("a"));
+    assertEquals(Set.of("b"), new HashSet<>(s));
+
+    PocketSet raw = new PocketSet(8);
+    assertTrue(raw.add("x".getBytes(StandardCharsets.UTF_8)));
+    assertTrue(raw.contains("x".getBytes(StandardCharsets.UTF_8)));
+    assertFalse(raw.contains("x"));
+  }
+
+  @Test void testResizeAndTombstones() {
+    PocketSet.StringWrapper s = PocketSet.newUtf8(8);
+    for (int i = 0; i < 10000; i++) {
+      s.add(Integer.toString(i));
+      if (i % 3 == 0) {
+        s.remove(Integer.toString(i / 2));
+      }
+    }
+    Set<String> expected = new HashSet<>();
+    for (int i = 0; i < 10000; i++) {
+      expected.add(Integer.toString(i));
+      if (i % 3 == 0) {
+        expected.remove(Integer.toString(i / 2));
+      }
+    }
+    assertEquals(expected.size(), s.size());
+    assertEquals(expected, new HashSet<>(s));
+
+    Iterator<String> it = s.iterator();
+    while (it.hasNext()) {
+      if (it.next().length() < 4) {
+        it.remove();
+      }
+    }
+    expected.removeIf(k -> k.length() < 4);
+    assertEquals(expected, new HashSet<>(s));
+    s.clear();
+    assertEquals(0, s.size());
+    assertFalse(s.iterator().hasNext());
+  }
+
+  @Test void testSetOperations() {
+    PocketSet.StringWrapper a = PocketSet.newUtf8(8);
+    PocketSet.StringWrapper b = PocketSet.newUtf8(8);
+    for (int i = 0; i < 1000; i++) {
+      a.add("k" + i);
+      b.add("k" + (i + 500));
+    }
+
+    PocketSet.StringWrapper union = PocketSet.newUtf8(8);
+    union.addAll(a);
+    assertTrue(union.addAll(b));
+    assertFalse(union.addAll(b));
+    assertEquals(1500, union.size());
+
+    PocketSet.StringWrapper intersection = PocketSet.newUtf8(8);
+    intersection.addAll(a);
+    assertTrue(intersection.retainAll(b));
+    assertEquals(500, intersection.size());
+    assertTrue(intersection.contains("k500"));
+    assertFalse(intersection.contains("k499"));
+
+    PocketSet.StringWrapper difference = PocketSet.newUtf8(8);
+    difference.addAll(a);
+    assertTrue(difference.removeAll(b));
+    assertEquals(500, difference.size());
+    assertTrue(difference.contains("k499"));
+    assertFalse(difference.contains("k500"));
+
+    // the smaller side is probed when removing a small set
+    PocketSet.StringWrapper small = PocketSet.newUtf8(8);
+    small.add("k0");
+    small.add("missing");
+    assertTrue(difference.removeAll(small));
+    assertEquals(499, difference.size());
+
+    // other collections take the generic path
+    difference.removeAll(List.of("k1", "k2"));
+    assertEquals(497, difference.size());
+    difference.retainAll(Set.of("k3", "k500"));
+    assertEquals(Set.of("k3"), new HashSet<>(difference));
+  }
+
+  @Test void testDifferentHashers() {
+    Hasher other = new Hasher() {
+      @Override
+      public int hashBytes(byte[] data) {
+        return data.length;
+      }
+
+      @Override
+      public int hashBuffer(ByteBuffer buf, int offset, int length) {
+        return length;
+      }
+    };
+    PocketSet.StringWrapper a = PocketSet.newUtf8(8);
+    PocketSet.StringWrapper b = PocketSet.newUtf8(8, other);
+    for (int i = 0; i < 100; i++) {
+      a.add("k" + i);
+      b.add("k" + (2 * i));
+    }
+    a.retainAll(b);
+    assertEquals(50, a.size());
+    b.addAll(a);
+    assertEquals(100, b.size());
+    assertTrue(b.contains("k98"));
+  }
+}
@@ -0,0 +1,78 @@
+package dev.dylanburati.pocketmap;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class PocketTableTest {
+  @Test void testColumns() {
+    PocketTable.StringWrapper t = PocketTable.builder()
+        .longColumn("count").intColumn("flags").doubleColumn("score").initialCapacity(8).newUtf8();
+    int count = t.column("count");
+    int flags = t.column("flags");
+    int score = t.column("score");
+    assertEquals(-1, t.column("missing"));
+    assertEquals(-1, t.slotOf("a"));
+
+    int slot = t.slotFor("a");
+    assertEquals(0L, t.getLong(slot, count));
+    assertEquals(3L, t.addLong(slot, count, 3L));
+    t.setInt(slot, flags, 5);
+    t.setDouble(slot, score, 0.5);
+    assertEquals(slot, t.slotFor("a"));
+    assertEquals(3L, t.getLong(t.slotOf("a"), count));
+    assertEquals(5, t.getInt(slot, flags));
+    assertEquals(0.5, t.getDouble(slot, score));
+    assertThrows(IllegalArgumentException.class, () -> t.getInt(slot, count));
+
+    PocketTable.LongColumn countColumn = t.longColumn("count");
+    assertEquals(3L, countColumn.get(slot));
+    assertEquals(4L, countColumn.add(slot, 1L));
+    assertEquals(4L, t.getLong(slot, count));
+    t.doubleColumn("score").set(slot, 1.5);
+    assertEquals(1.5, t.getDouble(slot, score));
+    assertThrows(IllegalArgumentException.class, () -> t.intColumn("count"));
+    assertThrows(IllegalArgumentException.class, () -> t.intColumn("missing"));
+
+    // a removed key's slot may be reused, but its values start over at 0
+    assertTrue(t.remove("a"));
+    assertFalse(t.containsKey("a"));
+    int again = t.slotFor("a");
+    assertEquals(0L, t.getLong(again, count));
+    assertEquals(0, t.getInt(again, flags));
+    assertThrows(IllegalArgumentException.class,
+        () -> PocketTable.builder().intColumn("x").longColumn("x"));
+  }
+
+  @Test void testResize() {
+    PocketTable.StringWrapper t = PocketTable.builder()
+        .longColumn("count").floatColumn("last").initialCapacity(8).newUtf8();
+    // handles taken before the table grows stay valid
+    PocketTable.LongColumn count = t.longColumn("count");
+    PocketTable.FloatColumn last = t.floatColumn("last");
+    for (int i = 0; i < 50_000; i++) {
+      String key = Integer.toString(i % 10_000);
+      int slot = t.slotFor(key);
+      count.add(slot, 1L);
+      last.set(slot, i);
+      if (i % 7 == 0) {
+        t.remove(Integer.toString((i / 7) % 10_000));
+      }
+    }
+    Map<String, Long> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      expected.merge(Integer.toString(i % 10_000), 1L, Long::sum);
+      if (i % 7 == 0) {
+        expected.remove(Integer.toString((i / 7) % 10_000));
+      }
+    }
+    assertEquals(expected.size(), t.size());
+    Map<String, Long> actual = new HashMap<>();
+    t.forEach((k, slot) -> actual.put(k, count.get(slot)));
+    assertEquals(expected, actual);
+    assertEquals(49_999.0f, t.getFloat(t.slotOf("9999"), t.column("last")));
+  }
+}